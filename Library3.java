@@ -1,531 +1,5800 @@
-/*
-DigitalLibrarySystem.java
-Single-file Java application (OOP + Swing + file-based persistence)
-
-Features:
- - Login & Registration (Admin & Student)
- - Admin Panel: Manage Books, Users, Issued History
- - Student Panel: Browse, Search, Borrow, Return, Borrowed History
- - Persistent storage: books.data, users.data, history.data
- - Clean, semi-transparent Swing UI with background image
-
-Compile & Run:
-    javac DigitalLibrarySystem_Modified.java
-    java Library2
-*/
-
-import javax.swing.*;
-import javax.swing.border.*;
-import javax.swing.table.*;
-import java.awt.*;
-import java.awt.event.*;
-import java.io.*;
-import java.net.URL;
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.List;
-
-/* ------------------------
-   MAIN ENTRY POINT
-   ------------------------ */
-public class Library3 {
-    public static void main(String[] args) {
-        try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
-        SwingUtilities.invokeLater(() -> new LoginFrame(new LibraryDatabase()));
-    }
-}
-
-/* ------------------------
-   MODEL CLASSES
-   ------------------------ */
-class Book implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private String id, title, author;
-    private int totalCopies, availableCopies;
-
-    public Book(String id, String title, String author, int copies) {
-        this.id = id; this.title = title; this.author = author;
-        this.totalCopies = copies; this.availableCopies = copies;
-    }
-
-    public String getId() { return id; }
-    public String getTitle() { return title; }
-    public String getAuthor() { return author; }
-    public int getTotalCopies() { return totalCopies; }
-    public int getAvailableCopies() { return availableCopies; }
-
-    public void setTitle(String t) { title = t; }
-    public void setAuthor(String a) { author = a; }
-    public void setTotalCopies(int c) {
-        int diff = c - this.totalCopies;
-        this.totalCopies = c;
-        this.availableCopies += diff;
-        if (this.availableCopies < 0) this.availableCopies = 0;
-    }
-
-    public boolean borrow() {
-        if (availableCopies > 0) { availableCopies--; return true; }
-        return false;
-    }
-
-    public boolean giveBack() {
-        if (availableCopies < totalCopies) { availableCopies++; return true; }
-        return false;
-    }
-}
-
-abstract class User implements Serializable {
-    private static final long serialVersionUID = 1L;
-    protected String username, password, name;
-    public User(String u, String p, String n) { username=u; password=p; name=n; }
-    public String getUsername() { return username; }
-    public String getPassword() { return password; }
-    public String getName() { return name; }
-    public void setPassword(String p) { password = p; }
-    public void setName(String n) { name = n; }
-}
-
-class Student extends User {
-    private static final long serialVersionUID = 1L;
-    private List<String> borrowedBookIds = new ArrayList<>();
-    public Student(String u, String p, String n) { super(u,p,n); }
-    public List<String> getBorrowedBookIds() { return borrowedBookIds; }
-    public void borrowBook(String id) { borrowedBookIds.add(id); }
-    public void returnBook(String id) { borrowedBookIds.remove(id); }
-}
-
-class Admin extends User {
-    private static final long serialVersionUID = 1L;
-    public Admin(String u, String p, String n) { super(u,p,n); }
-}
-
-/* ------------------------
-   TRANSACTION MODEL
-   ------------------------ */
-class Transaction implements Serializable {
-    private static final long serialVersionUID = 1L;
-    String username, bookTitle, action, date;
-    public Transaction(String username, String bookTitle, String action) {
-        this.username = username;
-        this.bookTitle = bookTitle;
-        this.action = action;
-        this.date = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss").format(new Date());
-    }
-    public String getUsername() { return username; }
-    public String getBookTitle() { return bookTitle; }
-    public String getAction() { return action; }
-    public String getDate() { return date; }
-}
-
-/* ------------------------
-   DATABASE (file-based persistence)
-   ------------------------ */
-class LibraryDatabase {
-    private static final String BOOKS_FILE = "books.data";
-    private static final String USERS_FILE = "users.data";
-    private static final String HISTORY_FILE = "history.data";
-
-    private Map<String, Book> books = new LinkedHashMap<>();
-    private Map<String, User> users = new LinkedHashMap<>();
-    private List<Transaction> history = new ArrayList<>();
-
-    public LibraryDatabase() { load(); }
-
-    @SuppressWarnings("unchecked")
-    private void load() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(BOOKS_FILE))) {
-            Object o = ois.readObject();
-            if (o instanceof Map) books = (Map<String, Book>) o;
-        } catch (Exception e) { seedBooks(); saveBooks(); }
-
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_FILE))) {
-            Object o = ois.readObject();
-            if (o instanceof Map) users = (Map<String, User>) o;
-        } catch (Exception e) { seedUsers(); saveUsers(); }
-
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(HISTORY_FILE))) {
-            Object o = ois.readObject();
-            if (o instanceof List) history = (List<Transaction>) o;
-        } catch (Exception e) { history = new ArrayList<>(); saveHistory(); }
-    }
-
-    public synchronized void save() { saveBooks(); saveUsers(); saveHistory(); }
-
-    private void saveBooks() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(BOOKS_FILE))) {
-            oos.writeObject(books);
-        } catch (Exception e) { e.printStackTrace(); }
-    }
-
-    private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(users);
-        } catch (Exception e) { e.printStackTrace(); }
-    }
-
-    private void saveHistory() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(HISTORY_FILE))) {
-            oos.writeObject(history);
-        } catch (Exception e) { e.printStackTrace(); }
-    }
-
-    public synchronized void addTransaction(Transaction t) {
-        history.add(t);
-        saveHistory();
-    }
-
-    public List<Transaction> getAllTransactions() { return history; }
-
-    // Books
-    public Collection<Book> getAllBooks() { return books.values(); }
-    public Book getBook(String id) { return books.get(id); }
-    public void addOrUpdateBook(Book b) { books.put(b.getId(), b); saveBooks(); }
-    public void removeBook(String id) { books.remove(id); saveBooks(); }
-
-    // Users
-    public Collection<User> getAllUsers() { return users.values(); }
-    public User getUser(String username) { return users.get(username); }
-    public void addUser(User u) { users.put(u.getUsername(), u); saveUsers(); }
-    public void removeUser(String username) { users.remove(username); saveUsers(); }
-
-    /* --- 20 Default Books --- */
-    private void seedBooks() {
-        addOrUpdateBook(new Book("B001", "Clean Code", "Robert C. Martin", 4));
-        addOrUpdateBook(new Book("B002", "Effective Java", "Joshua Bloch", 3));
-        addOrUpdateBook(new Book("B003", "Design Patterns", "Erich Gamma", 3));
-        addOrUpdateBook(new Book("B004", "Introduction to Algorithms", "Thomas H. Cormen", 5));
-        addOrUpdateBook(new Book("B005", "The Pragmatic Programmer", "Andrew Hunt", 4));
-        addOrUpdateBook(new Book("B006", "Artificial Intelligence: A Modern Approach", "Stuart Russell", 3));
-        addOrUpdateBook(new Book("B007", "Operating System Concepts", "Abraham Silberschatz", 4));
-        addOrUpdateBook(new Book("B008", "Computer Networks", "Andrew S. Tanenbaum", 4));
-        addOrUpdateBook(new Book("B009", "Database System Concepts", "Henry F. Korth", 4));
-        addOrUpdateBook(new Book("B010", "Python Crash Course", "Eric Matthes", 5));
-        addOrUpdateBook(new Book("B011", "Head First Java", "Kathy Sierra", 5));
-        addOrUpdateBook(new Book("B012", "C Programming Language", "Brian W. Kernighan", 4));
-        addOrUpdateBook(new Book("B013", "JavaScript: The Good Parts", "Douglas Crockford", 3));
-        addOrUpdateBook(new Book("B014", "You Don’t Know JS", "Kyle Simpson", 3));
-        addOrUpdateBook(new Book("B015", "Deep Learning", "Ian Goodfellow", 2));
-        addOrUpdateBook(new Book("B016", "Machine Learning Yearning", "Andrew Ng", 3));
-        addOrUpdateBook(new Book("B017", "Introduction to Machine Learning", "Ethem Alpaydin", 3));
-        addOrUpdateBook(new Book("B018", "Data Structures & Algorithms Made Easy", "Narasimha Karumanchi", 5));
-        addOrUpdateBook(new Book("B019", "Modern Operating Systems", "Andrew S. Tanenbaum", 3));
-        addOrUpdateBook(new Book("B020", "System Design Interview", "Alex Xu", 4));
-    }
-
-    private void seedUsers() {
-        addUser(new Admin("admin", "admin", "Library Admin"));
-        addUser(new Student("student1", "pass", "Student One"));
-    }
-}
-
-/* ------------------------
-   BACKGROUND PANEL
-   ------------------------ */
-class BackgroundPanel extends JPanel {
-    private Image backgroundImage;
-    public BackgroundPanel(String imageUrl) {
-        try { backgroundImage = new ImageIcon(new URL(imageUrl)).getImage(); }
-        catch (Exception e) { backgroundImage = null; }
-        setLayout(new GridBagLayout());
-    }
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        if (backgroundImage != null) {
-            g.drawImage(backgroundImage, 0, 0, getWidth(), getHeight(), this);
-            Graphics2D g2 = (Graphics2D) g.create();
-            g2.setColor(new Color(0, 0, 0, 60));
-            g2.fillRect(0, 0, getWidth(), getHeight());
-            g2.dispose();
-        } else setBackground(Color.LIGHT_GRAY);
-    }
-}
-
-/* ------------------------
-   LOGIN FRAME
-   ------------------------ */
-class LoginFrame extends JFrame {
-    private final LibraryDatabase db;
-    private static final String BG_URL = "https://images.unsplash.com/photo-1524995997946-a1c2e315a42f";
-
-    public LoginFrame(LibraryDatabase db) {
-        this.db = db;
-        setTitle("Digital Library — Login");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(780, 520);
-        setLocationRelativeTo(null);
-
-        BackgroundPanel bg = new BackgroundPanel(BG_URL);
-        setContentPane(bg);
-
-        JPanel card = new JPanel();
-        card.setOpaque(true);
-        card.setBackground(new Color(255,255,255,220));
-        card.setBorder(new CompoundBorder(new LineBorder(new Color(200,200,200),1,true), new EmptyBorder(25,36,25,36)));
-        card.setLayout(new BoxLayout(card, BoxLayout.Y_AXIS));
-        card.setMaximumSize(new Dimension(520,420));
-
-        JLabel title = new JLabel("📚 Digital Library", SwingConstants.CENTER);
-        title.setFont(new Font("SansSerif", Font.BOLD, 28));
-        title.setForeground(new Color(24,78,120));
-        title.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        JTextField userField = new JTextField();
-        JPasswordField passField = new JPasswordField();
-        JButton loginBtn = new JButton("Login");
-        JButton regBtn = new JButton("Register");
-
-        stylePrimaryButton(loginBtn);
-        styleSecondaryButton(regBtn);
-
-        JLabel info = new JLabel("Admin: admin/admin • Demo: student1/pass", SwingConstants.CENTER);
-        info.setForeground(new Color(80,80,80));
-        info.setFont(new Font("SansSerif", Font.PLAIN, 12));
-
-        card.add(title);
-        card.add(Box.createRigidArea(new Dimension(0,18)));
-        card.add(new JLabel("Username:"));
-        card.add(userField);
-        card.add(new JLabel("Password:"));
-        card.add(passField);
-        card.add(Box.createRigidArea(new Dimension(0,15)));
-        card.add(loginBtn);
-        card.add(Box.createRigidArea(new Dimension(0,8)));
-        card.add(regBtn);
-        card.add(Box.createRigidArea(new Dimension(0,10)));
-        card.add(info);
-
-        bg.add(card);
-
-        loginBtn.addActionListener(e -> {
-            String u = userField.getText().trim();
-            String p = new String(passField.getPassword());
-            User user = db.getUser(u);
-            if (user != null && user.getPassword().equals(p)) {
-                dispose();
-                if (user instanceof Admin) new AdminPanel(db, (Admin) user, BG_URL);
-                else new StudentPanel(db, (Student) user, BG_URL);
-            } else JOptionPane.showMessageDialog(this, "Invalid credentials!");
-        });
-
-        regBtn.addActionListener(e -> new RegisterDialog(this, db, BG_URL));
-
-        setVisible(true);
-    }
-
-    private void stylePrimaryButton(JButton b) {
-        b.setBackground(new Color(22,78,120));
-        b.setForeground(Color.WHITE);
-        b.setFont(new Font("SansSerif", Font.BOLD, 15));
-        b.setFocusPainted(false);
-        b.setMaximumSize(new Dimension(Integer.MAX_VALUE, 40));
-        b.setBorder(new EmptyBorder(8,16,8,16));
-    }
-
-    private void styleSecondaryButton(JButton b) {
-        b.setBackground(Color.WHITE);
-        b.setForeground(new Color(22,78,120));
-        b.setFont(new Font("SansSerif", Font.BOLD, 14));
-        b.setFocusPainted(false);
-        b.setMaximumSize(new Dimension(Integer.MAX_VALUE, 40));
-        b.setBorder(new CompoundBorder(new LineBorder(new Color(22,78,120),1,true), new EmptyBorder(6,14,6,14)));
-    }
-}
-
-/* ------------------------
-   REGISTER DIALOG
-   ------------------------ */
-class RegisterDialog extends JDialog {
-    public RegisterDialog(JFrame owner, LibraryDatabase db, String bgUrl) {
-        super(owner, "Register User", true);
-        setSize(580, 460);
-        setLocationRelativeTo(owner);
-        BackgroundPanel bg = new BackgroundPanel(bgUrl);
-        setContentPane(bg);
-
-        JPanel form = new JPanel();
-        form.setOpaque(true);
-        form.setBackground(new Color(255,255,255,230));
-        form.setBorder(new CompoundBorder(new LineBorder(new Color(200,200,200),1,true), new EmptyBorder(22,30,22,30)));
-        form.setLayout(new BoxLayout(form, BoxLayout.Y_AXIS));
-
-        JLabel head = new JLabel("📝 Register New User", SwingConstants.CENTER);
-        head.setFont(new Font("SansSerif", Font.BOLD, 22));
-        head.setForeground(new Color(22,78,120));
-        head.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        JTextField nameF = new JTextField();
-        JTextField userF = new JTextField();
-        JPasswordField passF = new JPasswordField();
-        JComboBox<String> role = new JComboBox<>(new String[]{"Student","Admin"});
-        JButton regBtn = new JButton("Register");
-        regBtn.setBackground(new Color(22,78,120)); regBtn.setForeground(Color.WHITE);
-
-        form.add(head);
-        form.add(Box.createRigidArea(new Dimension(0,20)));
-        form.add(new JLabel("Full Name:")); form.add(nameF);
-        form.add(new JLabel("Username:")); form.add(userF);
-        form.add(new JLabel("Password:")); form.add(passF);
-        form.add(new JLabel("Role:")); form.add(role);
-        form.add(Box.createRigidArea(new Dimension(0,10)));
-        form.add(regBtn);
-        bg.add(form);
-
-        regBtn.addActionListener(e -> {
-            String n=nameF.getText().trim(), u=userF.getText().trim(), p=new String(passF.getPassword());
-            if(n.isEmpty()||u.isEmpty()||p.isEmpty()){JOptionPane.showMessageDialog(this,"Fill all fields!");return;}
-            if(db.getUser(u)!=null){JOptionPane.showMessageDialog(this,"Username exists!");return;}
-            if(role.getSelectedItem().equals("Admin")) db.addUser(new Admin(u,p,n)); else db.addUser(new Student(u,p,n));
-            JOptionPane.showMessageDialog(this,"Registered successfully!");
-            dispose();
-        });
-
-        setVisible(true);
-    }
-}
-
-/* ------------------------
-   ADMIN PANEL
-   ------------------------ */
-class AdminPanel extends JFrame {
-    private final LibraryDatabase db;
-    private final Admin admin;
-    private final String bgUrl;
-    private DefaultTableModel booksModel, usersModel;
-
-    public AdminPanel(LibraryDatabase db, Admin admin, String bgUrl) {
-        this.db=db; this.admin=admin; this.bgUrl=bgUrl;
-        setTitle("Admin Dashboard — "+admin.getName());
-        setSize(1000,620);
-        setLocationRelativeTo(null);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        BackgroundPanel bg = new BackgroundPanel(bgUrl);
-        setContentPane(bg);
-
-        JPanel overlay=new JPanel(new BorderLayout());
-        overlay.setOpaque(false);
-        overlay.setBorder(new EmptyBorder(16,16,16,16));
-        JPanel top=new JPanel(new BorderLayout()); top.setOpaque(false);
-
-        JLabel head=new JLabel("🛠️ Admin Dashboard",SwingConstants.LEFT);
-        head.setFont(new Font("SansSerif",Font.BOLD,22)); head.setForeground(Color.WHITE);
-
-        JPanel btnPanel=new JPanel(new FlowLayout(FlowLayout.RIGHT,10,4));
-        btnPanel.setOpaque(false);
-        JButton add=btn("➕ Add Book"),edit=btn("✏️ Edit Book"),del=btn("🗑 Delete"),refresh=btn("⟳ Refresh"),save=btn("💾 Save"),users=btn("👥 View Users"),history=btn("📜 Issued History");
-        btnPanel.add(add);btnPanel.add(edit);btnPanel.add(del);btnPanel.add(users);btnPanel.add(refresh);btnPanel.add(save);btnPanel.add(history);
-        top.add(head,BorderLayout.WEST);top.add(btnPanel,BorderLayout.EAST);
-        overlay.add(top,BorderLayout.NORTH);
-
-        JSplitPane split=new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);split.setResizeWeight(0.6);
-        booksModel=new DefaultTableModel(new Object[]{"ID","Title","Author","Avail","Total"},0){public boolean isCellEditable(int r,int c){return false;}};
-        JTable booksTable=new JTable(booksModel);
-        JPanel left=createCard("Books"); left.add(new JScrollPane(booksTable)); split.setLeftComponent(left);
-
-        usersModel=new DefaultTableModel(new Object[]{"Username","Name","Role"},0){public boolean isCellEditable(int r,int c){return false;}};
-        JTable usersTable=new JTable(usersModel);
-        JPanel right=createCard("Users"); right.add(new JScrollPane(usersTable)); split.setRightComponent(right);
-        overlay.add(split,BorderLayout.CENTER);
-
-        JButton delUser=btn("🗑 Delete User");
-        JPanel uPanel=new JPanel(new FlowLayout(FlowLayout.RIGHT)); uPanel.setOpaque(false); uPanel.add(delUser);
-        right.add(uPanel,BorderLayout.SOUTH);
-
-        bg.add(overlay);
-        refreshTables();
-
-        add.addActionListener(e->editBook(null));
-        edit.addActionListener(e->{int r=booksTable.getSelectedRow();if(r<0)return;String id=(String)booksModel.getValueAt(r,0);editBook(db.getBook(id));});
-        del.addActionListener(e->{int r=booksTable.getSelectedRow();if(r<0)return;String id=(String)booksModel.getValueAt(r,0);if(JOptionPane.showConfirmDialog(this,"Delete "+id+"?","Confirm",2)==0){db.removeBook(id);refreshTables();}});
-        delUser.addActionListener(e->{int r=usersTable.getSelectedRow();if(r<0)return;String u=(String)usersModel.getValueAt(r,0);if("admin".equals(u)){JOptionPane.showMessageDialog(this,"Cannot delete admin!");return;}if(JOptionPane.showConfirmDialog(this,"Delete "+u+"?","Confirm",2)==0){db.removeUser(u);refreshTables();}});
-        refresh.addActionListener(e->refreshTables());
-        save.addActionListener(e->{db.save();JOptionPane.showMessageDialog(this,"Saved!");});
-        history.addActionListener(e->new HistoryFrame(db,null,true));
-
-        JButton logout=btn("🚪 Logout"); logout.setBackground(new Color(220,53,69)); JPanel lp=new JPanel(new FlowLayout(FlowLayout.RIGHT)); lp.setOpaque(false); lp.add(logout); overlay.add(lp,BorderLayout.SOUTH);
-        logout.addActionListener(e->{if(JOptionPane.showConfirmDialog(this,"Logout?","Confirm",2)==0){dispose();new LoginFrame(db);}});
-        setVisible(true);
-    }
-
-    private JButton btn(String t){JButton b=new JButton(t);b.setBackground(new Color(22,78,120));b.setForeground(Color.WHITE);b.setFont(new Font("SansSerif",Font.BOLD,13));b.setFocusPainted(false);return b;}
-    private JPanel createCard(String t){JPanel c=new JPanel(new BorderLayout());c.setOpaque(true);c.setBackground(new Color(255,255,255,235));c.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(8,8,8,8)));JLabel l=new JLabel(" "+t);l.setFont(new Font("SansSerif",Font.BOLD,14));c.add(l,BorderLayout.NORTH);return c;}
-    private void refreshTables(){booksModel.setRowCount(0);for(Book b:db.getAllBooks())booksModel.addRow(new Object[]{b.getId(),b.getTitle(),b.getAuthor(),b.getAvailableCopies(),b.getTotalCopies()});usersModel.setRowCount(0);for(User u:db.getAllUsers())usersModel.addRow(new Object[]{u.getUsername(),u.getName(),(u instanceof Admin)?"Admin":"Student"});}
-    private void editBook(Book ex){JPanel p=new JPanel(new GridLayout(0,2,6,6));JTextField id=new JTextField(ex==null?"":ex.getId()),t=new JTextField(ex==null?"":ex.getTitle()),a=new JTextField(ex==null?"":ex.getAuthor());JSpinner c=new JSpinner(new SpinnerNumberModel(ex==null?1:ex.getTotalCopies(),1,1000,1));if(ex!=null)id.setEnabled(false);p.add(new JLabel("ID"));p.add(id);p.add(new JLabel("Title"));p.add(t);p.add(new JLabel("Author"));p.add(a);p.add(new JLabel("Copies"));p.add(c);if(JOptionPane.showConfirmDialog(this,p,ex==null?"Add Book":"Edit Book",2)==0){if(id.getText().trim().isEmpty())return;if(ex==null){if(db.getBook(id.getText())!=null){JOptionPane.showMessageDialog(this,"Book exists!");return;}db.addOrUpdateBook(new Book(id.getText(),t.getText(),a.getText(),(Integer)c.getValue()));}else{ex.setTitle(t.getText());ex.setAuthor(a.getText());ex.setTotalCopies((Integer)c.getValue());db.addOrUpdateBook(ex);}refreshTables();}}
-}
-
-/* ------------------------
-   STUDENT PANEL (modified)
-   - Removed the visible "My Borrowed Books" list from main UI (as requested)
-   - Added Return and Logout buttons to the top control bar (so they appear beside Search/Borrow/etc.)
-   - Return opens a dialog listing the student's borrowed books to pick and return
-   ------------------------ */
-class StudentPanel extends JFrame {
-    private final LibraryDatabase db; private final Student s;
-    private DefaultTableModel allModel;
-    public StudentPanel(LibraryDatabase db, Student s, String bgUrl){
-        this.db=db;this.s=s;
-        setTitle("Student Portal — "+s.getName());
-        setSize(900,600);setLocationRelativeTo(null);setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        BackgroundPanel bg=new BackgroundPanel(bgUrl);setContentPane(bg);
-        JPanel overlay=new JPanel(new BorderLayout());overlay.setOpaque(false);overlay.setBorder(new EmptyBorder(12,12,12,12));
-        JLabel h=new JLabel("👋 Welcome, "+s.getName());h.setFont(new Font("SansSerif",Font.BOLD,22));h.setForeground(Color.WHITE);overlay.add(h,BorderLayout.NORTH);
-
-        JSplitPane split=new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);split.setResizeWeight(1.0); // take full width with left component
-
-        allModel=new DefaultTableModel(new Object[]{"ID","Title","Author","Avail","Total"},0){public boolean isCellEditable(int r,int c){return false;}};JTable all=new JTable(allModel);
-        JPanel left=createCard("All Books"); JPanel sp=new JPanel(new FlowLayout(FlowLayout.LEFT,6,6));sp.setOpaque(false);
-        JTextField q=new JTextField(20);
-        JButton search=acc("Search"), borrow=pri("📘 Borrow"), refresh=acc("⟳ Refresh"), history=acc("📜 Borrowed History");
-        JButton ret=pri("📗 Return"), logout=pri("🚪 Logout");
-        // Move Return and Logout to the top control bar (different place than before)
-        sp.add(new JLabel("Search:"));sp.add(q);sp.add(search);sp.add(borrow);sp.add(refresh);sp.add(history);sp.add(ret);sp.add(logout);
-        left.add(sp,BorderLayout.NORTH);left.add(new JScrollPane(all)); split.setLeftComponent(left);
-
-        // Right side intentionally left empty / collapsed to "delete my borrowed books" from visible panel
-        JPanel empty=new JPanel(); empty.setOpaque(false); split.setRightComponent(empty);
-
-        overlay.add(split);bg.add(overlay);
-        refreshAll();
-
-        borrow.addActionListener(e->{int r=all.getSelectedRow();if(r<0){JOptionPane.showMessageDialog(this,"Select a book to borrow");return;}String id=(String)allModel.getValueAt(r,0);Book b=db.getBook(id);if(b==null){JOptionPane.showMessageDialog(this,"Book not found");return;}if(b.borrow()){s.borrowBook(id);db.addTransaction(new Transaction(s.getUsername(),b.getTitle(),"Borrowed"));db.save();refreshAll();JOptionPane.showMessageDialog(this,"Borrowed!");}else{JOptionPane.showMessageDialog(this,"No copies available");}});
-
-        // Return button now opens a dialog listing borrowed books for selection
-        ret.addActionListener(e->{
-            List<String> ids = s.getBorrowedBookIds();
-            if(ids.isEmpty()){ JOptionPane.showMessageDialog(this, "You have no borrowed books."); return; }
-            // build display array
-            String[] options = new String[ids.size()];
-            Map<String,String> idMap = new HashMap<>();
-            for(int i=0;i<ids.size();i++){ Book b = db.getBook(ids.get(i)); String disp = ids.get(i) + " - " + (b!=null?b.getTitle():"(unknown)"); options[i]=disp; idMap.put(disp, ids.get(i)); }
-            String sel = (String) JOptionPane.showInputDialog(this, "Select a book to return:", "Return Book", JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
-            if(sel!=null){ String id = idMap.get(sel); Book b = db.getBook(id); if(b!=null && b.giveBack()){ s.returnBook(id); db.addTransaction(new Transaction(s.getUsername(), b.getTitle(), "Returned")); db.save(); refreshAll(); JOptionPane.showMessageDialog(this, "Returned!"); } else { JOptionPane.showMessageDialog(this, "Unable to return (book record missing or max copies reached)."); } }
-        });
-
-        search.addActionListener(e->filter(q.getText().trim().toLowerCase()));
-        refresh.addActionListener(e->refreshAll());
-        history.addActionListener(e->new HistoryFrame(db,s.getUsername(),false));
-
-        logout.addActionListener(e->{ if(JOptionPane.showConfirmDialog(this,"Logout?","Confirm",2)==0){ dispose(); new LoginFrame(db); } });
-
-        setVisible(true);
-    }
-    private JPanel createCard(String t){JPanel c=new JPanel(new BorderLayout());c.setOpaque(true);c.setBackground(new Color(255,255,255,235));c.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(8,8,8,8)));JLabel l=new JLabel(" "+t);l.setFont(new Font("SansSerif",Font.BOLD,14));c.add(l,BorderLayout.NORTH);return c;}
-    private JButton pri(String t){JButton b=new JButton(t);b.setBackground(new Color(22,78,120));b.setForeground(Color.WHITE);b.setFont(new Font("SansSerif",Font.BOLD,13));b.setFocusPainted(false);return b;}
-    private JButton acc(String t){JButton b=new JButton(t);b.setBackground(new Color(245,245,245));b.setForeground(new Color(22,78,120));b.setFocusPainted(false);b.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(4,8,4,8)));return b;}
-    private void refreshAll(){ allModel.setRowCount(0); for(Book b:db.getAllBooks()) allModel.addRow(new Object[]{b.getId(),b.getTitle(),b.getAuthor(),b.getAvailableCopies(),b.getTotalCopies()}); }
-    private void filter(String q){ allModel.setRowCount(0); for(Book b:db.getAllBooks()){ if(b.getTitle().toLowerCase().contains(q)||b.getAuthor().toLowerCase().contains(q)||b.getId().toLowerCase().contains(q)) allModel.addRow(new Object[]{b.getId(),b.getTitle(),b.getAuthor(),b.getAvailableCopies(),b.getTotalCopies()}); } }
-}
-
-/* ------------------------
-   HISTORY FRAME
-   ------------------------ */
-class HistoryFrame extends JFrame {
-    public HistoryFrame(LibraryDatabase db, String user, boolean admin) {
-        setTitle(admin?"📜 Issued History":"📜 Borrowed History");
-        setSize(700,400);
-        setLocationRelativeTo(null);
-        DefaultTableModel m=new DefaultTableModel(new Object[]{"Username","Book Title","Action","Date"},0){public boolean isCellEditable(int r,int c){return false;}};
-        JTable t=new JTable(m);t.setRowHeight(24);
-        for(Transaction tr:db.getAllTransactions()) if(admin||tr.getUsername().equals(user)) m.addRow(new Object[]{tr.getUsername(),tr.getBookTitle(),tr.getAction(),tr.getDate()});
-        add(new JScrollPane(t));setVisible(true);
-    }
-}
+/*
+Library3.java
+Single-file Java application (OOP + Swing + file-based persistence)
+
+Features:
+ - Login & Registration (Admin & Student)
+ - Admin Panel: Manage Books, Users, Issued History
+ - Student Panel: Browse, Search, Borrow, Return, Borrowed History
+ - Persistent storage: users.bin (BlockCodec), books.db (memory-mapped catalog),
+   history.log plus monthly segments under history-archive/
+ - Clean, semi-transparent Swing UI with background image
+
+Compile & Run:
+    javac Library3.java
+    java Library3
+    java Library3 --migrate [dir]    (converts legacy .data files once)
+*/
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import javax.swing.border.*;
+import javax.swing.table.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/* ------------------------
+   MAIN ENTRY POINT
+   ------------------------ */
+public class Library3 {
+    /**
+     * {@code java Library3} opens the desktop app; {@code java Library3 --server [port]} runs only the
+     * HTTP/JSON API. Setting {@code -Dlibrary.http.port} also serves the API next to the desktop app.
+     * {@code java Library3 --migrate [dir]} converts the legacy .data files once and exits;
+     * {@code --import books|users <file>} and {@code --export books|users|history <file>} move
+     * CSV or JSONL in and out without the UI.
+     */
+    public static void main(String[] args) throws IOException {
+        long t0 = System.nanoTime();
+        if (args.length > 0 && "--migrate".equals(args[0])) {
+            migrate(new File(args.length > 1 ? args[1] : System.getProperty("library.dataDir", ".")));
+            return;
+        }
+        if (args.length > 0 && ("--import".equals(args[0]) || "--export".equals(args[0]))) {
+            System.exit(transfer(args) ? 0 : 1);
+        }
+        boolean headless = args.length > 0 && "--server".equals(args[0]);
+        LibraryDatabase db = open(headless);
+        LibraryService svc = new LibraryService(db);
+        Integer port = headless && args.length > 1 ? Integer.valueOf(args[1]) : Integer.getInteger("library.http.port", headless ? 8080 : -1);
+        if (port >= 0) {
+            LibraryHttpServer server = new LibraryHttpServer(svc, new InetSocketAddress(System.getProperty("library.http.bind", "0.0.0.0"), port));
+            server.start();
+            System.out.println("Library API listening on port " + server.getPort());
+        }
+        if (headless) return;
+        EdtWatchdog.start();
+        try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
+        SwingUtilities.invokeLater(() -> {
+            new LoginFrame(svc);
+            db.recordStartupPhase("login window", (System.nanoTime() - t0) / 1_000_000);
+        });
+    }
+
+    /** Opens the data directory, or explains why not (another program has it) and exits. */
+    private static LibraryDatabase open(boolean headless) {
+        try {
+            return new LibraryDatabase();
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            if (!headless && !GraphicsEnvironment.isHeadless()) JOptionPane.showMessageDialog(null, e.getMessage(), "Digital Library", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            throw e;
+        }
+    }
+
+    private static boolean transfer(String[] args) throws IOException {
+        boolean importing = "--import".equals(args[0]);
+        BulkTransfer.Kind kind;
+        try { kind = BulkTransfer.Kind.valueOf(args.length > 1 ? args[1].toUpperCase(Locale.ROOT) : ""); }
+        catch (IllegalArgumentException e) { kind = null; }
+        if (args.length < 3 || kind == null || (importing && kind == BulkTransfer.Kind.HISTORY)) {
+            System.err.println("usage: java Library3 --import books|users <file.csv|file.jsonl>");
+            System.err.println("       java Library3 --export books|users|history <file.csv|file.jsonl>");
+            return false;
+        }
+        File file = new File(args[2]);
+        LibraryDatabase db = new LibraryDatabase();
+        try {
+            BulkTransfer.Progress progress = (n, done, total) ->
+                System.err.printf("\r%,d records (%d%%)", n, total == 0 ? 100 : done * 100 / total);
+            if (!importing) {
+                long n = BulkTransfer.export(db, kind, file, progress);
+                System.err.println();
+                System.out.println("Exported " + n + " " + kind.name().toLowerCase(Locale.ROOT) + " to " + file);
+                return true;
+            }
+            BulkTransfer.Report r = kind == BulkTransfer.Kind.BOOKS ? BulkTransfer.importBooks(db, file, progress) : BulkTransfer.importUsers(db, file, progress);
+            System.err.println();
+            for (String e : r.errors) System.err.println(e);
+            System.out.println(r);
+            return r.failed == 0;
+        } finally { db.close(); }
+    }
+
+    /** Opening a database imports whatever legacy files it finds; this does it eagerly and reports the result. */
+    private static void migrate(File dir) throws IOException {
+        String[][] pairs = { { "books.data", "books.db" }, { "users.data", "users.bin" }, { "history.data", "history.log" } };
+        LibraryDatabase db = new LibraryDatabase(dir);
+        db.awaitLoaded();
+        db.flush();
+        db.close();
+        for (String[] p : pairs) {
+            File from = new File(dir, p[0]), to = new File(dir, p[1]);
+            System.out.printf("%-13s %10s -> %-12s %10d bytes%n", p[0], from.exists() ? from.length() + " bytes" : "(none)", p[1], to.length());
+        }
+        System.out.println("Startup (ms): " + db.getStartupTimings());
+        System.out.println("The .data files are no longer read and can be archived.");
+    }
+}
+
+/* ------------------------
+   MODEL CLASSES
+   ------------------------ */
+class Book implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String id, title, author;
+    private int totalCopies, availableCopies;
+    private transient int version; // of its books.db slot, see MappedBookStore
+
+    public Book(String id, String title, String author, int copies) {
+        this.id = id; this.title = title; this.author = author;
+        this.totalCopies = copies; this.availableCopies = copies;
+    }
+
+    public String getId() { return id; }
+    public String getTitle() { return title; }
+    public String getAuthor() { return author; }
+    public synchronized int getTotalCopies() { return totalCopies; }
+    public synchronized int getAvailableCopies() { return availableCopies; }
+
+    public void setTitle(String t) { title = t; }
+    public void setAuthor(String a) { author = a; }
+    public synchronized void setTotalCopies(int c) {
+        int diff = c - this.totalCopies;
+        this.totalCopies = c;
+        this.availableCopies += diff;
+        if (this.availableCopies < 0) this.availableCopies = 0;
+    }
+
+    public synchronized boolean borrow() {
+        if (availableCopies > 0) { availableCopies--; return true; }
+        return false;
+    }
+
+    public synchronized boolean giveBack() {
+        if (availableCopies < totalCopies) { availableCopies++; return true; }
+        return false;
+    }
+
+    synchronized void restoreAvailable(int available) { this.availableCopies = available; }
+    synchronized void restoreCopies(int total, int available) { this.totalCopies = total; this.availableCopies = available; }
+    int getVersion() { return version; }
+    void setVersion(int v) { version = v; }
+}
+
+abstract class User implements Serializable {
+    private static final long serialVersionUID = 1L;
+    protected String username, password, name;
+    private transient int version; // bumped on every change to the account, see UserCodec
+    public User(String u, String p, String n) { username=u; password=p; name=n; }
+    public String getUsername() { return username; }
+    public String getPassword() { return password; }
+    public String getName() { return name; }
+    public void setPassword(String p) { password = p; }
+    public void setName(String n) { name = n; }
+    int getVersion() { return version; }
+    void setVersion(int v) { version = v; }
+}
+
+class Student extends User {
+    private static final long serialVersionUID = 1L;
+    private List<String> borrowedBookIds = new ArrayList<>();
+    public Student(String u, String p, String n) { super(u,p,n); }
+    public synchronized List<String> getBorrowedBookIds() { return new ArrayList<>(borrowedBookIds); }
+    public synchronized boolean hasBorrowed(String id) { return borrowedBookIds.contains(id); }
+    public synchronized void borrowBook(String id) { borrowedBookIds.add(id); }
+    public synchronized boolean returnBook(String id) { return borrowedBookIds.remove(id); }
+    synchronized void restoreLoans(List<String> ids) { borrowedBookIds = new ArrayList<>(ids); }
+    synchronized Student copy() {
+        Student c = new Student(username, password, name);
+        c.borrowedBookIds = new ArrayList<>(borrowedBookIds);
+        c.setVersion(getVersion());
+        return c;
+    }
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException { out.defaultWriteObject(); }
+}
+
+class Admin extends User {
+    private static final long serialVersionUID = 1L;
+    public Admin(String u, String p, String n) { super(u,p,n); }
+}
+
+/* ------------------------
+   TRANSACTION MODEL
+   - A Transaction is a row materialized from HistoryStore for display or export; the
+     history itself is kept column-wise (see HistoryStore).
+   - The date is an epoch-millis timestamp and is only formatted when shown.
+   ------------------------ */
+enum LoanAction {
+    BORROWED("Borrowed"), RETURNED("Returned");
+    private final String label;
+    LoanAction(String label) { this.label = label; }
+    public String getLabel() { return label; }
+    static LoanAction of(String label) { return "Returned".equalsIgnoreCase(label) ? RETURNED : BORROWED; }
+}
+
+class Transaction implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+    // legacy history.data holds the original four-string form; keep reading and writing it
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("username", String.class), new ObjectStreamField("bookTitle", String.class),
+        new ObjectStreamField("action", String.class), new ObjectStreamField("date", String.class)
+    };
+
+    private transient long time;
+    private transient LoanAction action;
+    private transient String username, bookId, bookTitle;
+
+    public Transaction(String username, String bookTitle, String action) {
+        this(System.currentTimeMillis(), LoanAction.of(action), username, null, bookTitle);
+    }
+    Transaction(String username, String bookTitle, String action, String date) {
+        this(parseDate(date), LoanAction.of(action), username, null, bookTitle);
+    }
+    Transaction(long time, LoanAction action, String username, String bookId, String bookTitle) {
+        this.time = time;
+        this.action = action;
+        this.username = username;
+        this.bookId = bookId;
+        this.bookTitle = bookTitle;
+    }
+    public String getUsername() { return username; }
+    public String getBookId() { return bookId; }
+    public String getBookTitle() { return bookTitle; }
+    public String getAction() { return action.getLabel(); }
+    public LoanAction getActionType() { return action; }
+    public long getTime() { return time; }
+    public String getDate() { return DATE_FORMAT.format(Instant.ofEpochMilli(time)); }
+
+    static long parseDate(String date) {
+        if (date == null) return 0L;
+        try { return ZonedDateTime.parse(date, DATE_FORMAT).toInstant().toEpochMilli(); }
+        catch (RuntimeException e) { return 0L; }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        username = (String) f.get("username", null);
+        bookTitle = (String) f.get("bookTitle", null);
+        action = LoanAction.of((String) f.get("action", null));
+        time = parseDate((String) f.get("date", null));
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("username", username); f.put("bookTitle", bookTitle);
+        f.put("action", getAction()); f.put("date", getDate());
+        out.writeFields();
+    }
+}
+
+/* ------------------------
+   HISTORY STORE (columnar, dictionary-coded)
+   - One row per transaction spread over primitive columns: timestamp, action ordinal,
+     user code and book code (17 bytes a row instead of four Strings and a Transaction).
+   - User names and book ids are dictionary-coded; titles are not copied per row but looked
+     up from the Book. Only records whose book is gone (or that never had an id, from the
+     legacy format) keep one title per distinct book.
+   - Secondary indexes, maintained on append: a row list per user and per book, each kept in
+     time order, and a time-ordered permutation of all rows that only exists once a record
+     arrived out of order (until then row order is time order). Lookups cost a hash probe
+     plus a binary search; rows are materialized only when a page is read.
+   ------------------------ */
+class HistoryStore {
+    private static final LoanAction[] ACTIONS = LoanAction.values();
+
+    private long[] times = new long[1024];
+    private byte[] actions = new byte[1024];
+    private int[] users = new int[1024];
+    private int[] books = new int[1024];
+    private int size;
+
+    private final StringDictionary userDict = new StringDictionary();
+    private final StringDictionary bookDict = new StringDictionary(); // book id, or NO_ID + title
+    private final List<Rows> byUser = new ArrayList<>(), byBook = new ArrayList<>(); // indexed by code
+    private Rows byTime; // null while rows arrive in time order
+    private long maxTime = Long.MIN_VALUE;
+    private final Map<Integer, String> orphanTitles = new HashMap<>();
+    private final Function<String, Book> lookup;
+    private final Predicate<String> exists;
+    static final String NO_ID = "\u0000";
+
+    /** Row numbers ordered by their timestamp. */
+    private final class Rows {
+        int[] rows = new int[4];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            int at = size;
+            while (at > 0 && times[rows[at - 1]] > times[row]) at--; // only late records walk back
+            System.arraycopy(rows, at, rows, at + 1, size - at);
+            rows[at] = row;
+            size++;
+        }
+
+        /** First position whose time is {@code >= time}. */
+        int lowerBound(long time) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[rows[mid]] < time) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /** Interns strings to dense int codes. */
+    static final class StringDictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        int code(String s) {
+            Integer c = codes.get(s);
+            if (c == null) { c = values.size(); values.add(s); codes.put(s, c); }
+            return c;
+        }
+        int find(String s) { Integer c = codes.get(s); return c == null ? -1 : c; }
+        String get(int code) { return values.get(code); }
+        int size() { return values.size(); }
+    }
+
+    HistoryStore(Function<String, Book> lookup, Predicate<String> exists) {
+        this.lookup = lookup;
+        this.exists = exists;
+    }
+
+    public synchronized int append(long time, LoanAction action, String username, String bookId, String bookTitle) {
+        if (size == times.length) {
+            int cap = size + (size >> 1);
+            times = Arrays.copyOf(times, cap); actions = Arrays.copyOf(actions, cap);
+            users = Arrays.copyOf(users, cap); books = Arrays.copyOf(books, cap);
+        }
+        int row = size++;
+        times[row] = time;
+        actions[row] = (byte) action.ordinal();
+        users[row] = userDict.code(username);
+        books[row] = bookCode(bookId, bookTitle);
+        postings(byUser, users[row]).add(row);
+        postings(byBook, books[row]).add(row);
+        if (time < maxTime && byTime == null) {
+            byTime = new Rows();
+            byTime.rows = new int[Math.max(4, times.length)];
+            for (int i = 0; i < row; i++) byTime.rows[i] = i;
+            byTime.size = row;
+        }
+        if (byTime != null) byTime.add(row);
+        maxTime = Math.max(maxTime, time);
+        return row;
+    }
+
+    private Rows postings(List<Rows> index, int code) {
+        while (index.size() <= code) index.add(new Rows());
+        return index.get(code);
+    }
+
+    public int append(Transaction t) {
+        return append(t.getTime(), t.getActionType(), t.getUsername(), t.getBookId(), t.getBookTitle());
+    }
+
+    /** The key a book's rows are filed under: its id, or NO_ID + title for records that have none. */
+    static String bookKey(String bookId, String title) {
+        return bookId != null && !bookId.isEmpty() ? bookId : NO_ID + title;
+    }
+
+    private int bookCode(String bookId, String title) {
+        boolean hasId = bookId != null && !bookId.isEmpty();
+        String key = bookKey(bookId, title);
+        int before = bookDict.size();
+        int code = bookDict.code(key);
+        if (code == before && (!hasId || !exists.test(bookId))) orphanTitles.put(code, title);
+        return code;
+    }
+
+    /** Keeps the title of a deleted book so its history still reads correctly. */
+    public synchronized void retireBook(String bookId, String title) {
+        int code = bookDict.find(bookId);
+        if (code >= 0) orphanTitles.put(code, title);
+    }
+
+    public synchronized int size() { return size; }
+
+    /** The columns needed to fold rows [0, size) into aggregates, see {@link #snapshot()}. */
+    static final class Snapshot {
+        final long[] times;
+        final byte[] actions;
+        final int[] users, books;
+        final String[] userKeys, bookKeys; // code -> user name, book key
+        final int size;
+
+        Snapshot(long[] times, byte[] actions, int[] users, String[] userKeys, int[] books, String[] bookKeys, int size) {
+            this.times = times; this.actions = actions; this.users = users; this.userKeys = userKeys;
+            this.books = books; this.bookKeys = bookKeys; this.size = size;
+        }
+    }
+
+    /**
+     * The rows appended so far, readable without the lock: rows never change once written and
+     * growing a column copies it, so the arrays are shared rather than copied.
+     */
+    public synchronized Snapshot snapshot() {
+        String[] keys = new String[bookDict.size()], names = new String[userDict.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = bookDict.get(i);
+        for (int i = 0; i < names.length; i++) names[i] = userDict.get(i);
+        return new Snapshot(times, actions, users, names, books, keys, size);
+    }
+
+    /** Title for a book key, also for books that have since been deleted. */
+    public synchronized String titleOf(String key) {
+        if (key.startsWith(NO_ID)) return key.substring(NO_ID.length());
+        return titleOf(bookDict.find(key), key);
+    }
+
+    public synchronized Transaction get(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + " of " + size);
+        String key = bookDict.get(books[row]);
+        String bookId = key.startsWith(NO_ID) ? null : key;
+        return new Transaction(times[row], ACTIONS[actions[row]], userDict.get(users[row]), bookId, titleOf(books[row], bookId));
+    }
+
+    private String titleOf(int code, String bookId) {
+        Book b = bookId == null ? null : lookup.apply(bookId);
+        if (b != null) return b.getTitle();
+        String t = orphanTitles.get(code);
+        return t != null ? t : bookId;
+    }
+
+    public synchronized long timeAt(int row) { return times[row]; }
+
+    // Index queries. Each returns a view over [from, to) of the index; the user and book
+    // views with the full time range are live and grow as records are appended.
+
+    /** All rows in time order with {@code from <= time < to}. */
+    public RowSource<Transaction> between(long from, long to) {
+        int lo, hi;
+        synchronized (this) {
+            if (byTime == null) { lo = lowerBound(from); hi = lowerBound(to); }
+            else { lo = byTime.lowerBound(from); hi = byTime.lowerBound(to); }
+        }
+        int count = Math.max(0, hi - lo);
+        return RowSources.of(() -> count, i -> get(timeOrderedRow(lo + i)));
+    }
+
+    public RowSource<Transaction> ofUser(String username) { return ofUser(username, Long.MIN_VALUE, Long.MAX_VALUE); }
+    public RowSource<Transaction> ofUser(String username, long from, long to) { return slice(byUser, userDict, username, from, to); }
+
+    public RowSource<Transaction> ofBook(String bookId) { return ofBook(bookId, Long.MIN_VALUE, Long.MAX_VALUE); }
+    public RowSource<Transaction> ofBook(String bookId, long from, long to) { return slice(byBook, bookDict, bookId, from, to); }
+
+    private RowSource<Transaction> slice(List<Rows> index, StringDictionary dict, String key, long from, long to) {
+        if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            // live: the posting list may not exist yet, so it is looked up again on each call
+            return RowSources.of(() -> { synchronized (this) { Rows r = find(index, dict, key); return r == null ? 0 : r.size; } },
+                                 i -> { synchronized (this) { return get(find(index, dict, key).rows[i]); } });
+        }
+        Rows r;
+        int lo, hi;
+        synchronized (this) {
+            r = find(index, dict, key);
+            if (r == null) return RowSources.of(() -> 0, i -> null);
+            lo = r.lowerBound(from);
+            hi = r.lowerBound(to);
+        }
+        int count = Math.max(0, hi - lo);
+        return RowSources.of(() -> count, i -> { synchronized (this) { return get(r.rows[lo + i]); } });
+    }
+
+    private Rows find(List<Rows> index, StringDictionary dict, String key) {
+        int code = key == null ? -1 : dict.find(key);
+        return code < 0 || code >= index.size() ? null : index.get(code);
+    }
+
+    private synchronized int timeOrderedRow(int i) { return byTime == null ? i : byTime.rows[i]; }
+
+    private int lowerBound(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
+
+/* ------------------------
+   CIRCULATION STATS (admin analytics)
+   - Aggregates kept current as loans are recorded, so the dashboard never scans history:
+     borrows and returns per calendar day, and borrows per book in total and per month.
+     A query touches one entry per day or per book borrowed in the range asked for.
+   - Rebuilt at startup from each archived segment and a snapshot of the hot HistoryStore
+     with fork/join: each task folds a slice of rows into partial aggregates keyed by book
+     code, partials are merged pairwise and translated to book keys once. Records appended
+     after the snapshot are counted incrementally instead, so none is missed or counted
+     twice; records dropped by retention are subtracted.
+   - Days and months are those of the system time zone; books are keyed as in
+     HistoryStore (the id, or NO_ID + title for legacy records).
+   ------------------------ */
+final class CirculationStats {
+    private static final int SLICE_ROWS = 1 << 16;
+    private static final LoanAction[] ACTIONS = LoanAction.values();
+
+    private final ZoneId zone;
+    private final DayClock clock;
+    private final Map<Long, long[]> days = new HashMap<>();               // epoch day -> {borrowed, returned}
+    private final Map<String, int[]> borrowsByBook = new HashMap<>();      // all-time borrows
+    private final Map<Integer, Map<String, int[]>> borrowsByMonth = new HashMap<>(); // month index -> book -> borrows
+    private long borrowed, returned;
+
+    /** A book and how often it was borrowed. */
+    static final class Ranked {
+        final String key;
+        final int loans;
+        Ranked(String key, int loans) { this.key = key; this.loans = loans; }
+        /** The book id, or null for a legacy record that only has a title. */
+        String bookId() { return key.startsWith(HistoryStore.NO_ID) ? null : key; }
+    }
+
+    static final class Day {
+        final LocalDate date;
+        final long borrowed, returned;
+        Day(LocalDate date, long borrowed, long returned) { this.date = date; this.borrowed = borrowed; this.returned = returned; }
+    }
+
+    static final class Summary {
+        final long borrowed, returned;
+        final int titlesBorrowed;
+        Summary(long borrowed, long returned, int titlesBorrowed) { this.borrowed = borrowed; this.returned = returned; this.titlesBorrowed = titlesBorrowed; }
+        long onLoan() { return Math.max(0, borrowed - returned); }
+    }
+
+    CirculationStats(ZoneId zone) {
+        this.zone = zone;
+        this.clock = new DayClock(zone);
+    }
+
+    static int monthIndex(int year, int month) { return year * 12 + month - 1; }
+    static int monthIndex(YearMonth m) { return monthIndex(m.getYear(), m.getMonthValue()); }
+
+    /** Epoch millis -> calendar day and month, remembering the bounds of the last day seen (rows are mostly in time order). */
+    static final class DayClock {
+        private final ZoneId zone;
+        private long start = 1, end = 0, day;
+        private int month;
+
+        DayClock(ZoneId zone) { this.zone = zone; }
+
+        long day(long time) { if (time < start || time >= end) locate(time); return day; }
+        int month(long time) { if (time < start || time >= end) locate(time); return month; }
+
+        private void locate(long time) {
+            LocalDate d = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+            day = d.toEpochDay();
+            month = monthIndex(d.getYear(), d.getMonthValue());
+            start = d.atStartOfDay(zone).toInstant().toEpochMilli();
+            end = d.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+    }
+
+    /** Forgets every count, before a recount. */
+    public synchronized void clear() {
+        days.clear(); borrowsByBook.clear(); borrowsByMonth.clear();
+        borrowed = returned = 0;
+    }
+
+    /** Counts one history record; called for every record appended after the startup snapshot. */
+    public synchronized void record(long time, LoanAction action, String bookKey) {
+        long[] d = days.computeIfAbsent(clock.day(time), k -> new long[2]);
+        if (action == LoanAction.RETURNED) { d[1]++; returned++; return; }
+        d[0]++;
+        borrowed++;
+        borrowsByBook.computeIfAbsent(bookKey, k -> new int[1])[0]++;
+        borrowsByMonth.computeIfAbsent(clock.month(time), k -> new HashMap<>()).computeIfAbsent(bookKey, k -> new int[1])[0]++;
+    }
+
+    /** Folds the snapshot's rows in on the common fork/join pool and adds them to what was recorded meanwhile. */
+    public void add(HistoryStore.Snapshot s) { merge(s, 1); }
+
+    /** Takes rows out again, e.g. history dropped by retention. */
+    public void remove(HistoryStore.Snapshot s) { merge(s, -1); }
+
+    private void merge(HistoryStore.Snapshot s, int sign) {
+        Partial p = s.size == 0 ? new Partial(s.bookKeys.length) : ForkJoinPool.commonPool().invoke(new Fold(s, 0, s.size, zone));
+        synchronized (this) {
+            for (Map.Entry<Long, long[]> e : p.days.entrySet()) {
+                long b = sign * e.getValue()[0], r = sign * e.getValue()[1];
+                long[] d = days.computeIfAbsent(e.getKey(), k -> new long[2]);
+                d[0] += b; d[1] += r;
+                if (d[0] == 0 && d[1] == 0) days.remove(e.getKey());
+                borrowed += b; returned += r;
+            }
+            for (int code = 0; code < p.books.length; code++) {
+                if (p.books[code] != 0) add(borrowsByBook, s.bookKeys[code], sign * p.books[code]);
+            }
+            for (Map.Entry<Integer, Map<Integer, int[]>> m : p.months.entrySet()) {
+                Map<String, int[]> month = borrowsByMonth.computeIfAbsent(m.getKey(), k -> new HashMap<>());
+                for (Map.Entry<Integer, int[]> e : m.getValue().entrySet()) add(month, s.bookKeys[e.getKey()], sign * e.getValue()[0]);
+                if (month.isEmpty()) borrowsByMonth.remove(m.getKey());
+            }
+        }
+    }
+
+    /** Adds {@code n} (possibly negative) to a count, dropping it at zero so "titles borrowed" stays exact. */
+    private static void add(Map<String, int[]> counts, String key, int n) {
+        int[] c = counts.computeIfAbsent(key, k -> new int[1]);
+        if ((c[0] += n) <= 0) counts.remove(key);
+    }
+
+    /** Aggregates of a slice of rows, by book code. */
+    private static final class Partial {
+        final Map<Long, long[]> days = new HashMap<>();
+        final int[] books;
+        final Map<Integer, Map<Integer, int[]>> months = new HashMap<>();
+
+        Partial(int codes) { books = new int[codes]; }
+
+        Partial merge(Partial o) {
+            for (Map.Entry<Long, long[]> e : o.days.entrySet()) {
+                long[] d = days.computeIfAbsent(e.getKey(), k -> new long[2]);
+                d[0] += e.getValue()[0]; d[1] += e.getValue()[1];
+            }
+            for (int i = 0; i < books.length; i++) books[i] += o.books[i];
+            for (Map.Entry<Integer, Map<Integer, int[]>> m : o.months.entrySet()) {
+                Map<Integer, int[]> month = months.get(m.getKey());
+                if (month == null) { months.put(m.getKey(), m.getValue()); continue; }
+                for (Map.Entry<Integer, int[]> e : m.getValue().entrySet()) month.computeIfAbsent(e.getKey(), k -> new int[1])[0] += e.getValue()[0];
+            }
+            return this;
+        }
+    }
+
+    private static final class Fold extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final HistoryStore.Snapshot s;
+        private final int lo, hi;
+        private final ZoneId zone;
+
+        Fold(HistoryStore.Snapshot s, int lo, int hi, ZoneId zone) { this.s = s; this.lo = lo; this.hi = hi; this.zone = zone; }
+
+        @Override
+        protected Partial compute() {
+            if (hi - lo > SLICE_ROWS) {
+                int mid = (lo + hi) >>> 1;
+                Fold left = new Fold(s, lo, mid, zone);
+                left.fork();
+                Partial right = new Fold(s, mid, hi, zone).compute();
+                return left.join().merge(right);
+            }
+            Partial p = new Partial(s.bookKeys.length);
+            DayClock clock = new DayClock(zone);
+            long lastDay = Long.MIN_VALUE;
+            long[] day = null;
+            int lastMonth = Integer.MIN_VALUE;
+            Map<Integer, int[]> month = null;
+            for (int row = lo; row < hi; row++) {
+                long t = s.times[row];
+                long d = clock.day(t);
+                if (d != lastDay) { day = p.days.computeIfAbsent(d, k -> new long[2]); lastDay = d; }
+                if (ACTIONS[s.actions[row]] == LoanAction.RETURNED) { day[1]++; continue; }
+                day[0]++;
+                int code = s.books[row];
+                p.books[code]++;
+                int m = clock.month(t);
+                if (m != lastMonth) { month = p.months.computeIfAbsent(m, k -> new HashMap<>()); lastMonth = m; }
+                month.computeIfAbsent(code, k -> new int[1])[0]++;
+            }
+            return p;
+        }
+    }
+
+    // Queries
+
+    public synchronized Summary summary() { return new Summary(borrowed, returned, borrowsByBook.size()); }
+
+    public synchronized int timesBorrowed(String bookKey) {
+        int[] n = borrowsByBook.get(bookKey);
+        return n == null ? 0 : n[0];
+    }
+
+    /** The {@code limit} most borrowed books over all time, most borrowed first. */
+    public synchronized List<Ranked> mostBorrowed(int limit) { return top(borrowsByBook, limit); }
+
+    /** The {@code limit} most borrowed books in the months {@code from..to} (inclusive), most borrowed first. */
+    public synchronized List<Ranked> mostBorrowed(YearMonth from, YearMonth to, int limit) {
+        int first = monthIndex(from), last = monthIndex(to);
+        Map<String, int[]> only = null, sum = null;
+        for (Map.Entry<Integer, Map<String, int[]>> m : borrowsByMonth.entrySet()) {
+            if (m.getKey() < first || m.getKey() > last) continue;
+            if (only == null) { only = m.getValue(); continue; }
+            if (sum == null) { sum = new HashMap<>(); addInto(sum, only); }
+            addInto(sum, m.getValue());
+        }
+        return top(sum != null ? sum : only != null ? only : Collections.<String, int[]>emptyMap(), limit);
+    }
+
+    private static void addInto(Map<String, int[]> sum, Map<String, int[]> month) {
+        for (Map.Entry<String, int[]> e : month.entrySet()) sum.computeIfAbsent(e.getKey(), k -> new int[1])[0] += e.getValue()[0];
+    }
+
+    private static List<Ranked> top(Map<String, int[]> counts, int limit) {
+        if (limit <= 0) return new ArrayList<>();
+        PriorityQueue<Ranked> best = new PriorityQueue<>(Math.max(1, limit + 1), CirculationStats::byLoans);
+        for (Map.Entry<String, int[]> e : counts.entrySet()) {
+            int n = e.getValue()[0];
+            if (best.size() == limit && n <= best.peek().loans) continue;
+            best.add(new Ranked(e.getKey(), n));
+            if (best.size() > limit) best.poll();
+        }
+        List<Ranked> out = new ArrayList<>(best);
+        out.sort(Collections.reverseOrder(CirculationStats::byLoans));
+        return out;
+    }
+
+    private static int byLoans(Ranked a, Ranked b) {
+        int c = Integer.compare(a.loans, b.loans);
+        return c != 0 ? c : b.key.compareTo(a.key); // ties: lower key ranks higher
+    }
+
+    /** Borrows and returns for each day {@code from..to} (inclusive), including days without any. */
+    public synchronized List<Day> perDay(LocalDate from, LocalDate to) {
+        List<Day> out = new ArrayList<>();
+        for (long d = from.toEpochDay(), last = to.toEpochDay(); d <= last; d++) {
+            long[] n = days.get(d);
+            out.add(new Day(LocalDate.ofEpochDay(d), n == null ? 0 : n[0], n == null ? 0 : n[1]));
+        }
+        return out;
+    }
+
+    public ZoneId zone() { return zone; }
+}
+
+/* ------------------------
+   LOAN TABLE (open loans, both ways)
+   - Who holds which book, indexed by book (holders) and by user (loans). Entries are copy
+     counts, since a student may hold several copies of one book, so a borrow or a return
+     is one hash update at each end however many loans there are.
+   - LibraryDatabase fills it from the students' loan lists at startup and keeps the two in
+     step. Deleting an account returns its books first (logged returns), then drops it here.
+   - Verification (LibraryDatabase.verifyLoans) rebuilds the open loans from history, archived segments and hot store, as
+     net borrows per (user, book): slices of rows are folded in parallel with fork/join and
+     the partials summed, as in CirculationStats. It lists every difference from the table,
+     from the students' lists and from the books' copy counts. A user with any record
+     without a book id (legacy, by title only) cannot be rebuilt, so their loans are not
+     compared with history, only counted as skipped; with retention on, loans older than it
+     show up as drift.
+   ------------------------ */
+final class LoanTable {
+    private static final int SLICE_ROWS = 1 << 16;
+    private static final int MAX_DRIFT = 1000;
+    private static final LoanAction[] ACTIONS = LoanAction.values();
+
+    private final Map<String, Map<String, int[]>> holders = new HashMap<>(); // book id -> user -> copies
+    private final Map<String, Map<String, int[]>> loans = new HashMap<>();   // user -> book id -> copies
+    private int size;
+
+    /** Outcome of a verification: the first MAX_DRIFT differences found, and how many there were. */
+    static final class Report {
+        int loans, drifted, skipped;
+        long records, millis;
+        final List<String> drift = new ArrayList<>();
+
+        void drift(String message) {
+            drifted++;
+            if (drift.size() < MAX_DRIFT) drift.add(message);
+        }
+
+        boolean consistent() { return drifted == 0; }
+
+        @Override
+        public String toString() {
+            return (drifted == 0 ? "Loans consistent: " : "Loan drift: " + drifted + " differences; ")
+                + loans + " open loans, " + records + " history records checked in " + millis + " ms"
+                + (skipped == 0 ? "" : "; " + skipped + " accounts with legacy records not checked against history");
+        }
+    }
+
+    public synchronized void borrowed(String user, String bookId) {
+        add(holders, bookId, user, 1);
+        add(loans, user, bookId, 1);
+        size++;
+    }
+
+    /** False (and no change) if {@code user} holds no copy of {@code bookId}. */
+    public synchronized boolean returned(String user, String bookId) {
+        if (count(loans, user, bookId) == 0) return false;
+        add(holders, bookId, user, -1);
+        add(loans, user, bookId, -1);
+        size--;
+        return true;
+    }
+
+    /** Makes {@code user}'s loans exactly {@code bookIds}, e.g. a loan list read from users.bin. */
+    public synchronized void replace(String user, Collection<String> bookIds) {
+        Map<String, int[]> old = loans.remove(user);
+        if (old != null) {
+            for (Map.Entry<String, int[]> e : old.entrySet()) { add(holders, e.getKey(), user, -e.getValue()[0]); size -= e.getValue()[0]; }
+        }
+        for (String id : bookIds) borrowed(user, id);
+    }
+
+    public synchronized void clear() { holders.clear(); loans.clear(); size = 0; }
+
+    /** Open loans in total. */
+    public synchronized int size() { return size; }
+
+    /** Copies of {@code bookId} on loan. */
+    public synchronized int onLoan(String bookId) {
+        Map<String, int[]> h = holders.get(bookId);
+        if (h == null) return 0;
+        int n = 0;
+        for (int[] c : h.values()) n += c[0];
+        return n;
+    }
+
+    /** Who holds {@code bookId}, sorted; a user appears once per copy. */
+    public synchronized List<String> holders(String bookId) { return expand(holders.get(bookId)); }
+
+    /** The books {@code user} holds, sorted; a book appears once per copy. */
+    public synchronized List<String> loansOf(String user) { return expand(loans.get(user)); }
+
+    public synchronized boolean holds(String user, String bookId) { return count(loans, user, bookId) > 0; }
+
+    private static List<String> expand(Map<String, int[]> counts) {
+        List<String> out = new ArrayList<>();
+        if (counts == null) return out;
+        for (Map.Entry<String, int[]> e : counts.entrySet()) for (int i = 0; i < e.getValue()[0]; i++) out.add(e.getKey());
+        Collections.sort(out);
+        return out;
+    }
+
+    private static int count(Map<String, Map<String, int[]>> index, String a, String b) {
+        Map<String, int[]> m = index.get(a);
+        int[] c = m == null ? null : m.get(b);
+        return c == null ? 0 : c[0];
+    }
+
+    /** Adds {@code n} to the (a, b) count, dropping entries that reach zero. */
+    private static void add(Map<String, Map<String, int[]>> index, String a, String b, int n) {
+        Map<String, int[]> m = index.computeIfAbsent(a, k -> new HashMap<>());
+        int[] c = m.computeIfAbsent(b, k -> new int[1]);
+        if ((c[0] += n) <= 0) { m.remove(b); if (m.isEmpty()) index.remove(a); }
+    }
+
+    /** user -> book id -> copies, copied. */
+    synchronized Map<String, Map<String, int[]>> copy() {
+        Map<String, Map<String, int[]>> out = new HashMap<>();
+        for (Map.Entry<String, Map<String, int[]>> e : loans.entrySet()) {
+            Map<String, int[]> m = new HashMap<>();
+            for (Map.Entry<String, int[]> b : e.getValue().entrySet()) m.put(b.getKey(), new int[] { b.getValue()[0] });
+            out.put(e.getKey(), m);
+        }
+        return out;
+    }
+
+    // Verification
+
+    /** Net borrows per user and book id over history; fold() each part into it, then compare. */
+    static final class Rebuild {
+        final Map<String, Map<String, int[]>> net = new HashMap<>();
+        /** Users with records that have no book id: their net per book is unknown. */
+        final Set<String> unresolved = new HashSet<>();
+        long records;
+
+        /** Adds a snapshot's rows, folded in parallel on the common fork/join pool. */
+        void fold(HistoryStore.Snapshot s) {
+            records += s.size;
+            if (s.size == 0) return;
+            boolean[] hasId = new boolean[s.bookKeys.length];
+            for (int i = 0; i < hasId.length; i++) hasId[i] = !s.bookKeys[i].startsWith(HistoryStore.NO_ID);
+            Map<Long, int[]> p = ForkJoinPool.commonPool().invoke(new Fold(s, hasId, 0, s.size));
+            for (Map.Entry<Long, int[]> e : p.entrySet()) {
+                long key = e.getKey();
+                if ((int) key == NO_BOOK) { unresolved.add(s.userKeys[(int) (key >>> 32)]); continue; }
+                Map<String, int[]> m = net.computeIfAbsent(s.userKeys[(int) (key >>> 32)], k -> new HashMap<>());
+                m.computeIfAbsent(s.bookKeys[(int) key], k -> new int[1])[0] += e.getValue()[0]; // zeros stay: a later part may offset them
+            }
+        }
+    }
+
+    /** Book code of a user's records without a book id, see Rebuild.unresolved. */
+    private static final int NO_BOOK = -1;
+
+    /** Net borrows of a slice of rows, keyed by user code << 32 | book code (NO_BOOK when it has no id). */
+    private static final class Fold extends RecursiveTask<Map<Long, int[]>> {
+        private static final long serialVersionUID = 1L;
+        private final HistoryStore.Snapshot s;
+        private final boolean[] hasId;
+        private final int lo, hi;
+
+        Fold(HistoryStore.Snapshot s, boolean[] hasId, int lo, int hi) { this.s = s; this.hasId = hasId; this.lo = lo; this.hi = hi; }
+
+        @Override
+        protected Map<Long, int[]> compute() {
+            if (hi - lo > SLICE_ROWS) {
+                int mid = (lo + hi) >>> 1;
+                Fold left = new Fold(s, hasId, lo, mid);
+                left.fork();
+                Map<Long, int[]> right = new Fold(s, hasId, mid, hi).compute(), out = left.join();
+                for (Map.Entry<Long, int[]> e : right.entrySet()) out.computeIfAbsent(e.getKey(), k -> new int[1])[0] += e.getValue()[0];
+                return out;
+            }
+            Map<Long, int[]> out = new HashMap<>();
+            for (int row = lo; row < hi; row++) {
+                int book = s.books[row];
+                long key = (long) s.users[row] << 32 | (hasId[book] ? book : NO_BOOK) & 0xFFFFFFFFL;
+                out.computeIfAbsent(key, k -> new int[1])[0] += ACTIONS[s.actions[row]] == LoanAction.RETURNED ? -1 : 1;
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Compares {@code table} (a copy() taken together with the other arguments) with the
+     * loans history implies, with each student's loan list and with each book's copies out
+     * ({@code out}: book id -> total - available, for books with any out).
+     */
+    static Report compare(Map<String, Map<String, int[]>> table, Rebuild history, Map<String, List<String>> students, Map<String, Integer> out) {
+        Report r = new Report();
+        r.records = history.records;
+        Map<String, int[]> perBook = new HashMap<>();
+        for (Map.Entry<String, Map<String, int[]>> u : table.entrySet()) {
+            Map<String, int[]> logged = history.net.getOrDefault(u.getKey(), Collections.<String, int[]>emptyMap());
+            boolean unresolved = history.unresolved.contains(u.getKey());
+            for (Map.Entry<String, int[]> b : u.getValue().entrySet()) {
+                int held = b.getValue()[0], net = logged.containsKey(b.getKey()) ? logged.get(b.getKey())[0] : 0;
+                r.loans += held;
+                perBook.computeIfAbsent(b.getKey(), k -> new int[1])[0] += held;
+                if (held != net && !unresolved) r.drift(u.getKey() + " holds " + held + " of " + b.getKey() + " by the loan table, " + net + " by history");
+            }
+        }
+        r.skipped = history.unresolved.size();
+        for (Map.Entry<String, Map<String, int[]>> u : history.net.entrySet()) {
+            if (history.unresolved.contains(u.getKey())) continue;
+            Map<String, int[]> held = table.getOrDefault(u.getKey(), Collections.<String, int[]>emptyMap());
+            for (Map.Entry<String, int[]> b : u.getValue().entrySet()) {
+                int net = b.getValue()[0];
+                if (net != 0 && !held.containsKey(b.getKey())) r.drift(u.getKey() + " holds 0 of " + b.getKey() + " by the loan table, " + net + " by history");
+            }
+        }
+        for (Map.Entry<String, List<String>> s : students.entrySet()) {
+            Map<String, int[]> listed = new HashMap<>();
+            for (String id : s.getValue()) listed.computeIfAbsent(id, k -> new int[1])[0]++;
+            Map<String, int[]> held = table.getOrDefault(s.getKey(), Collections.<String, int[]>emptyMap());
+            Set<String> ids = new TreeSet<>(listed.keySet());
+            ids.addAll(held.keySet());
+            for (String id : ids) {
+                int a = listed.containsKey(id) ? listed.get(id)[0] : 0, b = held.containsKey(id) ? held.get(id)[0] : 0;
+                if (a != b) r.drift(s.getKey() + " lists " + a + " of " + id + ", the loan table " + b);
+            }
+        }
+        Set<String> books = new TreeSet<>(out.keySet());
+        books.addAll(perBook.keySet());
+        for (String id : books) {
+            Integer copies = out.get(id);
+            int held = perBook.containsKey(id) ? perBook.get(id)[0] : 0;
+            if (copies == null) r.drift(id + " is on loan " + held + " times but has no copies out, or is no longer in the catalog");
+            else if (copies != held) r.drift(id + " has " + copies + " copies out, the loan table " + held);
+        }
+        return r;
+    }
+}
+
+/* ------------------------
+   TRANSACTION LOG (append-only history.log)
+   - Each record is [length][payload][crc32], so a borrow/return costs one small write
+     no matter how long the history is.
+   - fsync is batched: every SYNC_EVERY records or every SYNC_INTERVAL_MS, whichever first.
+   - A torn or corrupt tail (crash mid-write) is dropped on open and the file truncated.
+   - v2 payload: time, action, user, book id, title. A v1 log (four strings) is rewritten
+     as v2 the first time it is opened.
+   - v3 adds a random generation to the header, new whenever the file is rewritten
+     (compaction, upgrade), so offsets into it (users.bin checkpoints) and other desks
+     reading its tail can tell a different file from a longer one.
+   ------------------------ */
+class TransactionLog implements Closeable {
+    private static final int MAGIC = 0x444C4F47; // "DLOG"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16; // v1 and v2: 8, without the generation
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int READ_CHUNK = 1 << 16; // tail/since read this much at a time, however far behind
+    private static final int SYNC_EVERY = Integer.getInteger("library.history.syncEvery", 64);
+    private static final long SYNC_INTERVAL_MS = Long.getLong("library.history.syncIntervalMs", 1000L);
+
+    private final File file;
+    private FileChannel channel;
+    private final ScheduledExecutorService syncer;
+    private final CRC32 crc = new CRC32();
+    private int unsynced;
+    private long generation;
+
+    /** Opens (or creates) the log and replays every intact record into {@code sink}. */
+    public TransactionLog(File file, HistoryStore sink) throws IOException {
+        this.file = file;
+        this.channel = open(file);
+        int first = sink.size();
+        long end = channel.size() == 0 ? writeHeader() : replay(sink);
+        if (end > 0 && version() < VERSION) { upgrade(sink, first); end = channel.size(); generation = readGeneration(); }
+        if (end < channel.size()) {
+            System.err.println("history.log: dropping " + (channel.size() - end) + " bytes of torn/corrupt tail at offset " + end);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "history-log-sync"); t.setDaemon(true); return t; });
+        syncer.scheduleWithFixedDelay(this::syncQuietly, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public File getFile() { return file; }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private int version() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(8);
+        readFully(h, 0);
+        return h.getInt(4);
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(h, 0);
+        return h.getLong(8);
+    }
+
+    private static int headerSize(int version) { return version >= 3 ? HEADER_SIZE : 8; }
+
+    /** Rewrites an older log as the current version: rows already replayed into {@code sink} from {@code first}. */
+    private void upgrade(HistoryStore sink, int first) throws IOException {
+        int n = sink.size() - first;
+        File staged = stage(RowSources.of(() -> n, i -> sink.get(first + i)));
+        channel.close();
+        LibraryDatabase.moveAtomically(staged, file);
+        channel = open(file);
+        unsynced = 0;
+    }
+
+    /** Writes {@code rows} as a complete log beside this one ({@code <name>.new}, synced) and returns that file. */
+    File stage(RowSource<Transaction> rows) throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".new");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, header(ThreadLocalRandom.current().nextLong()));
+            List<Transaction> batch = new ArrayList<>();
+            for (int i = 0, n = rows.size(); i < n; i++) {
+                batch.add(rows.get(i));
+                if (batch.size() == 4096 || i == n - 1) { write(out, encode(batch)); batch.clear(); }
+            }
+            out.force(true);
+        }
+        return tmp;
+    }
+
+    /**
+     * Appends {@code rows} to a log returned by {@link #stage} and syncs it; returns its
+     * {generation, end offset}, the checkpoint of every record in it once it is renamed in place.
+     */
+    static long[] appendStaged(File staged, List<Transaction> rows) throws IOException {
+        try (FileChannel out = FileChannel.open(staged.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            while (h.hasRemaining() && out.read(h, h.position()) >= 0) { }
+            if (h.hasRemaining() || h.getInt(0) != MAGIC) throw new IOException(staged + " is not a staged transaction log");
+            out.position(out.size());
+            if (!rows.isEmpty()) { write(out, encode(rows)); out.force(true); }
+            return new long[] { h.getLong(8), out.position() };
+        }
+    }
+
+    /** Continues on the file now at this log's path, after a staged log was renamed over it. */
+    public synchronized void reopen() throws IOException {
+        sync();
+        channel.close();
+        channel = open(file);
+        channel.position(channel.size());
+        generation = readGeneration();
+    }
+
+    private static ByteBuffer header(long generation) {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        h.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        return h;
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    private long writeHeader() throws IOException {
+        generation = ThreadLocalRandom.current().nextLong();
+        ByteBuffer h = header(generation);
+        while (h.hasRemaining()) channel.write(h, h.position());
+        channel.force(true);
+        return HEADER_SIZE;
+    }
+
+    /** Returns the offset just past the last intact record. */
+    private long replay(HistoryStore sink) throws IOException {
+        long size = channel.size();
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        int read = size < 8 ? 0 : readFully(h, 0);
+        if (read < 8 || h.getInt(0) != MAGIC) throw new IOException(file + " is not a transaction log");
+        int version = h.getInt(4);
+        if (version < 1 || version > VERSION) throw new IOException(file + ": unsupported log version " + version);
+        if (read < headerSize(version)) throw new IOException(file + " is not a transaction log");
+        generation = version >= 3 ? h.getLong(8) : 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.channels.Channels.newInputStream(channel.position(headerSize(version))), 1 << 16));
+        long pos = headerSize(version);
+        while (pos + 8 <= size) {
+            int len = in.readInt();
+            if (len <= 0 || len > MAX_RECORD || pos + 8 + len > size) break;
+            byte[] payload = new byte[len];
+            in.readFully(payload);
+            int stored = in.readInt();
+            crc.reset(); crc.update(payload, 0, len);
+            if ((int) crc.getValue() != stored) break;
+            decode(payload, version, sink);
+            pos += 8 + len;
+        }
+        return pos;
+    }
+
+    private int readFully(ByteBuffer b, long at) throws IOException {
+        int n = 0;
+        while (b.hasRemaining()) { int r = channel.read(b, at + n); if (r < 0) break; n += r; }
+        return n;
+    }
+
+    /** Identifies this file: a rewritten log (compaction, upgrade) gets a new generation. */
+    public synchronized long generation() { return generation; }
+
+    /** Offset just past the last record this instance wrote or read. */
+    public synchronized long position() throws IOException { return channel.position(); }
+
+    /** True once another instance has renamed a rewritten log over this one's path (compaction). */
+    public synchronized boolean replaced() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (h.hasRemaining() && ch.read(h) >= 0) { }
+        }
+        return h.position() < HEADER_SIZE || h.getLong(8) != generation;
+    }
+
+    /**
+     * Records other instances appended after this log's position, which then moves past them.
+     * The caller holds the directory's write lock, so a torn record at the end is a crashed
+     * writer's and is cut off.
+     */
+    public synchronized List<Transaction> tail() throws IOException {
+        List<Transaction> out = new ArrayList<>();
+        long from = channel.position(), size = channel.size();
+        if (size <= from) return out;
+        long end = read(from, size, out);
+        if (end < size) {
+            System.err.println("history.log: dropping " + (size - end) + " bytes of torn/corrupt tail at offset " + end);
+            channel.truncate(end);
+        }
+        channel.position(end);
+        return out;
+    }
+
+    /** The records from {@code offset} (a record boundary of this generation) up to the position. */
+    public synchronized List<Transaction> since(long offset) throws IOException {
+        List<Transaction> out = new ArrayList<>();
+        long to = channel.position();
+        if (offset >= HEADER_SIZE && offset < to) read(offset, to, out);
+        return out;
+    }
+
+    /**
+     * Decodes the intact records in [from, to) into {@code out}, READ_CHUNK bytes at a time (more
+     * only for a single larger record); returns the offset after the last one.
+     */
+    private long read(long from, long to, List<Transaction> out) throws IOException {
+        if (from >= to) return from;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(READ_CHUNK, to - from));
+        long pos = from;
+        while (pos < to) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - pos));
+            int n = readFully(buf, pos);
+            byte[] b = buf.array();
+            int p = 0;
+            while (p + 8 <= n) {
+                int len = buf.getInt(p);
+                if (len <= 0 || len > MAX_RECORD) return pos + p;
+                if (p + 8 + len > n) break; // starts the next chunk
+                crc.reset(); crc.update(b, p + 4, len);
+                if ((int) crc.getValue() != buf.getInt(p + 4 + len)) return pos + p;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, p + 4, len));
+                long time = in.readLong();
+                LoanAction action = LoanAction.values()[in.readByte()];
+                String user = in.readUTF(), id = in.readUTF(), title = in.readUTF();
+                out.add(new Transaction(time, action, user, id.isEmpty() ? null : id, title));
+                p += 8 + len;
+            }
+            if (p > 0) { pos += p; continue; }
+            // not even one whole record: torn at the end, or one record larger than the buffer
+            if (n < 8 || n < buf.limit() || pos + 8 + buf.getInt(0) > to) return pos;
+            buf = ByteBuffer.allocate(8 + buf.getInt(0));
+        }
+        return pos;
+    }
+
+    /** Writes one record (synced with the next batch); returns the bytes written. */
+    public synchronized int append(Transaction t) throws IOException {
+        int bytes = appendAll(Collections.singletonList(t));
+        if (unsynced >= SYNC_EVERY) sync();
+        return bytes;
+    }
+
+    /** Writes the batch with one write call, without syncing; returns the bytes written. */
+    public synchronized int appendAll(List<Transaction> batch) throws IOException {
+        if (batch.isEmpty()) return 0;
+        ByteBuffer buf = encode(batch);
+        write(channel, buf);
+        unsynced += batch.size();
+        return buf.capacity();
+    }
+
+    /** [length][payload][crc32] for each record. */
+    private static ByteBuffer encode(List<Transaction> batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(batch.size() * 64);
+        DataOutputStream out = new DataOutputStream(bos);
+        CRC32 crc = new CRC32();
+        for (Transaction t : batch) {
+            byte[] payload = encode(t);
+            crc.reset(); crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length); out.write(payload); out.writeInt((int) crc.getValue());
+        }
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    /** Forces every appended record to disk. */
+    public synchronized void sync() throws IOException {
+        if (unsynced == 0 || !channel.isOpen()) return;
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    private void syncQuietly() {
+        try { sync(); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdown();
+        if (!channel.isOpen()) return;
+        sync();
+        channel.close();
+    }
+
+    private static byte[] encode(Transaction t) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeLong(t.getTime()); out.writeByte(t.getActionType().ordinal());
+            out.writeUTF(t.getUsername());
+            out.writeUTF(t.getBookId() == null ? "" : t.getBookId());
+            out.writeUTF(t.getBookTitle() == null ? "" : t.getBookTitle());
+        }
+        return bos.toByteArray();
+    }
+
+    private static void decode(byte[] payload, int version, HistoryStore sink) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (version == 1) {
+            String user = in.readUTF(), title = in.readUTF(), action = in.readUTF(), date = in.readUTF();
+            sink.append(Transaction.parseDate(date), LoanAction.of(action), user, null, title);
+        } else {
+            long time = in.readLong();
+            LoanAction action = LoanAction.values()[in.readByte()];
+            sink.append(time, action, in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+}
+
+/* ------------------------
+   HISTORY ARCHIVE (sealed monthly segments)
+   - history.log holds the hot history: the current calendar month and the HOT_MONTHS - 1
+     before it. Compaction moves older records into one sealed segment per month under
+     history-archive/, a deflated BlockCodec file: a header record (row count, first and
+     last time, table sizes, key filters of its users and books), the user names, the
+     books (id, title), then one record per row in time order (time, action, user number,
+     book number), so scans and aggregation decode no strings per row.
+   - At startup only the headers are read. A segment is decoded into a HistoryStore the first
+     time a query reaches its month and a user/book it may contain; the CACHED_SEGMENTS most
+     recently used stay decoded.
+   - Retention: with RETENTION_MONTHS > 0, months older than that are deleted.
+   - A compaction writes its files as *.new, lists them in a journal and then renames them;
+     a journal left by a crash is replayed on open, so a record is never lost or doubled
+     between history.log and the segments.
+   ------------------------ */
+final class HistoryArchive {
+    static final int HOT_MONTHS = Math.max(1, Integer.getInteger("library.history.hotMonths", 12));
+    static final int RETENTION_MONTHS = Integer.getInteger("library.history.retentionMonths", 0);
+    private static final int CACHED_SEGMENTS = Integer.getInteger("library.history.cachedSegments", 4);
+    private static final int MAGIC = 0x44534547; // "DSEG"
+    private static final int SCHEMA = 1;
+    private static final String PREFIX = "history-", SUFFIX = ".seg", STAGED = ".new", JOURNAL = "compaction.journal";
+    private static final LoanAction[] ACTIONS = LoanAction.values();
+
+    static final class Segment {
+        final YearMonth month;
+        final File file;
+        final int rows;
+        final long first, last;
+        final KeyFilter users, books;
+
+        Segment(YearMonth month, File file, int rows, long first, long last, KeyFilter users, KeyFilter books) {
+            this.month = month; this.file = file; this.rows = rows; this.first = first; this.last = last; this.users = users; this.books = books;
+        }
+    }
+
+    /** Bloom filter over the user names or book keys of a segment (about 2% false positives). */
+    static final class KeyFilter {
+        private final long[] bits;
+
+        KeyFilter(int keys) { bits = new long[Math.max(1, (keys * 10 + 63) >>> 6)]; }
+        private KeyFilter(long[] bits) { this.bits = bits; }
+
+        void add(String key) {
+            int h = key.hashCode(), g = (h >>> 16) | (h << 16) | 1;
+            for (int i = 0; i < 4; i++, h += g) { int b = (h & 0x7fffffff) % (bits.length << 6); bits[b >>> 6] |= 1L << b; }
+        }
+
+        boolean mightContain(String key) {
+            int h = key.hashCode(), g = (h >>> 16) | (h << 16) | 1;
+            for (int i = 0; i < 4; i++, h += g) { int b = (h & 0x7fffffff) % (bits.length << 6); if ((bits[b >>> 6] & 1L << b) == 0) return false; }
+            return true;
+        }
+
+        void write(DataOutputStream out) throws IOException { out.writeInt(bits.length); for (long w : bits) out.writeLong(w); }
+
+        static KeyFilter read(DataInputStream in) throws IOException {
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+            return new KeyFilter(bits);
+        }
+    }
+
+    private final File dataDir, dir;
+    private final Function<String, Book> lookup;
+    private final Predicate<String> exists;
+    private final TreeMap<YearMonth, Segment> segments = new TreeMap<>();
+    private final Map<Segment, HistoryStore> decoded = new LinkedHashMap<Segment, HistoryStore>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Segment, HistoryStore> e) { return size() > CACHED_SEGMENTS; }
+    };
+
+    /** Finishes an interrupted compaction, then lists the segments from their headers. */
+    HistoryArchive(File dataDir, Function<String, Book> lookup, Predicate<String> exists) throws IOException {
+        this.dataDir = dataDir;
+        this.dir = new File(dataDir, "history-archive");
+        this.lookup = lookup;
+        this.exists = exists;
+        File journal = new File(dir, JOURNAL);
+        if (journal.exists()) {
+            for (String path : Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)) {
+                File staged = new File(dataDir, path);
+                if (staged.exists()) LibraryDatabase.moveAtomically(staged, target(staged));
+            }
+            Files.delete(journal.toPath());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(STAGED)) { Files.delete(f.toPath()); continue; } // staged but never committed
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+            try {
+                Segment s = readHeader(f, YearMonth.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                segments.put(s.month, s);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(f + " is unreadable (" + e.getMessage() + "); its records are not shown");
+            }
+        }
+    }
+
+    private static File target(File staged) {
+        String name = staged.getName();
+        return new File(staged.getParentFile(), name.substring(0, name.length() - STAGED.length()));
+    }
+
+    private File fileFor(YearMonth month) { return new File(dir, PREFIX + month + SUFFIX); }
+
+    private static Segment readHeader(File f, YearMonth month) throws IOException {
+        try (InputStream in = new FileInputStream(f); BlockCodec.Reader r = new BlockCodec.Reader(in, MAGIC, SCHEMA)) {
+            DataInputStream h = r.next();
+            if (h == null) throw new IOException("missing header");
+            int rows = h.readInt();
+            long first = h.readLong(), last = h.readLong();
+            h.readInt(); h.readInt(); // string table sizes
+            return new Segment(month, f, rows, first, last, KeyFilter.read(h), KeyFilter.read(h));
+        }
+    }
+
+    /** Segments oldest first. */
+    public synchronized List<Segment> segments() { return new ArrayList<>(segments.values()); }
+
+    /** Segments with rows in [from, to) whose filter admits {@code key} (null: any). */
+    public synchronized List<Segment> segments(long from, long to, String user, String bookKey) {
+        List<Segment> out = new ArrayList<>();
+        for (Segment s : segments.values()) {
+            if (s.last < from || s.first >= to) continue;
+            if (user != null && !s.users.mightContain(user)) continue;
+            if (bookKey != null && !s.books.mightContain(bookKey)) continue;
+            out.add(s);
+        }
+        return out;
+    }
+
+    public synchronized Segment segment(YearMonth month) { return segments.get(month); }
+
+    /** The segment's rows, decoded on first use and cached. */
+    public HistoryStore load(Segment s) {
+        synchronized (this) {
+            HistoryStore h = decoded.get(s);
+            if (h != null) return h;
+        }
+        HistoryStore h;
+        try { h = read(s); } catch (IOException e) { throw new UncheckedIOException("Cannot read " + s.file, e); }
+        synchronized (this) { decoded.put(s, h); }
+        return h;
+    }
+
+    /** Decodes a segment without caching it, for one-off scans. */
+    public HistoryStore read(Segment s) throws IOException { return read(s, null, null); }
+
+    /**
+     * Only the rows of {@code user} or of {@code bookKey} (null: any), uncached: a user's or a
+     * book's rows are a small part of a month, and indexing the rest would cost far more.
+     */
+    public HistoryStore select(Segment s, String user, String bookKey) {
+        try { return read(s, user, bookKey); } catch (IOException e) { throw new UncheckedIOException("Cannot read " + s.file, e); }
+    }
+
+    private HistoryStore read(Segment s, String user, String bookKey) throws IOException {
+        HistoryStore h = new HistoryStore(lookup, exists);
+        try (Decoder d = new Decoder(s)) {
+            int wantUser = user == null ? -1 : Arrays.asList(d.users).indexOf(user);
+            int wantBook = bookKey == null ? -1 : Arrays.asList(d.keys).indexOf(bookKey);
+            if ((user != null && wantUser < 0) || (bookKey != null && wantBook < 0)) return h; // a filter false positive
+            for (DataInputStream rec; (rec = d.next()) != null; ) {
+                long time = rec.readLong();
+                int action = rec.readByte(), u = rec.readInt(), b = rec.readInt();
+                if ((user != null && u != wantUser) || (bookKey != null && b != wantBook)) continue;
+                h.append(time, ACTIONS[action], d.users[u], d.ids[b], d.titles[b]);
+            }
+        }
+        return h;
+    }
+
+    /** The segment's columns for aggregation, without building a HistoryStore or its indexes. */
+    public HistoryStore.Snapshot snapshot(Segment s) throws IOException {
+        try (Decoder d = new Decoder(s)) {
+            long[] times = new long[d.rows];
+            byte[] actions = new byte[d.rows];
+            int[] users = new int[d.rows], books = new int[d.rows];
+            int n = 0;
+            for (DataInputStream rec; n < d.rows && (rec = d.next()) != null; n++) {
+                times[n] = rec.readLong(); actions[n] = rec.readByte(); users[n] = rec.readInt(); books[n] = rec.readInt();
+            }
+            return new HistoryStore.Snapshot(times, actions, users, d.users, books, d.keys, n);
+        }
+    }
+
+    /** Reads the header and string tables, then hands out one row record at a time. */
+    private static final class Decoder implements Closeable {
+        private final InputStream in;
+        private final BlockCodec.Reader reader;
+        final int rows;
+        final String[] users, ids, titles, keys;
+
+        Decoder(Segment s) throws IOException {
+            in = new FileInputStream(s.file);
+            try {
+                reader = new BlockCodec.Reader(in, MAGIC, SCHEMA);
+                DataInputStream h = next();
+                if (h == null) throw new IOException("missing header");
+                rows = h.readInt(); h.readLong(); h.readLong();
+                users = new String[h.readInt()];
+                ids = new String[h.readInt()]; titles = new String[ids.length]; keys = new String[ids.length];
+                KeyFilter.read(h); KeyFilter.read(h);
+                for (int i = 0; i < users.length; i++) users[i] = next().readUTF();
+                for (int i = 0; i < ids.length; i++) {
+                    DataInputStream r = next();
+                    ids[i] = r.readUTF(); titles[i] = r.readUTF(); keys[i] = HistoryStore.bookKey(ids[i], titles[i]);
+                }
+            } catch (IOException | RuntimeException e) { in.close(); throw e; }
+        }
+
+        DataInputStream next() throws IOException { return reader.next(); }
+
+        @Override
+        public void close() throws IOException { reader.close(); in.close(); }
+    }
+
+    /**
+     * Writes {@code rows} (time order) as the segment for {@code month} under its staged name;
+     * see {@link #commit}. Users and books are written once each and rows refer to them by number.
+     */
+    public File stage(YearMonth month, List<Transaction> rows) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        Map<String, Integer> users = new LinkedHashMap<>(), books = new LinkedHashMap<>();
+        List<Transaction> firstOfBook = new ArrayList<>();
+        for (Transaction t : rows) {
+            users.putIfAbsent(t.getUsername(), users.size());
+            if (books.putIfAbsent(HistoryStore.bookKey(t.getBookId(), t.getBookTitle()), books.size()) == null) firstOfBook.add(t);
+        }
+        KeyFilter userFilter = new KeyFilter(users.size()), bookFilter = new KeyFilter(books.size());
+        for (String u : users.keySet()) userFilter.add(u);
+        for (String b : books.keySet()) bookFilter.add(b);
+        File staged = new File(dir, fileFor(month).getName() + STAGED);
+        try (FileOutputStream file = new FileOutputStream(staged); BlockCodec.Writer w = new BlockCodec.Writer(file, MAGIC, SCHEMA, true)) {
+            DataOutputStream out = w.out;
+            out.writeInt(rows.size());
+            out.writeLong(rows.isEmpty() ? 0 : rows.get(0).getTime());
+            out.writeLong(rows.isEmpty() ? 0 : rows.get(rows.size() - 1).getTime());
+            out.writeInt(users.size()); out.writeInt(books.size());
+            userFilter.write(out); bookFilter.write(out);
+            w.endRecord();
+            for (String u : users.keySet()) { out.writeUTF(u); w.endRecord(); }
+            for (Transaction t : firstOfBook) {
+                out.writeUTF(t.getBookId() == null ? "" : t.getBookId());
+                out.writeUTF(t.getBookTitle() == null ? "" : t.getBookTitle());
+                w.endRecord();
+            }
+            for (Transaction t : rows) {
+                out.writeLong(t.getTime()); out.writeByte(t.getActionType().ordinal());
+                out.writeInt(users.get(t.getUsername()));
+                out.writeInt(books.get(HistoryStore.bookKey(t.getBookId(), t.getBookTitle())));
+                w.endRecord();
+            }
+            w.finish();
+            file.getFD().sync();
+        }
+        return staged;
+    }
+
+    /**
+     * Renames every staged file (segments, and the compacted log) into place as one unit: the
+     * list is journaled first, so after a crash the open of the archive completes the renames.
+     */
+    public synchronized void commit(List<File> staged) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        Path base = dataDir.getAbsoluteFile().toPath();
+        List<String> paths = new ArrayList<>();
+        for (File f : staged) paths.add(base.relativize(f.getAbsoluteFile().toPath()).toString());
+        File journal = new File(dir, JOURNAL);
+        LibraryDatabase.writeAtomically(journal, out -> out.write(String.join("\n", paths).getBytes(StandardCharsets.UTF_8)));
+        for (File f : staged) {
+            File target = target(f);
+            LibraryDatabase.moveAtomically(f, target);
+            if (target.getParentFile().equals(dir)) {
+                Segment old = segments.get(monthOf(target));
+                if (old != null) decoded.remove(old);
+                Segment s = readHeader(target, monthOf(target));
+                segments.put(s.month, s);
+            }
+        }
+        Files.delete(journal.toPath());
+    }
+
+    private static YearMonth monthOf(File segment) {
+        String name = segment.getName();
+        return YearMonth.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /** Segments of months before {@code keepFrom}, oldest first. */
+    public synchronized List<Segment> expired(YearMonth keepFrom) { return new ArrayList<>(segments.headMap(keepFrom).values()); }
+
+    public synchronized void delete(Segment s) throws IOException {
+        segments.remove(s.month, s);
+        decoded.remove(s);
+        Files.deleteIfExists(s.file.toPath());
+    }
+}
+
+/* ------------------------
+   BLOCK FILE CODEC (users.bin, history segments)
+   - header: magic, format version, schema version of the records, flags
+   - body: blocks of whole records, [int rawLen][int storedLen][byte deflated][bytes][int crc32 of raw];
+     a block is deflated only when that saves space; rawLen 0 ends the file, so truncation is detected
+   - Both sides stream one block (~BLOCK_SIZE) at a time; the dataset is never held twice.
+   ------------------------ */
+final class BlockCodec {
+    private static final int FORMAT_VERSION = 1;
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK = 16 << 20;
+
+    private BlockCodec() {}
+
+    /** Callers write a record to {@link #out} and then call {@link #endRecord()}. */
+    static final class Writer implements Closeable {
+        private final DataOutputStream file;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+        final DataOutputStream out = new DataOutputStream(block);
+        private final boolean compress;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] packed = new byte[0];
+
+        Writer(OutputStream target, int magic, int schemaVersion, boolean compress) throws IOException {
+            this.file = new DataOutputStream(new BufferedOutputStream(target, BLOCK_SIZE));
+            this.compress = compress;
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            file.writeInt(magic); file.writeShort(FORMAT_VERSION); file.writeShort(schemaVersion); file.writeInt(compress ? 1 : 0);
+        }
+
+        void endRecord() throws IOException { if (block.size() >= BLOCK_SIZE) flushBlock(); }
+
+        private void flushBlock() throws IOException {
+            int raw = block.size();
+            if (raw == 0) return;
+            byte[] data = block.toByteArray();
+            crc.reset(); crc.update(data, 0, raw);
+            int stored = raw;
+            boolean deflated = false;
+            if (compress) {
+                if (packed.length < raw) packed = new byte[raw];
+                deflater.reset(); deflater.setInput(data, 0, raw); deflater.finish();
+                int n = deflater.deflate(packed, 0, packed.length);
+                if (deflater.finished() && n < raw) { stored = n; deflated = true; }
+            }
+            file.writeInt(raw); file.writeInt(stored); file.writeByte(deflated ? 1 : 0);
+            file.write(deflated ? packed : data, 0, stored);
+            file.writeInt((int) crc.getValue());
+            block.reset();
+        }
+
+        /** Writes the last block and the end marker; does not close the target. */
+        void finish() throws IOException {
+            flushBlock();
+            file.writeInt(0);
+            file.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    /** {@link #next()} returns the input positioned at the next record, or null after the last. */
+    static final class Reader implements Closeable {
+        private final DataInputStream file;
+        private final int schemaVersion;
+        private final Inflater inflater = new Inflater();
+        private final CRC32 crc = new CRC32();
+        private byte[] raw = new byte[0], stored = new byte[0];
+        private final BlockInput blockBytes = new BlockInput();
+        private final DataInputStream block = new DataInputStream(blockBytes);
+        private boolean ended;
+
+        Reader(InputStream source, int magic, int maxSchemaVersion) throws IOException {
+            this.file = new DataInputStream(new BufferedInputStream(source, BLOCK_SIZE));
+            if (file.readInt() != magic) throw new IOException("Not a library data file");
+            int format = file.readUnsignedShort();
+            if (format != FORMAT_VERSION) throw new IOException("Unsupported file format " + format);
+            schemaVersion = file.readUnsignedShort();
+            if (schemaVersion > maxSchemaVersion) throw new IOException("Written by a newer version (schema " + schemaVersion + ")");
+            file.readInt(); // flags, informational
+        }
+
+        int schemaVersion() { return schemaVersion; }
+
+        DataInputStream next() throws IOException {
+            while (blockBytes.available() == 0) {
+                if (ended || !readBlock()) return null;
+            }
+            return block;
+        }
+
+        private boolean readBlock() throws IOException {
+            int rawLen = file.readInt();
+            if (rawLen == 0) { ended = true; return false; }
+            int storedLen = file.readInt();
+            if (rawLen < 0 || rawLen > MAX_BLOCK || storedLen < 0 || storedLen > rawLen) throw new IOException("Corrupt block header");
+            boolean deflated = file.readByte() != 0;
+            if (stored.length < storedLen) stored = new byte[storedLen];
+            file.readFully(stored, 0, storedLen);
+            if (raw.length < rawLen) raw = new byte[rawLen];
+            if (deflated) {
+                inflater.reset(); inflater.setInput(stored, 0, storedLen);
+                try { if (inflater.inflate(raw, 0, rawLen) != rawLen) throw new IOException("Corrupt block"); }
+                catch (DataFormatException e) { throw new IOException("Corrupt block", e); }
+            } else System.arraycopy(stored, 0, raw, 0, rawLen);
+            crc.reset(); crc.update(raw, 0, rawLen);
+            if ((int) crc.getValue() != file.readInt()) throw new IOException("Checksum mismatch");
+            blockBytes.reset(raw, rawLen);
+            return true;
+        }
+
+        @Override
+        public void close() { inflater.end(); }
+    }
+
+    /** ByteArrayInputStream without its per-call locking, which dominated decoding small records. */
+    private static final class BlockInput extends InputStream {
+        private byte[] buf = new byte[0];
+        private int pos, end;
+
+        void reset(byte[] b, int len) { buf = b; pos = 0; end = len; }
+
+        @Override public int read() { return pos < end ? buf[pos++] & 0xff : -1; }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (pos >= end) return -1;
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long k = Math.max(0, Math.min(n, end - pos));
+            pos += (int) k;
+            return k;
+        }
+
+        @Override public int available() { return end - pos; }
+    }
+}
+
+/* ------------------------
+   USER CODEC
+   - Schema 1: [byte kind][utf username][utf password][utf name], students add [int n][utf bookId]*n.
+   - Schema 2 starts with a checkpoint record [byte 2][long generation][long offset]: the loan
+     lists are those of history.log (that generation) up to that offset. Every user record
+     carries [int version] after the kind, bumped on each change to the account, so a desk
+     merging another desk's file only touches accounts that changed.
+   ------------------------ */
+final class UserCodec {
+    static final int MAGIC = 0x44555352; // "DUSR"
+    static final int SCHEMA = 2;
+    private static final int ADMIN = 0, STUDENT = 1, CHECKPOINT = 2;
+
+    private UserCodec() {}
+
+    /** The accounts in a users.bin and the point of history.log their loan lists reflect (offset -1: unknown). */
+    static final class Snapshot {
+        final Map<String, User> users;
+        final long generation, offset;
+        Snapshot(Map<String, User> users, long generation, long offset) { this.users = users; this.generation = generation; this.offset = offset; }
+    }
+
+    static void write(Collection<User> users, long generation, long offset, OutputStream target) throws IOException {
+        try (BlockCodec.Writer w = new BlockCodec.Writer(target, MAGIC, SCHEMA, true)) {
+            w.out.writeByte(CHECKPOINT); w.out.writeLong(generation); w.out.writeLong(offset);
+            w.endRecord();
+            for (User u : users) {
+                DataOutputStream out = w.out;
+                out.writeByte(u instanceof Student ? STUDENT : ADMIN);
+                out.writeInt(u.getVersion());
+                out.writeUTF(u.getUsername()); out.writeUTF(u.getPassword()); out.writeUTF(u.getName());
+                if (u instanceof Student) {
+                    List<String> ids = ((Student) u).getBorrowedBookIds();
+                    out.writeInt(ids.size());
+                    for (String id : ids) out.writeUTF(id);
+                }
+                w.endRecord();
+            }
+            w.finish();
+        }
+    }
+
+    static Snapshot read(InputStream source) throws IOException {
+        Map<String, User> users = new LinkedHashMap<>();
+        long generation = 0, offset = -1;
+        try (BlockCodec.Reader r = new BlockCodec.Reader(source, MAGIC, SCHEMA)) {
+            for (DataInputStream in; (in = r.next()) != null; ) {
+                int kind = in.readByte();
+                if (kind == CHECKPOINT) { generation = in.readLong(); offset = in.readLong(); continue; }
+                int version = r.schemaVersion() >= 2 ? in.readInt() : 0;
+                String username = in.readUTF(), password = in.readUTF(), name = in.readUTF();
+                User u;
+                if (kind == STUDENT) {
+                    Student s = new Student(username, password, name);
+                    for (int i = 0, n = in.readInt(); i < n; i++) s.borrowBook(in.readUTF());
+                    u = s;
+                } else if (kind == ADMIN) {
+                    u = new Admin(username, password, name);
+                } else throw new IOException("Unknown user kind " + kind);
+                u.setVersion(version);
+                users.put(username, u);
+            }
+        }
+        return new Snapshot(users, generation, offset);
+    }
+}
+
+/* ------------------------
+   MAPPED BOOK STORE (books.db)
+   - Fixed-size slots in a memory-mapped file, mapped in CHUNK_SLOTS chunks as the catalog grows.
+   - Only the id -> slot index lives on the heap; Book objects are decoded on demand and kept
+     in a weak cache so callers holding a Book keep seeing the same instance.
+   - Copy counts are updated in place; slots are append-only so iteration keeps insertion order.
+   - Every slot write bumps a change sequence in the header and notes the slot in a ring of
+     the last RING changes; a put also stamps the slot with that number (its version). Another
+     instance sharing the file catches up by reading the ring (see catchUp), and an edit can
+     tell whether the book changed since it was read.
+   - A title or author longer than its field is appended to books.db.overflow and the field
+     holds its offset, length and CRC32 plus the part that fits. The overflow is synced before
+     the slots; if a crash still leaves it short, the part in the slot is read instead. An
+     edit that keeps the text reuses its entry, otherwise the old one is left behind.
+   ------------------------ */
+class MappedBookStore implements Closeable {
+    private static final int MAGIC = 0x44424B53; // "DBKS"
+    private static final int VERSION = 2; // 2: overlong strings spill to the overflow file; 1 is read as is
+    private static final int HEADER_SIZE = 4096;
+    static final int SLOT_SIZE = 384;
+    private static final int CHUNK_SLOTS = 8192;
+    // header: magic, version, slot size, high-water mark, then the change sequence and ring
+    private static final int SEQ_AT = 16, RING_AT = 64, RING = (HEADER_SIZE - RING_AT) / 4;
+
+    // slot layout
+    private static final int OFF_STATE = 0, OFF_TOTAL = 4, OFF_AVAIL = 8, OFF_VERSION = 12;
+    private static final int OFF_ID = 16, OFF_TITLE = 64, OFF_AUTHOR = 256;
+    static final int MAX_ID_BYTES = OFF_TITLE - OFF_ID - 2;
+    private static final byte FREE = 0, LIVE = 1, DELETED = 2;
+    // a spilled field: [short SPILLED][long offset][int length][int crc32][short prefix length][prefix]
+    private static final short SPILLED = -1;
+    private static final int SPILL_HEADER = 20;
+
+    private final FileChannel channel;
+    private final File overflowFile;
+    private FileChannel overflow; // opened on first use
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+    private final Map<String, BookRef> cache = new HashMap<>();
+    private final ReferenceQueue<Book> collected = new ReferenceQueue<>();
+    private int[] live = new int[1024]; // live slots in ascending order, i.e. row -> slot
+    private int liveCount;
+    private int highWater;
+    private int syncedSeq; // the header's change sequence as of the last change this instance applied
+
+    private static final class BookRef extends WeakReference<Book> {
+        final String id;
+        BookRef(Book b, ReferenceQueue<Book> q) { super(b, q); id = b.getId(); }
+    }
+
+    public MappedBookStore(File file) throws IOException {
+        overflowFile = new File(file.getPath() + ".overflow");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (fresh) {
+            header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SLOT_SIZE).putInt(12, 0);
+        } else {
+            if (header.getInt(0) != MAGIC) throw new IOException(file + " is not a book store");
+            int version = header.getInt(4);
+            if (version < 1 || version > VERSION || header.getInt(8) != SLOT_SIZE) throw new IOException(file + ": unsupported book store layout");
+            if (version < VERSION) header.putInt(4, VERSION); // from now on slots may spill, which v1 readers would misread
+        }
+        highWater = header.getInt(12);
+        syncedSeq = header.getInt(SEQ_AT);
+        scan();
+    }
+
+    private void scan() throws IOException {
+        index.clear();
+        liveCount = 0;
+        for (int slot = 0; slot < highWater; slot++) {
+            ByteBuffer c = chunk(slot);
+            int base = offset(slot);
+            if (c.get(base + OFF_STATE) == LIVE) { index.put(readString(c, base + OFF_ID), slot); addLive(slot); }
+        }
+    }
+
+    private void addLive(int slot) {
+        if (liveCount == live.length) live = Arrays.copyOf(live, liveCount * 2);
+        live[liveCount++] = slot;
+    }
+
+    private void insertLive(int slot) {
+        int row = Arrays.binarySearch(live, 0, liveCount, slot);
+        if (row >= 0) return;
+        row = -(row + 1);
+        if (liveCount == live.length) live = Arrays.copyOf(live, liveCount * 2);
+        System.arraycopy(live, row, live, row + 1, liveCount - row);
+        live[row] = slot;
+        liveCount++;
+    }
+
+    private void dropLive(int slot) {
+        int row = Arrays.binarySearch(live, 0, liveCount, slot);
+        if (row < 0) return;
+        System.arraycopy(live, row + 1, live, row, liveCount - row - 1);
+        liveCount--;
+    }
+
+    /** Notes a write to {@code slot} in the header's sequence and ring; returns the new sequence number. */
+    private int stamp(int slot) {
+        int seq = header.getInt(SEQ_AT) + 1;
+        header.putInt(RING_AT + Math.floorMod(seq, RING) * 4, slot);
+        header.putInt(SEQ_AT, seq);
+        if (syncedSeq == seq - 1) syncedSeq = seq;
+        return seq;
+    }
+
+    public static boolean exists(File file) { return file.length() > 0; }
+
+    private ByteBuffer chunk(int slot) throws IOException {
+        int n = slot / CHUNK_SLOTS;
+        while (chunks.size() <= n) {
+            long pos = HEADER_SIZE + (long) chunks.size() * CHUNK_SLOTS * SLOT_SIZE;
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, pos, (long) CHUNK_SLOTS * SLOT_SIZE));
+        }
+        return chunks.get(n);
+    }
+
+    private static int offset(int slot) { return (slot % CHUNK_SLOTS) * SLOT_SIZE; }
+
+    public synchronized int size() { return index.size(); }
+
+    public synchronized boolean contains(String id) { return index.containsKey(id); }
+
+    public synchronized Book get(String id) {
+        Integer slot = index.get(id);
+        return slot == null ? null : load(id, slot);
+    }
+
+    /** Returns the live book in {@code slot}, or null if the slot is free or deleted. */
+    synchronized Book getBySlot(int slot) {
+        if (slot >= highWater) return null;
+        try {
+            ByteBuffer c = chunk(slot);
+            int base = offset(slot);
+            if (c.get(base + OFF_STATE) != LIVE) return null;
+            return load(readString(c, base + OFF_ID), slot);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    private Book load(String id, int slot) {
+        expunge();
+        BookRef ref = cache.get(id);
+        Book b = ref == null ? null : ref.get();
+        if (b != null) return b;
+        try {
+            ByteBuffer c = chunk(slot);
+            int base = offset(slot);
+            b = new Book(id, readString(c, base + OFF_TITLE), readString(c, base + OFF_AUTHOR), c.getInt(base + OFF_TOTAL));
+            b.restoreAvailable(c.getInt(base + OFF_AVAIL));
+            b.setVersion(c.getInt(base + OFF_VERSION));
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        cache.put(id, new BookRef(b, collected));
+        return b;
+    }
+
+    /** Inserts or overwrites the book's slot in place. */
+    public synchronized void put(Book b) throws IOException {
+        byte[] id = b.getId().getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) throw new IllegalArgumentException("Book id longer than " + MAX_ID_BYTES + " bytes: " + b.getId());
+        Integer slot = index.get(b.getId());
+        if (slot == null) {
+            highWater = Math.max(highWater, header.getInt(12)); // never reuse a slot another instance took
+            slot = highWater++;
+            index.put(b.getId(), slot);
+            addLive(slot);
+        }
+        ByteBuffer c = chunk(slot);
+        int base = offset(slot);
+        c.put(base + OFF_STATE, LIVE);
+        c.putInt(base + OFF_TOTAL, b.getTotalCopies());
+        c.putInt(base + OFF_AVAIL, b.getAvailableCopies());
+        writeString(c, base + OFF_ID, id, MAX_ID_BYTES);
+        writeString(c, base + OFF_TITLE, b.getTitle().getBytes(StandardCharsets.UTF_8), OFF_AUTHOR - OFF_TITLE - 2);
+        writeString(c, base + OFF_AUTHOR, b.getAuthor().getBytes(StandardCharsets.UTF_8), SLOT_SIZE - OFF_AUTHOR - 2);
+        header.putInt(12, highWater);
+        int version = stamp(slot);
+        c.putInt(base + OFF_VERSION, version);
+        b.setVersion(version);
+        expunge();
+        BookRef ref = cache.get(b.getId());
+        if (ref == null || ref.get() != b) cache.put(b.getId(), new BookRef(b, collected));
+    }
+
+    /** Rewrites only the two copy counters of an existing book. */
+    public synchronized boolean updateCopies(String id, int total, int available) throws IOException {
+        Integer slot = index.get(id);
+        if (slot == null) return false;
+        ByteBuffer c = chunk(slot);
+        int base = offset(slot);
+        c.putInt(base + OFF_TOTAL, total);
+        c.putInt(base + OFF_AVAIL, available);
+        stamp(slot);
+        return true;
+    }
+
+    /** The book's version: the change sequence number of its last put, or -1 if it is gone. */
+    public synchronized int version(String id) throws IOException {
+        Integer slot = index.get(id);
+        return slot == null ? -1 : chunk(slot).getInt(offset(slot) + OFF_VERSION);
+    }
+
+    /** Title and author as currently written in the file, ignoring any unsaved edits to a cached Book. */
+    public synchronized String[] storedText(String id) throws IOException {
+        Integer slot = index.get(id);
+        if (slot == null) return null;
+        ByteBuffer c = chunk(slot);
+        int base = offset(slot);
+        return new String[]{ readString(c, base + OFF_TITLE), readString(c, base + OFF_AUTHOR) };
+    }
+
+    public synchronized void remove(String id) throws IOException {
+        Integer slot = index.remove(id);
+        cache.remove(id);
+        if (slot == null) return;
+        chunk(slot).put(offset(slot) + OFF_STATE, DELETED);
+        stamp(slot);
+        dropLive(slot);
+    }
+
+    /**
+     * Applies the slot writes of other instances since this one last looked; the caller holds
+     * the directory's write lock, so none is half done. Slots are visited in order and each
+     * change comes back as a BOOK_* event whose row and size hold at that point, after the
+     * cached Book was updated in place. More than RING changes behind, the id index is rebuilt
+     * by a full scan and the only event is RESET.
+     */
+    public synchronized List<ChangeEvent> catchUp() throws IOException {
+        int seq = header.getInt(SEQ_AT);
+        if (seq == syncedSeq) return Collections.emptyList();
+        int behind = seq - syncedSeq;
+        syncedSeq = seq;
+        highWater = Math.max(highWater, header.getInt(12));
+        if (behind < 0 || behind > RING) {
+            scan();
+            for (String id : new ArrayList<>(cache.keySet())) {
+                Integer slot = index.get(id);
+                if (slot == null) cache.remove(id); else refresh(id, slot);
+            }
+            return Collections.singletonList(ChangeEvent.RESET);
+        }
+        int[] slots = new int[behind];
+        for (int i = 0; i < behind; i++) slots[i] = header.getInt(RING_AT + Math.floorMod(seq - i, RING) * 4);
+        Arrays.sort(slots);
+        List<ChangeEvent> out = new ArrayList<>();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            if (slot < 0 || slot >= highWater || (i > 0 && slot == slots[i - 1])) continue;
+            ByteBuffer c = chunk(slot);
+            int base = offset(slot);
+            String id = readString(c, base + OFF_ID);
+            Integer known = index.get(id);
+            if (c.get(base + OFF_STATE) == LIVE) {
+                if (known == null) {
+                    index.put(id, slot);
+                    insertLive(slot);
+                    out.add(ChangeEvent.book(ChangeEvent.Kind.BOOK_ADDED, load(id, slot), rowOf(id), liveCount));
+                } else if (known == slot) {
+                    out.add(ChangeEvent.book(ChangeEvent.Kind.BOOK_UPDATED, refresh(id, slot), rowOf(id), liveCount));
+                }
+            } else if (known != null && known == slot) {
+                Book gone = load(id, slot); // its text is still in the slot
+                int row = rowOf(id);
+                index.remove(id);
+                cache.remove(id);
+                dropLive(slot);
+                out.add(ChangeEvent.book(ChangeEvent.Kind.BOOK_REMOVED, gone, row, liveCount));
+            }
+        }
+        return out;
+    }
+
+    /** The book in {@code slot} as written there now; a cached instance is updated in place, so whoever holds it sees the change. */
+    private Book refresh(String id, int slot) throws IOException {
+        expunge();
+        BookRef ref = cache.get(id);
+        Book b = ref == null ? null : ref.get();
+        if (b == null) return load(id, slot);
+        ByteBuffer c = chunk(slot);
+        int base = offset(slot);
+        b.setTitle(readString(c, base + OFF_TITLE));
+        b.setAuthor(readString(c, base + OFF_AUTHOR));
+        b.restoreCopies(c.getInt(base + OFF_TOTAL), c.getInt(base + OFF_AVAIL));
+        b.setVersion(c.getInt(base + OFF_VERSION));
+        return b;
+    }
+
+    /** The book at {@code row} in insertion order. */
+    public synchronized Book getByRow(int row) {
+        return row < 0 || row >= liveCount ? null : getBySlot(live[row]);
+    }
+
+    /** Row of the book in insertion order, or -1. */
+    public synchronized int rowOf(String id) {
+        Integer slot = index.get(id);
+        return slot == null ? -1 : Arrays.binarySearch(live, 0, liveCount, slot);
+    }
+
+    /** Rows, in insertion order, of the books whose id matches {@code p}; only the id of each slot is read. */
+    public synchronized int[] rowsWhere(Predicate<String> p) {
+        int[] rows = new int[16];
+        int n = 0;
+        try {
+            for (int row = 0; row < liveCount; row++) {
+                int slot = live[row];
+                if (!p.test(readString(chunk(slot), offset(slot) + OFF_ID))) continue;
+                if (n == rows.length) rows = Arrays.copyOf(rows, n * 2);
+                rows[n++] = row;
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        return Arrays.copyOf(rows, n);
+    }
+
+    /** Live view over the catalog in slot (insertion) order; decodes books lazily while iterating. */
+    public Collection<Book> values() {
+        return new AbstractCollection<Book>() {
+            public int size() { return MappedBookStore.this.size(); }
+            public Iterator<Book> iterator() {
+                return new Iterator<Book>() {
+                    int slot = 0;
+                    Book next = advance();
+                    private Book advance() {
+                        Book b = null;
+                        while (b == null && slot < highWater) b = getBySlot(slot++);
+                        return b;
+                    }
+                    public boolean hasNext() { return next != null; }
+                    public Book next() {
+                        if (next == null) throw new NoSuchElementException();
+                        Book b = next; next = advance(); return b;
+                    }
+                };
+            }
+        };
+    }
+
+    /** Syncs the mapped pages outside the monitor, so reads (e.g. table pages on the EDT) carry on during a large save. */
+    public void force() {
+        List<MappedByteBuffer> mapped;
+        FileChannel spilled;
+        synchronized (this) { mapped = new ArrayList<>(chunks); spilled = overflow; }
+        if (spilled != null) {
+            try { spilled.force(false); } // before the slots that point into it
+            catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        for (MappedByteBuffer c : mapped) c.force();
+        header.force(); // after the slots, so a synced high-water mark never covers unsynced slots
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+        if (overflow != null) overflow.close();
+    }
+
+    private void expunge() {
+        for (java.lang.ref.Reference<? extends Book> r; (r = collected.poll()) != null; ) {
+            BookRef ref = (BookRef) r;
+            if (cache.get(ref.id) == ref) cache.remove(ref.id);
+        }
+    }
+
+    private synchronized FileChannel overflow() throws IOException {
+        if (overflow == null) overflow = FileChannel.open(overflowFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return overflow;
+    }
+
+    /** A length-prefixed string, or a spilled one read back from the overflow file. */
+    private String readString(ByteBuffer c, int at) {
+        short len = c.getShort(at);
+        if (len != SPILLED) return decode(c, at + 2, len & 0xFFFF);
+        long pos = c.getLong(at + 2);
+        int n = c.getInt(at + 10), crc = c.getInt(at + 14);
+        try {
+            ByteBuffer b = ByteBuffer.allocate(n);
+            FileChannel o = overflow();
+            while (b.hasRemaining() && o.read(b, pos + b.position()) > 0) { }
+            CRC32 check = new CRC32();
+            check.update(b.array(), 0, b.position());
+            if (!b.hasRemaining() && (int) check.getValue() == crc) return new String(b.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println(overflowFile + ": " + e);
+        }
+        int prefix = c.getShort(at + 18) & 0xFFFF;
+        System.err.println(overflowFile + ": " + n + " bytes at offset " + pos + " are missing or damaged; using the first " + prefix);
+        return decode(c, at + SPILL_HEADER, prefix);
+    }
+
+    private static String decode(ByteBuffer c, int at, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) b[i] = c.get(at + i);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a length-prefixed string; one longer than {@code max} bytes is appended to the
+     * overflow file (unless the field already points at the same text) and the field keeps
+     * where it is, with as much as fits cut back to a whole UTF-8 character.
+     */
+    private void writeString(ByteBuffer c, int at, byte[] b, int max) throws IOException {
+        if (b.length <= max) {
+            c.putShort(at, (short) b.length);
+            for (int i = 0; i < b.length; i++) c.put(at + 2 + i, b[i]);
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length);
+        int sum = (int) crc.getValue();
+        long pos;
+        if (c.getShort(at) == SPILLED && c.getInt(at + 10) == b.length && c.getInt(at + 14) == sum) pos = c.getLong(at + 2);
+        else {
+            FileChannel o = overflow();
+            pos = o.size(); // the end, also when another desk appended: writers hold the directory lock
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            while (buf.hasRemaining()) o.write(buf, pos + buf.position());
+        }
+        int prefix = max - SPILL_HEADER + 2;
+        while (prefix > 0 && (b[prefix] & 0xC0) == 0x80) prefix--;
+        c.putShort(at, SPILLED).putLong(at + 2, pos).putInt(at + 10, b.length).putInt(at + 14, sum).putShort(at + 18, (short) prefix);
+        for (int i = 0; i < prefix; i++) c.put(at + SPILL_HEADER + i, b[i]);
+    }
+}
+
+/* ------------------------
+   BOOK SEARCH INDEX
+   - Inverted index from token prefixes (edge n-grams up to MAX_PREFIX chars) of title,
+     author and id to sorted posting lists of doc numbers.
+   - Each posting carries a field mask so ranking needs no stored text: exact token hits
+     outrank prefix hits, and id > title > author.
+   - Multi-term queries AND the postings, starting from the shortest list.
+   - A book changed by another desk is re-added under a new doc number, since the text its
+     old postings came from is gone; searches skip such orphaned docs.
+   ------------------------ */
+class BookSearchIndex {
+    private static final int MAX_PREFIX = 12;
+    private static final int TITLE = 1, AUTHOR = 2, ID = 4, EXACT_SHIFT = 3;
+    // score by field mask (bit 0 title, 1 author, 2 id) for prefix hits and for whole-token hits
+    private static final int[] WEIGHT = { 0, 2, 1, 3, 3, 5, 4, 6 };
+    private static final int[] EXACT_WEIGHT = { 0, 3, 2, 5, 5, 8, 7, 10 };
+
+    private final Map<String, Posting> postings = new HashMap<>();
+    private final Map<String, Integer> docOf = new HashMap<>();
+    private final List<String> idOf = new ArrayList<>();
+    private int orphans; // docs still in postings whose book has moved to a new doc or is gone
+    private final java.util.concurrent.locks.ReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();
+
+    /** Sorted doc numbers with one field mask per doc. */
+    private static final class Posting {
+        int[] docs = new int[4];
+        byte[] masks = new byte[4];
+        int size;
+
+        void add(int doc, int mask) {
+            int i = size > 0 && docs[size - 1] < doc ? -(size + 1) : Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0) { masks[i] |= mask; return; }
+            i = -(i + 1);
+            if (size == docs.length) { docs = Arrays.copyOf(docs, size * 2); masks = Arrays.copyOf(masks, size * 2); }
+            System.arraycopy(docs, i, docs, i + 1, size - i);
+            System.arraycopy(masks, i, masks, i + 1, size - i);
+            docs[i] = doc; masks[i] = (byte) mask; size++;
+        }
+
+        void remove(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i < 0) return;
+            System.arraycopy(docs, i + 1, docs, i, size - i - 1);
+            System.arraycopy(masks, i + 1, masks, i, size - i - 1);
+            size--;
+        }
+
+        /** Index of doc at or after {@code from}, galloping forward. */
+        int seek(int doc, int from) {
+            int step = 1, hi = from;
+            while (hi < size && docs[hi] < doc) { from = hi; hi += step; step <<= 1; }
+            return Arrays.binarySearch(docs, from, Math.min(hi + 1, size), doc);
+        }
+    }
+
+    public void add(Book b) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.get(b.getId());
+            if (doc == null) { doc = idOf.size(); idOf.add(b.getId()); docOf.put(b.getId(), doc); }
+            for (Map.Entry<String, Integer> k : keys(b.getId(), b.getTitle(), b.getAuthor()).entrySet())
+                postings.computeIfAbsent(k.getKey(), x -> new Posting()).add(doc, k.getValue());
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    /** Drops the terms that were indexed for {@code oldTitle}/{@code oldAuthor}. */
+    public void remove(String id, String oldTitle, String oldAuthor) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.get(id);
+            if (doc == null) return;
+            for (String k : keys(id, oldTitle, oldAuthor).keySet()) {
+                Posting p = postings.get(k);
+                if (p == null) continue;
+                p.remove(doc);
+                if (p.size == 0) postings.remove(k);
+            }
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    public void update(Book b, String oldTitle, String oldAuthor) {
+        if (oldTitle != null) remove(b.getId(), oldTitle, oldAuthor);
+        add(b);
+    }
+
+    /** Drops a book whose indexed text is not known any more; its postings stay as an orphan. */
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try { if (docOf.remove(id) != null) orphans++; } finally { lock.writeLock().unlock(); }
+    }
+
+    /** Indexes a book afresh under a new doc number, see {@link #remove(String)}. */
+    public void reindex(Book b) {
+        remove(b.getId());
+        add(b);
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try { postings.clear(); docOf.clear(); idOf.clear(); orphans = 0; } finally { lock.writeLock().unlock(); }
+    }
+
+    /** Ids of the best {@code limit} books matching every query term, best first. */
+    public List<String> search(String query, int limit) {
+        List<String> terms = tokens(query);
+        if (terms.isEmpty() || limit <= 0) return Collections.emptyList();
+        lock.readLock().lock();
+        try {
+            Posting[] ps = new Posting[terms.size()];
+            boolean[] exact = new boolean[terms.size()];
+            for (int i = 0; i < ps.length; i++) {
+                String t = terms.get(i);
+                ps[i] = postings.get(t);
+                if (ps[i] == null && t.length() > MAX_PREFIX) ps[i] = postings.get(t.substring(0, MAX_PREFIX));
+                if (ps[i] == null) return Collections.emptyList();
+                exact[i] = t.length() <= MAX_PREFIX;
+            }
+            Integer[] order = new Integer[ps.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (x, y) -> Integer.compare(ps[x].size, ps[y].size));
+
+            // min-heap on (score, -doc) so the weakest of the current top-K is on top
+            PriorityQueue<long[]> top = new PriorityQueue<>(limit + 1, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(y[1], x[1]));
+            int[] cursor = new int[ps.length];
+            Posting first = ps[order[0]];
+            outer:
+            for (int i = 0; i < first.size; i++) {
+                int doc = first.docs[i];
+                if (orphans > 0 && !Integer.valueOf(doc).equals(docOf.get(idOf.get(doc)))) continue;
+                long score = 0;
+                for (int o : order) {
+                    Posting p = ps[o];
+                    int j = p == first ? i : p.seek(doc, cursor[o]);
+                    if (j < 0) { cursor[o] = -(j + 1); continue outer; }
+                    cursor[o] = j;
+                    score += score(p.masks[j], exact[o]);
+                }
+                top.add(new long[]{ score, doc });
+                if (top.size() > limit) top.poll();
+            }
+            String[] out = new String[top.size()];
+            for (int i = out.length - 1; i >= 0; i--) out[i] = idOf.get((int) top.poll()[1]);
+            return Arrays.asList(out);
+        } finally { lock.readLock().unlock(); }
+    }
+
+    private static int score(int mask, boolean exactAllowed) {
+        int s = WEIGHT[mask & 7];
+        if (exactAllowed) s += EXACT_WEIGHT[(mask >> EXACT_SHIFT) & 7];
+        return s;
+    }
+
+    /** Index keys of one book: every token prefix mapped to the mask of fields it occurs in. */
+    private static Map<String, Integer> keys(String id, String title, String author) {
+        Map<String, Integer> keys = new HashMap<>();
+        addKeys(keys, id, ID);
+        addKeys(keys, title, TITLE);
+        addKeys(keys, author, AUTHOR);
+        return keys;
+    }
+
+    private static void addKeys(Map<String, Integer> keys, String text, int field) {
+        for (String t : tokens(text)) {
+            int n = Math.min(t.length(), MAX_PREFIX);
+            for (int i = 1; i <= n; i++) keys.merge(t.substring(0, i), field, (a, b) -> a | b);
+            keys.merge(t, field | (field << EXACT_SHIFT), (a, b) -> a | b);
+        }
+    }
+
+    static List<String> tokens(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        String s = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) { out.add(s.substring(start, i)); start = -1; }
+        }
+        return out;
+    }
+}
+
+/* ------------------------
+   ROW VIEWS & LAZY TABLE MODEL
+   - RowSource is a random-access view the database hands out instead of copying records.
+   - LazyTableModel pages rows in PAGE_SIZE at a time around what the JTable asks for,
+     so a table over millions of rows costs one page of references.
+   ------------------------ */
+interface RowSource<T> {
+    int size();
+    T get(int row);
+}
+
+final class RowSources {
+    private RowSources() {}
+
+    static <T> RowSource<T> of(IntSupplier size, IntFunction<T> get) {
+        return new RowSource<T>() {
+            public int size() { return size.getAsInt(); }
+            public T get(int row) { return get.apply(row); }
+        };
+    }
+
+    static <T> RowSource<T> of(List<T> list) { return of(list::size, list::get); }
+
+    /** Rows of {@code base} at the given indices. */
+    static <T> RowSource<T> indexed(RowSource<T> base, int[] rows, int count) {
+        return of(() -> count, i -> base.get(rows[i]));
+    }
+
+    /** The rows of each part in turn. Sizes are asked on every call, so a growing last part stays live. */
+    static <T> RowSource<T> concat(List<RowSource<T>> parts) {
+        if (parts.size() == 1) return parts.get(0);
+        return of(() -> { int n = 0; for (RowSource<T> p : parts) n += p.size(); return n; }, row -> {
+            int i = row;
+            for (RowSource<T> p : parts) {
+                int n = p.size();
+                if (i < n) return p.get(i);
+                i -= n;
+            }
+            throw new IndexOutOfBoundsException("row " + row);
+        });
+    }
+
+    /** Builds the source on first use, e.g. so an archived segment is only read when a page reaches it. */
+    static <T> RowSource<T> lazy(Supplier<RowSource<T>> supplier) {
+        return new RowSource<T>() {
+            private RowSource<T> source;
+            private synchronized RowSource<T> source() { if (source == null) source = supplier.get(); return source; }
+            public int size() { return source().size(); }
+            public T get(int row) { return source().get(row); }
+        };
+    }
+
+    /** Rows of {@code base} matching {@code p}; one scan, keeps only row numbers. */
+    static <T> RowSource<T> filtered(RowSource<T> base, Predicate<? super T> p) {
+        int[] rows = new int[16];
+        int n = 0;
+        for (int i = 0, size = base.size(); i < size; i++) {
+            if (!p.test(base.get(i))) continue;
+            if (n == rows.length) rows = Arrays.copyOf(rows, n * 2);
+            rows[n++] = i;
+        }
+        return indexed(base, rows, n);
+    }
+
+    /** Rows of {@code base} ordered by {@code key}; keeps a row permutation, not the rows. */
+    static <T> RowSource<T> sorted(RowSource<T> base, Function<? super T, ? extends Comparable<?>> key) {
+        int n = base.size();
+        Integer[] order = new Integer[n];
+        Object[] keys = new Object[n];
+        for (int i = 0; i < n; i++) { order[i] = i; keys[i] = key.apply(base.get(i)); }
+        Arrays.sort(order, (x, y) -> compareKeys(keys[x], keys[y]));
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) rows[i] = order[i];
+        return indexed(base, rows, n);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareKeys(Object a, Object b) {
+        if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+        if (a instanceof String) return ((String) a).compareToIgnoreCase((String) b);
+        return ((Comparable) a).compareTo(b);
+    }
+}
+
+class LazyTableModel<T> extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final int PAGE_SIZE = 128;
+    private final String[] columns;
+    private final List<Function<T, ?>> cells;
+    private RowSource<T> base, view;
+    private int sortColumn = -1, sortGeneration;
+    private Object[] page = new Object[PAGE_SIZE];
+    private int pageStart = -1, pageLen, lastSize; // lastSize: the row count the table has been told about
+    private boolean stale, repaint; // set by the row deltas of a batch, acted on in endChanges()
+
+    LazyTableModel(RowSource<T> source, String[] columns, List<Function<T, ?>> cells) {
+        this.columns = columns; this.cells = new ArrayList<>(cells);
+        this.base = this.view = source;
+        this.lastSize = source.size();
+    }
+
+    public int getRowCount() { return lastSize; }
+    public int getColumnCount() { return columns.length; }
+    public String getColumnName(int c) { return columns[c]; }
+    public boolean isCellEditable(int r, int c) { return false; }
+
+    public Object getValueAt(int row, int col) {
+        T t = row(row);
+        return t == null ? null : cells.get(col).apply(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T row(int row) {
+        if (row < pageStart || row >= pageStart + pageLen) {
+            pageStart = row - row % PAGE_SIZE;
+            pageLen = Math.max(0, Math.min(PAGE_SIZE, view.size() - pageStart));
+            for (int i = 0; i < pageLen; i++) page[i] = view.get(pageStart + i);
+            Arrays.fill(page, pageLen, PAGE_SIZE, null);
+        }
+        int i = row - pageStart;
+        return i >= 0 && i < pageLen ? (T) page[i] : null;
+    }
+
+    private void invalidate() { pageStart = -1; pageLen = 0; }
+
+    /** Switches to a different view (e.g. search results) and resets sorting. */
+    public void setSource(RowSource<T> source) {
+        base = view = source; sortColumn = -1;
+        reload();
+    }
+
+    /** Orders the rows by a column; a second call on the same column restores source order. */
+    public void sortBy(int col) {
+        sortColumn = sortColumn == col ? -1 : col;
+        reload();
+    }
+
+    /**
+     * Recomputes the view after structural changes. Sorting reads every row, so it runs in UiTasks;
+     * until it is done the old order stays up, or the unsorted rows if the source has shrunk.
+     */
+    public void reload() {
+        int generation = ++sortGeneration;
+        if (sortColumn < 0) { apply(base); return; }
+        RowSource<T> source = base;
+        Function<T, ?> key = cells.get(sortColumn);
+        if (view.size() > source.size()) apply(source);
+        UiTasks.run(null, () -> RowSources.sorted(source, t -> t == null ? null : (Comparable<?>) key.apply(t)), // rows can vanish meanwhile
+            sorted -> { if (generation == sortGeneration) apply(sorted); });
+    }
+
+    private void apply(RowSource<T> rows) {
+        view = rows;
+        invalidate();
+        lastSize = view.size();
+        fireTableDataChanged();
+    }
+
+    /** Rows were appended to the source: only the new rows are announced. */
+    public void appended() {
+        if (sortColumn >= 0) { reload(); return; }
+        int size = view.size();
+        invalidate();
+        if (size > lastSize) fireTableRowsInserted(lastSize, size - 1);
+        lastSize = size;
+    }
+
+    /* --- Row deltas from a ChangeBus batch, in event order, followed by endChanges(). Rows are
+           source rows, so they apply only while unsorted; a sorted view is re-sorted once at the
+           end if rows came or went, and otherwise just repainted. --- */
+    public void inserted(int row) {
+        if (sortColumn >= 0 || row < 0 || row > lastSize) { stale = true; return; }
+        invalidate();
+        lastSize++;
+        fireTableRowsInserted(row, row);
+    }
+
+    public void deleted(int row) {
+        if (sortColumn >= 0 || row < 0 || row >= lastSize) { stale = true; return; }
+        invalidate();
+        lastSize--;
+        fireTableRowsDeleted(row, row);
+    }
+
+    /** A row's values changed; -1 when it is not known which. */
+    public void updated(int row) {
+        if (sortColumn >= 0 || row < 0 || row >= lastSize) { repaint = true; return; }
+        rowsChanged(row, row);
+    }
+
+    /**
+     * Ends a batch. {@code size} is the source's size after the batch's last change (ChangeEvent.size, -1 if
+     * unknown); if the deltas did not fit or did not arrive at it the view is reloaded (re-sorted if sorted).
+     * The live size is no guide: it already counts changes still on their way in the next batch.
+     */
+    public void endChanges(int size) {
+        if (stale || (size >= 0 && sortColumn < 0 && size != lastSize)) reload();
+        else if (repaint) rowsChanged(0, lastSize - 1);
+        stale = repaint = false;
+    }
+
+    public void rowsChanged(int first, int last) {
+        invalidate();
+        if (first >= 0 && last >= first) fireTableRowsUpdated(first, Math.min(last, getRowCount() - 1));
+    }
+
+    /** Re-reads the visible rows without touching the table structure. */
+    public void refreshRows() {
+        if (view.size() != lastSize) { reload(); return; }
+        rowsChanged(0, lastSize - 1);
+    }
+
+    /** Lets the user sort by clicking a column header. */
+    public void installHeaderSorting(JTable table) {
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                int c = table.columnAtPoint(e.getPoint());
+                if (c >= 0) sortBy(table.convertColumnIndexToModel(c));
+            }
+        });
+    }
+}
+
+/* ------------------------
+   METRICS
+   - Process-wide registry of latency histograms and counters, cheap enough for every
+     database call: a histogram is 4 log-spaced buckets per power of two (about 20%
+     resolution) in an AtomicLongArray, no locks and no allocation on record.
+   - Each timed operation is also a "library.Operation" JFR event while a recording has it
+     enabled. The event type is built through jdk.jfr.EventFactory by reflection, so the
+     app still runs on a JRE without JFR.
+   - snapshot/toJson feed the diagnostics dialog, /api/metrics and export(File).
+   ------------------------ */
+final class Metrics {
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final long STARTED = System.currentTimeMillis();
+
+    private Metrics() {}
+
+    static Histogram histogram(String name) { return HISTOGRAMS.computeIfAbsent(name, Histogram::new); }
+    static LongAdder counter(String name) { return COUNTERS.computeIfAbsent(name, n -> new LongAdder()); }
+    static Collection<Histogram> histograms() { return HISTOGRAMS.values(); }
+    static Map<String, Long> counters() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> e : COUNTERS.entrySet()) out.put(e.getKey(), e.getValue().sum());
+        return out;
+    }
+
+    static final class Histogram {
+        private static final int SUB = 4, BUCKETS = 64 * SUB;
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder(), sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) { this.name = name; }
+
+        /** Starts timing one operation; {@link Sample#stop()} records it. */
+        Sample start() { return new Sample(this, Jfr.begin(name)); }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+            for (long m; nanos > (m = max.get()) && !max.compareAndSet(m, nanos); ) { }
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return exp * SUB + (int) ((v >>> (exp - 2)) & (SUB - 1));
+        }
+
+        /** Upper bound of a bucket, so reported percentiles never understate. */
+        private static long bucketLimit(int b) {
+            if (b < SUB) return b;
+            int exp = b / SUB;
+            return ((long) (SUB + b % SUB + 1) << (exp - 2)) - 1;
+        }
+
+        long count() { return count.sum(); }
+        long max() { return max.get(); }
+        double mean() { long n = count.sum(); return n == 0 ? 0 : (double) sum.sum() / n; }
+
+        long percentile(double p) {
+            long n = count.sum(), rank = (long) Math.ceil(n * p), seen = 0;
+            if (n == 0) return 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) return Math.min(bucketLimit(b), max.get());
+            }
+            return max.get();
+        }
+    }
+
+    /** One timed operation; {@code bytes} is reported on the JFR event. */
+    static final class Sample {
+        private final Histogram histogram;
+        private final Object event;
+        private final long start = System.nanoTime();
+
+        private Sample(Histogram h, Object event) { this.histogram = h; this.event = event; }
+
+        void stop() { stop(0); }
+        void stop(long bytes) {
+            histogram.record(System.nanoTime() - start);
+            if (event != null) Jfr.commit(event, histogram.name, bytes);
+        }
+    }
+
+    static String toJson() {
+        StringBuilder sb = new StringBuilder("{\"since\":").append(STARTED).append(",\"at\":").append(System.currentTimeMillis()).append(",\"timers\":{");
+        boolean first = true;
+        for (Histogram h : histograms()) {
+            if (!first) sb.append(','); first = false;
+            sb.append(LibraryHttpServer.str(h.name)).append(":{\"count\":").append(h.count())
+              .append(",\"meanUs\":").append(Math.round(h.mean() / 1000)).append(",\"p50Us\":").append(h.percentile(0.50) / 1000)
+              .append(",\"p95Us\":").append(h.percentile(0.95) / 1000).append(",\"p99Us\":").append(h.percentile(0.99) / 1000)
+              .append(",\"maxUs\":").append(h.max() / 1000).append('}');
+        }
+        sb.append("},\"counters\":{");
+        first = true;
+        for (Map.Entry<String, Long> e : counters().entrySet()) {
+            if (!first) sb.append(','); first = false;
+            sb.append(LibraryHttpServer.str(e.getKey())).append(':').append(e.getValue());
+        }
+        sb.append("},\"edtStalls\":[");
+        first = true;
+        for (EdtWatchdog.Stall s : EdtWatchdog.stalls()) {
+            if (!first) sb.append(','); first = false;
+            sb.append("{\"at\":").append(s.at).append(",\"ms\":").append(s.millis).append(",\"samples\":").append(s.samples)
+              .append(",\"stack\":").append(LibraryHttpServer.str(s.stack)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /** Starts reporting operations as JFR events; called once the database has finished loading. */
+    static void enableJfr() { Jfr.load(); }
+
+    static void export(File target) throws IOException {
+        LibraryDatabase.writeAtomically(target, out -> out.write(toJson().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reflective bridge to jdk.jfr; every method is a no-op when JFR is unavailable. Loading
+     * jdk.jfr costs a few hundred milliseconds, so it is done on a background thread once
+     * startup is over (see {@link Metrics#enableJfr()}); earlier operations are not reported.
+     */
+    private static final class Jfr {
+        private static volatile Jfr bridge;
+        private static final java.util.concurrent.atomic.AtomicBoolean STARTED = new java.util.concurrent.atomic.AtomicBoolean();
+
+        private final Object factory, type;
+        private final java.lang.reflect.Method newEvent, isEnabled, begin, end, set, commit;
+
+        private Jfr() throws ReflectiveOperationException {
+            Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement"), value = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory"), event = Class.forName("jdk.jfr.Event");
+            java.lang.reflect.Constructor<?> a = annotation.getConstructor(Class.class, Object.class);
+            java.lang.reflect.Constructor<?> v = value.getConstructor(Class.class, String.class);
+            List<Object> annotations = Arrays.asList(
+                a.newInstance(Class.forName("jdk.jfr.Name"), "library.Operation"),
+                a.newInstance(Class.forName("jdk.jfr.Label"), "Library Operation"),
+                a.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Library" }));
+            List<Object> fields = Arrays.asList(v.newInstance(String.class, "operation"), v.newInstance(long.class, "bytes"));
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            type = eventFactory.getMethod("getEventType").invoke(factory);
+            newEvent = eventFactory.getMethod("newEvent");
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            begin = event.getMethod("begin"); end = event.getMethod("end");
+            set = event.getMethod("set", int.class, Object.class); commit = event.getMethod("commit");
+        }
+
+        static void load() {
+            if (!STARTED.compareAndSet(false, true)) return;
+            Thread t = new Thread(() -> {
+                try { bridge = new Jfr(); } catch (ReflectiveOperationException | RuntimeException | LinkageError e) { /* no JFR */ }
+            }, "library-jfr-init");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+
+        static Object begin(String operation) {
+            Jfr j = bridge;
+            if (j == null) return null;
+            try {
+                if (!(Boolean) j.isEnabled.invoke(j.type)) return null;
+                Object e = j.newEvent.invoke(j.factory);
+                j.begin.invoke(e);
+                return e;
+            } catch (ReflectiveOperationException ex) { return null; }
+        }
+
+        static void commit(Object event, String operation, long bytes) {
+            Jfr j = bridge;
+            try {
+                j.end.invoke(event);
+                j.set.invoke(event, 0, operation);
+                j.set.invoke(event, 1, bytes);
+                j.commit.invoke(event);
+            } catch (ReflectiveOperationException ignored) {}
+        }
+    }
+}
+
+/* ------------------------
+   EDT WATCHDOG
+   - A daemon thread pings the event dispatch thread every PING_MS while a window is open
+     (pinging with none would keep AWT from shutting down). When a ping is not
+     answered within STALL_MS, the EDT's stack is sampled until it answers; the stall
+     (duration, sample count, most frequent stack) goes into a ring of the last MAX_STALLS
+     and into the "edt.stall" histogram.
+   ------------------------ */
+final class EdtWatchdog {
+    static final long STALL_MS = Long.getLong("library.edt.stallMs", 200L);
+    private static final long PING_MS = 50;
+    private static final int MAX_STALLS = 50, STACK_DEPTH = 16;
+    private static final Deque<Stall> STALLS = new ArrayDeque<>();
+    private static final Metrics.Histogram STALL_TIME = Metrics.histogram("edt.stall");
+    private static Thread watcher;
+
+    private static volatile Thread edt;
+    private static volatile long answeredAt;
+
+    static final class Stall {
+        final long at, millis;
+        final int samples;
+        final String stack;
+        Stall(long at, long millis, int samples, String stack) { this.at = at; this.millis = millis; this.samples = samples; this.stack = stack; }
+    }
+
+    private EdtWatchdog() {}
+
+    static synchronized void start() {
+        if (watcher != null) return;
+        watcher = new Thread(EdtWatchdog::watch, "library-edt-watchdog");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    static List<Stall> stalls() {
+        synchronized (STALLS) { return new ArrayList<>(STALLS); }
+    }
+
+    private static void watch() {
+        Map<String, Integer> samples = new HashMap<>();
+        while (true) {
+            if (!anyWindowOpen()) {
+                try { Thread.sleep(PING_MS * 4); } catch (InterruptedException e) { return; }
+                continue;
+            }
+            long sent = System.nanoTime();
+            answeredAt = 0;
+            EventQueue.invokeLater(() -> { edt = Thread.currentThread(); answeredAt = System.nanoTime(); });
+            samples.clear();
+            int taken = 0;
+            try {
+                Thread.sleep(PING_MS);
+                while (answeredAt == 0) {
+                    if (System.nanoTime() - sent >= STALL_MS * 1_000_000 && edt != null) {
+                        samples.merge(stackKey(edt.getStackTrace()), 1, Integer::sum);
+                        taken++;
+                    }
+                    Thread.sleep(PING_MS / 2);
+                }
+            } catch (InterruptedException e) { return; }
+            long millis = (answeredAt - sent) / 1_000_000;
+            if (millis < STALL_MS) continue;
+            STALL_TIME.record(answeredAt - sent);
+            String stack = samples.isEmpty() ? "" : Collections.max(samples.entrySet(), Map.Entry.comparingByValue()).getKey();
+            synchronized (STALLS) {
+                if (STALLS.size() == MAX_STALLS) STALLS.removeFirst();
+                STALLS.addLast(new Stall(System.currentTimeMillis() - millis, millis, taken, stack));
+            }
+        }
+    }
+
+    private static boolean anyWindowOpen() {
+        for (Window w : Window.getWindows()) if (w.isDisplayable()) return true;
+        return false;
+    }
+
+    private static String stackKey(StackTraceElement[] frames) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(STACK_DEPTH, frames.length); i++) sb.append("at ").append(frames[i]).append('\n');
+        return sb.toString();
+    }
+}
+
+/* ------------------------
+   CHANGE EVENTS
+   - LibraryDatabase publishes a ChangeEvent for every change to a book, a user or the history,
+     under the lock that makes the change, so events arrive in the order the changes happened.
+   - Each subscription has its own queue and gets everything queued since its last delivery as
+     one batch on the executor it chose (UiTasks.NEXT_FRAME: once per frame on the EDT).
+   - A subscriber more than MAX_PENDING events behind gets a single RESET instead and rebuilds.
+   ------------------------ */
+final class ChangeEvent {
+    enum Kind { BOOK_ADDED, BOOK_UPDATED, BOOK_REMOVED, USER_ADDED, USER_UPDATED, USER_REMOVED, TRANSACTION_APPENDED, RESET }
+    static final ChangeEvent RESET = new ChangeEvent(Kind.RESET, null, -1, -1, null);
+
+    final Kind kind;
+    /** Book id or username; null for transactions and RESET. */
+    final String key;
+    /** Row in LibraryDatabase.bookView()/userView() order (before a removal, after anything else); -1 if not known. */
+    final int row;
+    /** Size of that view right after the change, so a subscriber can tell its deltas added up; -1 if not known. */
+    final int size;
+    private final Object value;
+
+    private ChangeEvent(Kind kind, String key, int row, int size, Object value) { this.kind = kind; this.key = key; this.row = row; this.size = size; this.value = value; }
+
+    static ChangeEvent book(Kind kind, Book b, int row, int size) { return new ChangeEvent(kind, b.getId(), row, size, b); }
+    static ChangeEvent bookRemoved(String id, int row, int size) { return new ChangeEvent(Kind.BOOK_REMOVED, id, row, size, null); }
+    static ChangeEvent user(Kind kind, User u, int row, int size) { return new ChangeEvent(kind, u.getUsername(), row, size, u); }
+    static ChangeEvent appended(Transaction t) { return new ChangeEvent(Kind.TRANSACTION_APPENDED, null, -1, -1, t); }
+
+    boolean isBook() { return kind == Kind.BOOK_ADDED || kind == Kind.BOOK_UPDATED || kind == Kind.BOOK_REMOVED; }
+    boolean isUser() { return kind == Kind.USER_ADDED || kind == Kind.USER_UPDATED || kind == Kind.USER_REMOVED; }
+    /** The object changed (the removed one for USER_REMOVED); null for BOOK_REMOVED and RESET. */
+    Book book() { return value instanceof Book ? (Book) value : null; }
+    User user() { return value instanceof User ? (User) value : null; }
+    Transaction transaction() { return value instanceof Transaction ? (Transaction) value : null; }
+}
+
+final class ChangeBus {
+    private static final int MAX_PENDING = Integer.getInteger("library.events.maxPending", 10_000);
+
+    interface Listener { void changed(List<ChangeEvent> batch); }
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /** {@code deliverOn} must run the delivery later, not inline: events are published under database locks. */
+    Subscription subscribe(Listener listener, Executor deliverOn) {
+        Subscription s = new Subscription(listener, deliverOn);
+        subscriptions.add(s);
+        return s;
+    }
+
+    boolean hasSubscribers() { return !subscriptions.isEmpty(); }
+
+    /** Only queues; never blocks and never calls a listener itself. */
+    void publish(ChangeEvent e) {
+        for (Subscription s : subscriptions) s.offer(e);
+    }
+
+    final class Subscription implements AutoCloseable {
+        private final Listener listener;
+        private final Executor deliverOn;
+        private final Queue<ChangeEvent> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(), overflowed = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private Subscription(Listener listener, Executor deliverOn) { this.listener = listener; this.deliverOn = deliverOn; }
+
+        private void offer(ChangeEvent e) {
+            if (pending.incrementAndGet() > MAX_PENDING) { pending.decrementAndGet(); overflowed.set(true); }
+            else queue.add(e);
+            if (scheduled.compareAndSet(false, true)) deliverOn.execute(this::deliver);
+        }
+
+        private void deliver() {
+            scheduled.set(false); // events offered from here on schedule the next batch
+            List<ChangeEvent> batch = new ArrayList<>();
+            for (ChangeEvent e; (e = queue.poll()) != null; ) { batch.add(e); pending.decrementAndGet(); }
+            if (overflowed.getAndSet(false)) batch = Collections.singletonList(ChangeEvent.RESET);
+            if (!closed && !batch.isEmpty()) listener.changed(batch);
+        }
+
+        public void close() { closed = true; subscriptions.remove(this); }
+    }
+}
+
+/* ------------------------
+   SHARED DATA DIRECTORY (library.lock)
+   - Each instance holds a lock on the first byte of library.lock while it runs: exclusive
+     normally, shared with -Dlibrary.shared=true (several circulation desks on one directory,
+     e.g. on a network share). An instance that cannot get it refuses to start, so two desks
+     never overwrite each other's files unknowingly.
+   - Shared instances change the files only while holding the second byte (hold()), after
+     merging what the others wrote (LibraryDatabase.catchUp). Holds nest within a process.
+   - A write bumps a counter in the file, which is also how the others notice changes to
+     books.db: writes through its mapping raise no file events. watch() calls back when the
+     counter moved, checking on WatchService events and every POLL_MS regardless, since
+     network file systems do not report them.
+   ------------------------ */
+final class DirectoryLock implements Closeable {
+    static final String FILE = "library.lock";
+    private static final long POLL_MS = Long.getLong("library.shared.pollMs", 1000L);
+    private static final long OWNER = 0, WRITER = 1, COUNTER_AT = 16;
+
+    private final File dir;
+    private final boolean shared;
+    private final FileChannel channel;
+    private final FileLock owner;
+    private final ReentrantLock local = new ReentrantLock(); // the in-process part of hold()
+    private FileLock writer;
+    private boolean dirty; // something was written under the current hold
+    private volatile long seen; // counter value this instance is caught up with
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile WatchService watchService;
+    private Thread watcher;
+
+    /** A hold on the write lock; closing the outermost one releases it. */
+    final class Held implements AutoCloseable {
+        /** True for the outermost hold of this thread: the one that should catch up first. */
+        final boolean outermost;
+        private final boolean locked;
+        private Held(boolean outermost, boolean locked) { this.outermost = outermost; this.locked = locked; }
+        public void close() { if (locked) release(); }
+    }
+
+    private DirectoryLock(File dir, boolean shared) throws IOException {
+        this.dir = dir;
+        this.shared = shared;
+        channel = FileChannel.open(new File(dir, FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try { lock = channel.tryLock(OWNER, 1, shared); }
+        catch (OverlappingFileLockException e) { lock = null; }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException("The library in " + dir.getAbsolutePath() + " is open in another program. "
+                + "To run several desks on it, start every one with -Dlibrary.shared=true.");
+        }
+        owner = lock;
+        seen = counter();
+    }
+
+    /** Locks {@code dir} for this instance; throws IllegalStateException if another one has it. */
+    static DirectoryLock open(File dir, boolean shared) throws IOException { return new DirectoryLock(dir, shared); }
+
+    boolean shared() { return shared; }
+
+    /** Takes the write lock, blocking while another instance has it; a no-op unless shared. */
+    Held hold() throws IOException {
+        if (!shared) return new Held(false, false);
+        local.lock();
+        if (local.getHoldCount() == 1) {
+            try { writer = channel.lock(WRITER, 1, false); }
+            catch (IOException | RuntimeException e) { local.unlock(); throw e; }
+        }
+        return new Held(local.getHoldCount() == 1, true);
+    }
+
+    private void release() {
+        try {
+            if (local.getHoldCount() > 1) return;
+            try {
+                if (dirty) { dirty = false; signal(); }
+            } finally { writer.release(); writer = null; }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally { local.unlock(); }
+    }
+
+    /** Notes that the current hold wrote something, so the others get signalled when it is released. */
+    void wrote() { if (shared && local.isHeldByCurrentThread()) dirty = true; }
+
+    /** The write counter; changes whenever any instance wrote. */
+    long counter() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        while (b.hasRemaining() && channel.read(b, COUNTER_AT + b.position()) > 0) { }
+        return b.position() < 8 ? 0 : b.getLong(0);
+    }
+
+    private void signal() throws IOException {
+        long c = counter();
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putLong(0, c + 1);
+        while (b.hasRemaining()) channel.write(b, COUNTER_AT + b.position());
+        if (seen == c) seen = c + 1; // our own write; still behind if we were
+    }
+
+    /** Records that this instance has merged everything up to counter value {@code c}. */
+    void caughtUp(long c) { seen = c; }
+
+    /** Calls {@code onChange} on a daemon thread whenever another instance may have written, until close. */
+    void watch(Runnable onChange) {
+        try {
+            WatchService ws = dir.toPath().getFileSystem().newWatchService();
+            dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchService = ws;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Not watching " + dir + " (" + e + "); checking every " + POLL_MS + " ms");
+        }
+        watcher = new Thread(() -> {
+            while (closed.getCount() > 0) {
+                try {
+                    WatchService ws = watchService;
+                    if (ws == null) closed.await(POLL_MS, TimeUnit.MILLISECONDS);
+                    else { WatchKey k = ws.poll(POLL_MS, TimeUnit.MILLISECONDS); if (k != null) { k.pollEvents(); k.reset(); } }
+                    if (closed.getCount() > 0 && counter() != seen) onChange.run();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace(); // keep watching
+                }
+            }
+        }, "library-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /** Stops the watch thread, waiting for a callback in progress. */
+    void stopWatching() throws IOException {
+        closed.countDown();
+        WatchService ws = watchService;
+        if (ws != null) ws.close();
+        Thread w = watcher;
+        if (w != null && w != Thread.currentThread()) {
+            try { w.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopWatching();
+        if (channel.isOpen()) { owner.release(); channel.close(); }
+    }
+}
+
+/* ------------------------
+   DATABASE (file-based persistence)
+   - Mutations only mark books/users dirty; a background writer group-commits them every
+     COMMIT_INTERVAL_MS or once COMMIT_THRESHOLD changes pile up. History records go to
+     history.log as they are added (its fsync is batched, see TransactionLog), so a loan
+     shown as done is in the file; a crash loses at most its unsynced tail.
+   - flush() performs the same commit synchronously (explicit Save, shutdown).
+   - Shared mode (-Dlibrary.shared=true, see DirectoryLock): every change is made under the
+     directory's write lock right after merging the other desks' changes (catchUp), and goes
+     to the files before the lock is released: book slots in place, loans straight into
+     history.log, account changes by rewriting users.bin. The others merge incrementally:
+     changed book slots from the books.db ring, new history.log records from their offset
+     (which also update loan lists), users.bin records with a newer version. Book edits are
+     optimistic (updateBook): they fail if the book changed after it was read.
+   ------------------------ */
+class LibraryDatabase {
+    private static final String BOOKS_FILE = "books.data";
+    private static final String BOOKS_STORE = "books.db";
+    private static final String USERS_FILE = "users.data";
+    private static final String USERS_STORE = "users.bin";
+    private static final String HISTORY_FILE = "history.data";
+    private static final String HISTORY_LOG = "history.log";
+    private static final long COMMIT_INTERVAL_MS = Long.getLong("library.commitIntervalMs", 2000L);
+    private static final int COMMIT_THRESHOLD = Integer.getInteger("library.commitThreshold", 256);
+    private static final long COMPACT_DELAY_MS = Long.getLong("library.history.compactDelayMs", 60_000L);
+    private static final long COMPACT_INTERVAL_MS = Long.getLong("library.history.compactIntervalMs", 6 * 3600_000L);
+    private static final boolean SHARED = Boolean.getBoolean("library.shared");
+    private static final boolean VERIFY_LOANS = Boolean.parseBoolean(System.getProperty("library.loans.verify", "true"));
+
+    private MappedBookStore books;
+    private final BookSearchIndex searchIndex = new BookSearchIndex();
+    private Map<String, User> users = new LinkedHashMap<>();
+    private volatile HistoryStore history; // the hot part; replaced when compaction archives older records
+    private HistoryArchive archive;
+    private TransactionLog historyLog;
+    private final CirculationStats circulation = new CirculationStats(ZoneId.systemDefault());
+    private boolean circulationLive; // set with the rebuild snapshot; from then on addTransaction counts records
+    private final LoanTable loans = new LoanTable(); // changed with the loan lists, under the monitor
+    private int historyEpoch; // bumped (monitor held) whenever records move between history.log and segments
+    private volatile boolean closing;
+    private final ChangeBus events = new ChangeBus();
+
+    // Shared mode, guarded by the write lock: users.bin as last read or written here, the
+    // history.log checkpoint the loan lists were read at, and whether history.log is followed
+    // (from then on loan lists are kept by its records rather than taken from users.bin)
+    private final DirectoryLock dirLock;
+    private List<Object> usersStamp;
+    private long usersGeneration, usersOffset = -1;
+    private boolean tailing;
+
+    // Startup: users load before the constructor returns (login needs nothing else); the
+    // catalog, its search index and the history load on background threads. Callers block
+    // in books()/index()/history() only on the part they touch.
+    private final CompletableFuture<Void> booksReady, indexReady, historyReady, circulationReady, loansChecked;
+    private final Map<String, Long> startupMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private static final Metrics.Histogram M_GET_BOOK = Metrics.histogram("db.getBook"), M_GET_USER = Metrics.histogram("db.getUser"),
+        M_SEARCH = Metrics.histogram("db.searchBooks"), M_ADD_TX = Metrics.histogram("db.addTransaction"),
+        M_BORROW = Metrics.histogram("db.borrow"), M_GIVE_BACK = Metrics.histogram("db.giveBack"),
+        M_PUT_BOOK = Metrics.histogram("db.addOrUpdateBook"), M_REMOVE_BOOK = Metrics.histogram("db.removeBook"),
+        M_COMMIT = Metrics.histogram("save.commit"), M_SAVE_HISTORY = Metrics.histogram("save.history"),
+        M_SAVE_BOOKS = Metrics.histogram("save.books"), M_SAVE_USERS = Metrics.histogram("save.users"),
+        M_IMPORT = Metrics.histogram("db.importBooks"), M_COMPACT = Metrics.histogram("save.compactHistory"),
+        M_VERIFY_LOANS = Metrics.histogram("db.verifyLoans");
+    private static final LongAdder BYTES_HISTORY = Metrics.counter("bytes.history"), BYTES_BOOKS = Metrics.counter("bytes.books"),
+        BYTES_USERS = Metrics.counter("bytes.users");
+    private final long startedAt = System.nanoTime();
+
+    /** Outcome of {@link #borrow}/{@link #giveBack}. */
+    enum LoanResult { OK, NO_SUCH_BOOK, UNAVAILABLE, NOT_BORROWED }
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantLock[] bookLocks = new ReentrantLock[LOCK_STRIPES];
+    { for (int i = 0; i < LOCK_STRIPES; i++) bookLocks[i] = new ReentrantLock(); }
+
+    private final Set<String> dirtyBooks = new LinkedHashSet<>();
+    private final Set<String> dirtyUsers = new LinkedHashSet<>();
+    private final Object commitLock = new Object();
+    private final ScheduledExecutorService writer;
+    private boolean commitQueued;
+
+    private final File dir;
+    private final Thread shutdownHook = new Thread(this::close, "library-shutdown");
+
+    /** Opens the data files in {@code -Dlibrary.dataDir} (default: the working directory). */
+    public LibraryDatabase() { this(new File(System.getProperty("library.dataDir", "."))); }
+
+    public LibraryDatabase(File dir) {
+        this.dir = dir;
+        try { dirLock = DirectoryLock.open(dir, SHARED); }
+        catch (IOException e) { throw new UncheckedIOException("Cannot open " + DirectoryLock.FILE, e); }
+        // users first: they are small, and on a machine with few cores the background loads would
+        // otherwise compete with them and delay the login window
+        timed("users", () -> locked(this::loadUsers));
+        ExecutorService loader = Executors.newFixedThreadPool(2, r -> { Thread t = new Thread(r, "library-loader"); t.setDaemon(true); return t; });
+        booksReady = CompletableFuture.runAsync(() -> timed("books", () -> locked(this::loadBooks)), loader);
+        indexReady = booksReady.thenRunAsync(() -> timed("search index", this::buildIndex), loader);
+        historyReady = booksReady.thenRunAsync(() -> timed("history", () -> locked(this::loadHistory)), loader);
+        circulationReady = historyReady.thenRunAsync(() -> timed("circulation stats", this::buildCirculation), loader);
+        loansChecked = VERIFY_LOANS ? circulationReady.thenRunAsync(() -> timed("loan check", this::checkLoans), loader) : CompletableFuture.<Void>completedFuture(null);
+        CompletableFuture.allOf(indexReady, circulationReady, loansChecked).whenComplete((v, e) -> {
+            loader.shutdown();
+            startupMillis.put("loaded", (System.nanoTime() - startedAt) / 1_000_000);
+            Metrics.enableJfr();
+            System.err.println("Library startup (ms): " + getStartupTimings());
+        });
+        writer = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "library-writer"); t.setDaemon(true); return t; });
+        writer.scheduleWithFixedDelay(this::commitQuietly, COMMIT_INTERVAL_MS, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(this::compactQuietly, COMPACT_DELAY_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (dirLock.shared()) dirLock.watch(this::catchUpQuietly);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private File file(String name) { return new File(dir, name); }
+
+    private void timed(String phase, Runnable load) {
+        long t0 = System.nanoTime();
+        Metrics.Sample m = Metrics.histogram("load." + phase).start();
+        try { load.run(); }
+        finally { m.stop(); startupMillis.put(phase, (System.nanoTime() - t0) / 1_000_000); }
+    }
+
+    /** Milliseconds spent in each startup phase so far, in completion order ("loaded" once all are done). */
+    public Map<String, Long> getStartupTimings() {
+        synchronized (startupMillis) { return new LinkedHashMap<>(startupMillis); }
+    }
+
+    /** Records a phase measured outside the database, e.g. time until the login window shows. */
+    public void recordStartupPhase(String phase, long millis) {
+        startupMillis.put(phase, millis);
+        if (startupMillis.containsKey("loaded")) System.err.println("Library startup (ms): " + phase + "=" + millis);
+    }
+
+    /** Blocks until the catalog, search index, history and circulation stats have loaded. */
+    public void awaitLoaded() { await(indexReady); await(historyReady); await(circulationReady); }
+
+    private static boolean isDone(CompletableFuture<Void> f) { return f.isDone() && !f.isCompletedExceptionally(); }
+
+    private static void await(CompletableFuture<Void> f) {
+        try { f.join(); }
+        catch (CompletionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IllegalStateException("Library failed to load", c);
+        }
+    }
+
+    private MappedBookStore books() { await(booksReady); return books; }
+    private BookSearchIndex index() { await(indexReady); return searchIndex; }
+    private HistoryStore history() { await(historyReady); return history; }
+    /** Usage aggregates; blocks until their startup rebuild is done. */
+    public CirculationStats circulation() { await(circulationReady); return circulation; }
+    /** Title of a book as history knows it (a deleted book keeps its last title). */
+    public String historyTitle(String bookKey) { return history().titleOf(bookKey); }
+
+    /** Reads users.bin; on first run (or if it is damaged) the legacy users.data snapshot is imported, else users are seeded. */
+    @SuppressWarnings("unchecked")
+    private void loadUsers() {
+        File store = file(USERS_STORE);
+        if (store.exists()) {
+            try (InputStream in = new FileInputStream(store)) {
+                UserCodec.Snapshot snapshot = UserCodec.read(in);
+                users = snapshot.users;
+                usersGeneration = snapshot.generation;
+                usersOffset = snapshot.offset;
+                usersStamp = stamp(store);
+                dirtyUsers.clear();
+                fillLoans();
+                return;
+            } catch (IOException e) {
+                File bad = file(USERS_STORE + ".corrupt");
+                System.err.println(store + " is unreadable (" + e.getMessage() + "); moved aside to " + bad.getName());
+                if (!store.renameTo(bad)) store.delete();
+            }
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file(USERS_FILE)))) {
+            Object o = ois.readObject();
+            if (o instanceof Map) users = (Map<String, User>) o;
+        } catch (Exception e) { seedUsers(); }
+        saveUsers();
+        dirtyUsers.clear();
+        fillLoans();
+    }
+
+    private synchronized void fillLoans() {
+        loans.clear();
+        for (User u : users.values()) if (u instanceof Student) loans.replace(u.getUsername(), ((Student) u).getBorrowedBookIds());
+    }
+
+    /** Opens books.db; on first run it is filled from the legacy books.data snapshot (or seeded). */
+    @SuppressWarnings("unchecked")
+    private void loadBooks() {
+        File store = file(BOOKS_STORE);
+        boolean migrate = !MappedBookStore.exists(store);
+        try {
+            books = new MappedBookStore(store);
+        } catch (IOException e) { throw new UncheckedIOException("Cannot open " + BOOKS_STORE, e); }
+        if (migrate) {
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file(BOOKS_FILE)))) {
+                Object o = ois.readObject();
+                if (o instanceof Map) for (Book b : ((Map<String, Book>) o).values()) books.put(b);
+            } catch (Exception e) { seedBooks(); }
+            books.force();
+        }
+    }
+
+    private void buildIndex() {
+        for (Book b : books.values()) searchIndex.add(b);
+    }
+
+    /** Identifies a users.bin as written: a rewrite renames a new file over it. Null if there is none. */
+    private static List<Object> stamp(File f) {
+        try {
+            BasicFileAttributes a = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            return Arrays.asList(a.fileKey(), a.lastModifiedTime(), a.size());
+        } catch (IOException e) { return null; }
+    }
+
+    /** Lists the archive and replays history.log; on first run the legacy history.data snapshot is migrated into it. */
+    @SuppressWarnings("unchecked")
+    private void loadHistory() {
+        try {
+            archive = new HistoryArchive(dir, books::get, books::contains); // before the log: may finish a compaction
+        } catch (IOException e) { throw new UncheckedIOException("Cannot open the history archive", e); }
+        File log = file(HISTORY_LOG);
+        boolean migrate = !log.exists();
+        history = new HistoryStore(books::get, books::contains);
+        try {
+            historyLog = new TransactionLog(log, history);
+        } catch (IOException e) { throw new UncheckedIOException("Cannot open " + HISTORY_LOG, e); }
+        // (legacy migration below runs before historyReady completes, so nothing else appends yet)
+        if (migrate) {
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file(HISTORY_FILE)))) {
+                Object o = ois.readObject();
+                if (o instanceof List) for (Transaction t : (List<Transaction>) o) { history.append(t); historyLog.append(t); }
+                historyLog.sync();
+            } catch (FileNotFoundException ignored) {
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+        // users.bin as it is now, then the loans logged after its checkpoint (by other desks, or
+        // here before a crash): lists and log now agree
+        try {
+            if (dirLock.shared()) catchUpUsers();
+            if (usersGeneration == historyLog.generation()) {
+                List<Transaction> later = historyLog.since(usersOffset);
+                synchronized (this) {
+                    for (Transaction t : later) applyLoan(t);
+                    tailing = true;
+                    if (!dirLock.shared()) for (Transaction t : later) dirtyUsers.add(t.getUsername());
+                }
+            } else {
+                // written by an older version (no checkpoint): its lists are as of the log end, so record that now
+                synchronized (this) { tailing = true; }
+                writeUsers();
+            }
+        } catch (IOException e) { throw new UncheckedIOException("Cannot read " + USERS_STORE, e); }
+    }
+
+    /**
+     * Counts the archive and the hot history loaded so far in parallel; records appended from
+     * the snapshot on are counted as they come. Segments are decoded one at a time.
+     */
+    private void buildCirculation() {
+        if (history == null) return;
+        HistoryStore.Snapshot snapshot;
+        synchronized (this) {
+            snapshot = history.snapshot();
+            circulationLive = true;
+        }
+        circulation.add(snapshot);
+        for (HistoryArchive.Segment s : archive.segments()) {
+            try { circulation.add(archive.snapshot(s)); }
+            catch (IOException e) { System.err.println(s.file + " is unreadable (" + e.getMessage() + "); not counted"); }
+        }
+    }
+
+    /**
+     * Moves hot records older than the hot window into their monthly segments, rewrites
+     * history.log without them and swaps in a hot store of the rest, then applies retention.
+     * Holds the commit lock throughout; loans go on and are logged to the old file. At the swap,
+     * under the monitor, the ones logged while the new files were staged are appended to the
+     * staged log and synced, and users.bin is written with its checkpoint in that log, all before
+     * the rename is journaled.
+     * Shared, it holds the write lock too, and a retention that only deletes segments still
+     * rewrites history.log: its new generation is what makes the other desks reload.
+     */
+    void compactHistory() throws IOException {
+        awaitLoaded();
+        if (historyLog == null) return;
+        ZoneId zone = circulation.zone();
+        YearMonth now = YearMonth.now(zone);
+        long cutoff = now.minusMonths(HistoryArchive.HOT_MONTHS - 1).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        YearMonth keepFrom = HistoryArchive.RETENTION_MONTHS > 0 ? now.minusMonths(HistoryArchive.RETENTION_MONTHS - 1) : null;
+        Metrics.Sample m = M_COMPACT.start();
+        HistoryStore dropped = new HistoryStore(books::get, books::contains);
+        boolean shared = dirLock.shared();
+        synchronized (commitLock) {
+            DirectoryLock.Held w = write();
+            try {
+                commit();
+                HistoryStore hot = history;
+                int logged;
+                synchronized (this) { logged = hot.size(); }
+                // these rows either stay hot or go to their month; rows logged during staging stay hot and are copied into the new log at the swap
+                CirculationStats.DayClock clock = new CirculationStats.DayClock(zone);
+                int[] kept = new int[Math.max(16, logged)];
+                int keptCount = 0;
+                Map<Integer, int[]> months = new TreeMap<>(); // month index -> {count, rows...}
+                for (int r = 0; r < logged; r++) {
+                    long t = hot.timeAt(r);
+                    if (t >= cutoff) { kept[keptCount++] = r; continue; }
+                    int[] rows = months.computeIfAbsent(clock.month(t), k -> new int[8]);
+                    if (rows[0] + 1 == rows.length) months.put(clock.month(t), rows = Arrays.copyOf(rows, rows.length * 2));
+                    rows[++rows[0]] = r;
+                }
+                boolean expiring = shared && keepFrom != null && !archive.expired(keepFrom).isEmpty();
+                if (!months.isEmpty() || expiring) {
+                    List<File> staged = new ArrayList<>();
+                    for (Map.Entry<Integer, int[]> e : months.entrySet()) {
+                        YearMonth month = YearMonth.of(e.getKey() / 12, e.getKey() % 12 + 1);
+                        int[] rows = e.getValue();
+                        if (keepFrom != null && month.isBefore(keepFrom)) {
+                            for (int i = 1; i <= rows[0]; i++) dropped.append(hot.get(rows[i]));
+                            continue;
+                        }
+                        List<Transaction> segment = new ArrayList<>(rows[0]);
+                        for (int i = 1; i <= rows[0]; i++) segment.add(hot.get(rows[i]));
+                        HistoryArchive.Segment existing = archive.segment(month);
+                        if (existing != null) { HistoryStore old = archive.read(existing); for (int i = 0; i < old.size(); i++) segment.add(old.get(i)); }
+                        segment.sort(Comparator.comparingLong(Transaction::getTime));
+                        staged.add(archive.stage(month, segment));
+                    }
+                    File stagedLog = historyLog.stage(RowSources.indexed(RowSources.of(hot::size, hot::get), kept, keptCount));
+                    staged.add(stagedLog);
+                    HistoryStore fresh = new HistoryStore(books::get, books::contains);
+                    for (int i = 0; i < keptCount; i++) fresh.append(hot.get(kept[i]));
+                    synchronized (this) {
+                        // no loan is logged from here to the rename: the late rows go into the staged log
+                        // (synced) and users.bin gets its checkpoint in it before the journal is written,
+                        // so a crash anywhere leaves lists and log in agreement, old or new
+                        List<Transaction> late = new ArrayList<>();
+                        for (int r = logged; r < hot.size(); r++) { Transaction t = hot.get(r); fresh.append(t); late.add(t); }
+                        long[] end = TransactionLog.appendStaged(stagedLog, late);
+                        writeUsers(snapshotUsers(end[0], end[1])); // the loan lists for the other desks, too
+                        dirtyUsers.clear();
+                        archive.commit(staged);
+                        historyLog.reopen();
+                        history = fresh;
+                        historyEpoch++;
+                        events.publish(ChangeEvent.RESET); // history views hold the old hot store
+                    }
+                }
+                if (shared) expire(keepFrom);
+            } finally { w.close(); }
+        }
+        if (!shared) expire(keepFrom);
+        if (dropped.size() > 0) circulation.remove(dropped.snapshot());
+        m.stop();
+    }
+
+    private void expire(YearMonth keepFrom) throws IOException {
+        if (keepFrom == null) return;
+        List<HistoryArchive.Segment> expired = archive.expired(keepFrom);
+        if (expired.isEmpty()) return;
+        synchronized (this) { historyEpoch++; } // before the files go, see verifyLoans
+        for (HistoryArchive.Segment s : expired) {
+            circulation.remove(archive.snapshot(s));
+            archive.delete(s);
+        }
+        events.publish(ChangeEvent.RESET);
+    }
+
+    private void compactQuietly() {
+        try { compactHistory(); } catch (IOException | RuntimeException e) { e.printStackTrace(); } // keep the schedule alive
+    }
+
+    public void save() {
+        try { flush(); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    /** Durably writes every pending change before returning. */
+    public void flush() throws IOException { commit(); }
+
+    private void saveUsers() {
+        try { writeUsers(); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    private void writeUsers() throws IOException {
+        UsersSnapshot snapshot;
+        synchronized (this) { snapshot = snapshotUsers(); dirtyUsers.clear(); }
+        writeUsers(snapshot);
+    }
+
+    /** The accounts with their loan lists copied, and the history.log checkpoint those lists reflect. */
+    private static final class UsersSnapshot {
+        final List<User> users;
+        final long generation, offset;
+        UsersSnapshot(List<User> users, long generation, long offset) { this.users = users; this.generation = generation; this.offset = offset; }
+    }
+
+    /**
+     * Monitor held: loan lists change with their log record under it (recordLoan, applyLoan),
+     * so the lists copied here are exactly those of the records before the log's position.
+     * Before history.log is followed the checkpoint read with users.bin is carried over.
+     */
+    private UsersSnapshot snapshotUsers() throws IOException {
+        return tailing ? snapshotUsers(historyLog.generation(), historyLog.position()) : snapshotUsers(usersGeneration, usersOffset);
+    }
+
+    /** Monitor held: the loan lists as of the given checkpoint (a compaction's staged log). */
+    private UsersSnapshot snapshotUsers(long generation, long offset) {
+        List<User> copy = new ArrayList<>(users.size());
+        for (User u : users.values()) copy.add(u instanceof Student ? ((Student) u).copy() : u);
+        return new UsersSnapshot(copy, generation, offset);
+    }
+
+    /** Writes users.bin; shared, the other desks then see it as changed by someone else no longer. */
+    private void writeUsers(UsersSnapshot snapshot) throws IOException {
+        File target = file(USERS_STORE);
+        writeAtomically(target, out -> UserCodec.write(snapshot.users, snapshot.generation, snapshot.offset, out));
+        if (dirLock.shared()) { usersStamp = stamp(target); dirLock.wrote(); }
+    }
+
+    /** One group commit: each dirty file is written once, and history.log gets one fsync. */
+    private void commit() throws IOException {
+        synchronized (commitLock) {
+            DirectoryLock.Held w = write();
+            try { commitHeld(); } finally { w.close(); }
+        }
+    }
+
+    /** commit() with the commit lock and the write lock held. */
+    private void commitHeld() throws IOException {
+        if (historyLog != null) { // loans went straight to the log; this forces what its batching has not yet
+            Metrics.Sample m = M_SAVE_HISTORY.start();
+            historyLog.sync();
+            m.stop();
+        }
+        UsersSnapshot userSnapshot = null;
+        Set<String> bookIds, userIds;
+        synchronized (this) {
+            commitQueued = false;
+            if (dirtyBooks.isEmpty() && dirtyUsers.isEmpty()) return;
+            if (!dirtyUsers.isEmpty()) userSnapshot = snapshotUsers(); // encoded outside the monitor
+            bookIds = new LinkedHashSet<>(dirtyBooks); dirtyBooks.clear();
+            userIds = new LinkedHashSet<>(dirtyUsers); dirtyUsers.clear();
+        }
+        try {
+            Metrics.Sample commit = M_COMMIT.start();
+            if (!bookIds.isEmpty()) {
+                Metrics.Sample m = M_SAVE_BOOKS.start();
+                books.force();
+                long bytes = (long) bookIds.size() * MappedBookStore.SLOT_SIZE; // dirty slots; the OS writes whole pages
+                m.stop(bytes);
+                BYTES_BOOKS.add(bytes);
+                bookIds.clear();
+            }
+            if (userSnapshot != null) {
+                Metrics.Sample m = M_SAVE_USERS.start();
+                File target = file(USERS_STORE);
+                writeUsers(userSnapshot);
+                m.stop(target.length());
+                BYTES_USERS.add(target.length());
+                userIds.clear();
+            }
+            commit.stop();
+        } catch (IOException e) {
+            synchronized (this) { dirtyBooks.addAll(bookIds); dirtyUsers.addAll(userIds); }
+            throw e;
+        }
+    }
+
+    private void commitQuietly() {
+        try { commit(); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    /** Called with the monitor held after every change; wakes the writer once enough has piled up. */
+    private void changed() {
+        if (commitQueued || writer == null) return;
+        if (dirtyBooks.size() + dirtyUsers.size() < COMMIT_THRESHOLD) return;
+        commitQueued = true;
+        writer.execute(this::commitQuietly);
+    }
+
+    /** Streams a file's content; lets writeAtomically encode straight to disk. */
+    interface ContentWriter { void writeTo(OutputStream out) throws IOException; }
+
+    /** Writes to a temp file and renames it over the target, so a crash never leaves a half-written file. */
+    static void writeAtomically(File target, ContentWriter content) throws IOException {
+        File tmp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            content.writeTo(out);
+            out.getFD().sync();
+        }
+        moveAtomically(tmp, target);
+    }
+
+    /** Renames {@code from} over {@code to}, atomically where the file system allows it. */
+    static void moveAtomically(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (java.nio.file.AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void addTransaction(Transaction t) {
+        Metrics.Sample m = M_ADD_TX.start();
+        history(); // wait for the load outside the monitor, logins must not queue behind it
+        DirectoryLock.Held w = write();
+        try {
+            synchronized (this) {
+                // logged before it is shown as done: a crash loses at most the unsynced tail (see TransactionLog);
+                // shared, the other desks read it from there
+                BYTES_HISTORY.add(historyLog.append(t));
+                dirLock.wrote();
+                history.append(t); // the field, not a local: compaction swaps it under this monitor
+                if (circulationLive) circulation.record(t.getTime(), t.getActionType(), HistoryStore.bookKey(t.getBookId(), t.getBookTitle()));
+                events.publish(ChangeEvent.appended(t));
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e);
+        } finally { w.close(); m.stop(); }
+    }
+
+    /* --- Shared mode (see DirectoryLock). Lock order is commit lock -> write lock -> stripe
+           -> database monitor -> student; write() is never called holding the monitor unless
+           the write lock is already held. --- */
+
+    /** The write lock without catching up; for loading, which reads the files as they are. */
+    private DirectoryLock.Held holdFiles() {
+        try { return dirLock.hold(); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    /** The write lock, after merging what the other desks wrote meanwhile; a no-op unless shared. */
+    private DirectoryLock.Held write() {
+        DirectoryLock.Held h = holdFiles();
+        if (h.outermost) {
+            try { catchUp(); } catch (RuntimeException | Error e) { h.close(); throw e; }
+        }
+        return h;
+    }
+
+    /** Loads under the write lock (shared), so no other desk is halfway through a change. */
+    private void locked(Runnable load) {
+        DirectoryLock.Held h = holdFiles();
+        try { load.run(); } finally { h.close(); }
+    }
+
+    private void catchUpQuietly() {
+        try { write().close(); } catch (RuntimeException e) { e.printStackTrace(); }
+    }
+
+    /**
+     * Merges the other desks' writes: book slots, then users.bin, then history.log records.
+     * Each part checks its file itself rather than trusting the write counter, which a desk
+     * that died mid-change never bumped. Parts still loading are skipped; the counter is
+     * marked as seen (quieting the watcher) once all ran.
+     */
+    private void catchUp() {
+        try {
+            long counter = dirLock.counter();
+            boolean complete = isDone(indexReady);
+            if (complete) catchUpBooks();
+            catchUpUsers();
+            if (tailing) catchUpHistory(); else complete = false;
+            if (complete) dirLock.caughtUp(counter);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    private void catchUpBooks() throws IOException {
+        synchronized (this) {
+            for (ChangeEvent e : books.catchUp()) {
+                if (e.kind == ChangeEvent.Kind.RESET) { searchIndex.clear(); for (Book b : books.values()) searchIndex.add(b); }
+                else if (e.kind == ChangeEvent.Kind.BOOK_REMOVED) { searchIndex.remove(e.key); if (history != null) history.retireBook(e.key, e.book().getTitle()); }
+                else searchIndex.reindex(e.book());
+                events.publish(e);
+            }
+        }
+    }
+
+    /** Merges users.bin if another desk rewrote it since it was last read or written here. */
+    private void catchUpUsers() throws IOException {
+        File f = file(USERS_STORE);
+        List<Object> stamp = stamp(f);
+        if (stamp == null || stamp.equals(usersStamp)) return;
+        UserCodec.Snapshot snapshot;
+        try (InputStream in = new FileInputStream(f)) { snapshot = UserCodec.read(in); }
+        usersStamp = stamp;
+        mergeUsers(snapshot, !tailing);
+    }
+
+    /**
+     * Accounts missing from {@code file} are gone; new ones are added, known ones take the
+     * name and password of a newer version. Loan lists are taken from the file only with
+     * {@code takeLoans}; otherwise they follow history.log, and a new student starts empty:
+     * it was registered after the last merge, so all its loans are still ahead in the log.
+     */
+    private void mergeUsers(UserCodec.Snapshot file, boolean takeLoans) {
+        synchronized (this) {
+            int row = 0;
+            for (Iterator<User> it = users.values().iterator(); it.hasNext(); ) {
+                User u = it.next();
+                if (file.users.containsKey(u.getUsername())) { row++; continue; }
+                it.remove();
+                dirtyUsers.remove(u.getUsername());
+                loans.replace(u.getUsername(), Collections.<String>emptyList());
+                events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_REMOVED, u, row, users.size()));
+            }
+            for (User f : file.users.values()) {
+                User u = users.get(f.getUsername());
+                if (u == null) {
+                    if (!takeLoans && f instanceof Student) ((Student) f).restoreLoans(Collections.<String>emptyList());
+                    users.put(f.getUsername(), f);
+                    if (f instanceof Student) loans.replace(f.getUsername(), ((Student) f).getBorrowedBookIds());
+                    events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_ADDED, f, users.size() - 1, users.size()));
+                    continue;
+                }
+                boolean changed = false;
+                if (f.getVersion() > u.getVersion()) { u.setName(f.getName()); u.setPassword(f.getPassword()); u.setVersion(f.getVersion()); changed = true; }
+                if (takeLoans && u instanceof Student && f instanceof Student) {
+                    List<String> loans = ((Student) f).getBorrowedBookIds();
+                    if (!loans.equals(((Student) u).getBorrowedBookIds())) { ((Student) u).restoreLoans(loans); this.loans.replace(u.getUsername(), loans); changed = true; }
+                }
+                if (changed) events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_UPDATED, u, -1, users.size()));
+            }
+            if (takeLoans) { usersGeneration = file.generation; usersOffset = file.offset; }
+        }
+    }
+
+    /** Files the records other desks appended to history.log, or reloads the history if one rewrote it. */
+    private void catchUpHistory() throws IOException {
+        if (historyLog == null) return;
+        if (historyLog.replaced()) { reloadHistory(); return; }
+        List<Transaction> tail = historyLog.tail();
+        if (tail.isEmpty()) return;
+        synchronized (this) {
+            for (Transaction t : tail) {
+                history.append(t);
+                if (circulationLive) circulation.record(t.getTime(), t.getActionType(), HistoryStore.bookKey(t.getBookId(), t.getBookTitle()));
+                events.publish(ChangeEvent.appended(t));
+                applyLoan(t);
+            }
+        }
+    }
+
+    /** Replays a loan another desk made onto the borrower's list (monitor held). */
+    private void applyLoan(Transaction t) {
+        User u = users.get(t.getUsername());
+        if (!(u instanceof Student) || t.getBookId() == null) return;
+        Student s = (Student) u;
+        if (t.getActionType() == LoanAction.BORROWED) { s.borrowBook(t.getBookId()); loans.borrowed(s.getUsername(), t.getBookId()); }
+        else if (s.returnBook(t.getBookId())) loans.returned(s.getUsername(), t.getBookId());
+        events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_UPDATED, s, -1, users.size()));
+    }
+
+    /**
+     * Another desk compacted history.log: opens the archive and the new log afresh and recounts
+     * the circulation stats. Loan lists are taken from the users.bin that desk wrote with it,
+     * plus what was logged after its checkpoint.
+     */
+    private void reloadHistory() throws IOException {
+        await(circulationReady); // its startup count must not overlap the recount
+        HistoryArchive a = new HistoryArchive(dir, books::get, books::contains);
+        HistoryStore fresh = new HistoryStore(books::get, books::contains);
+        TransactionLog log = new TransactionLog(file(HISTORY_LOG), fresh);
+        TransactionLog old;
+        HistoryStore.Snapshot snapshot;
+        synchronized (this) {
+            old = historyLog;
+            archive = a;
+            historyLog = log;
+            history = fresh;
+            historyEpoch++;
+            circulation.clear();
+            snapshot = fresh.snapshot();
+            events.publish(ChangeEvent.RESET);
+        }
+        old.close();
+        circulation.add(snapshot);
+        for (HistoryArchive.Segment s : a.segments()) circulation.add(a.snapshot(s));
+        File f = file(USERS_STORE);
+        UserCodec.Snapshot saved;
+        try (InputStream in = new FileInputStream(f)) { saved = UserCodec.read(in); }
+        usersStamp = stamp(f);
+        boolean current = saved.generation == log.generation();
+        if (!current) System.err.println(USERS_STORE + " has no checkpoint in the new " + HISTORY_LOG + "; loan lists kept as they were");
+        mergeUsers(saved, current);
+        if (!current) return;
+        List<Transaction> later = log.since(saved.offset);
+        synchronized (this) { for (Transaction t : later) applyLoan(t); }
+    }
+
+    /* --- Loans: book, student and history change together under the book's lock stripe; the
+           student's list and the log record also together under the database monitor.
+           Lock order is stripe -> database monitor -> student, never the reverse. --- */
+    private ReentrantLock lockFor(String bookId) {
+        int h = bookId.hashCode();
+        return bookLocks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    public LoanResult borrow(Student s, String bookId) {
+        Metrics.Sample m = M_BORROW.start();
+        if (dirLock.shared()) awaitLoaded(); // catching up needs everything loaded
+        DirectoryLock.Held w = write();
+        ReentrantLock lock = lockFor(bookId);
+        lock.lock();
+        try {
+            Book b = books().get(bookId);
+            if (b == null) return LoanResult.NO_SUCH_BOOK;
+            if (!b.borrow()) return LoanResult.UNAVAILABLE;
+            recordLoan(s, b, LoanAction.BORROWED);
+            return LoanResult.OK;
+        } finally { lock.unlock(); w.close(); m.stop(); }
+    }
+
+    public LoanResult giveBack(Student s, String bookId) {
+        Metrics.Sample m = M_GIVE_BACK.start();
+        if (dirLock.shared()) awaitLoaded();
+        DirectoryLock.Held w = write();
+        ReentrantLock lock = lockFor(bookId);
+        lock.lock();
+        try {
+            Book b = books().get(bookId);
+            if (b == null) return LoanResult.NO_SUCH_BOOK;
+            if (!s.hasBorrowed(bookId)) return LoanResult.NOT_BORROWED;
+            if (!b.giveBack()) return LoanResult.UNAVAILABLE;
+            recordLoan(s, b, LoanAction.RETURNED);
+            return LoanResult.OK;
+        } finally { lock.unlock(); w.close(); m.stop(); }
+    }
+
+    /**
+     * Stripe lock held, {@code b}'s copies already changed by {@code action}. If the slot write or
+     * the log record fails, the copy is put back before the exception propagates, so no copy
+     * moves without its record and its loan.
+     */
+    private void recordLoan(Student s, Book b, LoanAction action) {
+        history(); // loaded before taking the monitor, see addTransaction
+        try { books().updateCopies(b.getId(), b.getTotalCopies(), b.getAvailableCopies()); dirLock.wrote(); }
+        catch (IOException e) { UncheckedIOException u = new UncheckedIOException(e); undoCopies(b, action, u); throw u; }
+        catch (RuntimeException e) { undoCopies(b, action, e); throw e; }
+        Transaction t = new Transaction(System.currentTimeMillis(), action, s.getUsername(), b.getId(), b.getTitle());
+        synchronized (this) {
+            try { addTransaction(t); } catch (RuntimeException e) { undoCopies(b, action, e); throw e; }
+            // the loan list changes with its log record under the monitor, so a users.bin snapshot and its checkpoint agree
+            if (action == LoanAction.BORROWED) { s.borrowBook(b.getId()); loans.borrowed(s.getUsername(), b.getId()); }
+            else { s.returnBook(b.getId()); loans.returned(s.getUsername(), b.getId()); }
+            dirtyBooks.add(b.getId());
+            dirtyUsers.add(s.getUsername());
+            if (events.hasSubscribers()) {
+                events.publish(ChangeEvent.book(ChangeEvent.Kind.BOOK_UPDATED, b, books().rowOf(b.getId()), books().size()));
+                events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_UPDATED, s, -1, users.size()));
+            }
+        }
+    }
+
+    /** Puts back the copy {@code action} moved, in memory and in the book's slot; nothing was logged for it. */
+    private void undoCopies(Book b, LoanAction action, RuntimeException cause) {
+        if (action == LoanAction.BORROWED) b.giveBack(); else b.borrow();
+        try { books().updateCopies(b.getId(), b.getTotalCopies(), b.getAvailableCopies()); }
+        catch (IOException | RuntimeException e) { cause.addSuppressed(e); }
+    }
+
+    /** Who holds {@code bookId}, sorted, once per copy. */
+    public synchronized List<String> holders(String bookId) { return loans.holders(bookId); }
+    /** The books {@code username} holds by the loan table, sorted, once per copy. */
+    public synchronized List<String> loansOf(String username) { return loans.loansOf(username); }
+
+    /**
+     * Rebuilds the open loans from history (segments and hot store) and compares them with
+     * the loan table, the students' lists and the books' copies out, see LoanTable. Loans
+     * wait only while those are copied, under every stripe; the history is folded after, and
+     * folded again if a compaction or a reload moved records meanwhile (historyEpoch).
+     */
+    public LoanTable.Report verifyLoans() throws IOException {
+        awaitLoaded();
+        Metrics.Sample m = M_VERIFY_LOANS.start();
+        long t0 = System.nanoTime();
+        while (true) {
+            Map<String, Map<String, int[]>> table;
+            Map<String, List<String>> lists = new HashMap<>();
+            Map<String, Integer> out = new HashMap<>();
+            HistoryStore.Snapshot hot;
+            HistoryArchive a;
+            int epoch;
+            DirectoryLock.Held w = write();
+            try {
+                for (ReentrantLock l : bookLocks) l.lock();
+                try {
+                    for (Book b : books().values()) { int n = b.getTotalCopies() - b.getAvailableCopies(); if (n != 0) out.put(b.getId(), n); }
+                    synchronized (this) {
+                        table = loans.copy();
+                        for (User u : users.values()) if (u instanceof Student) lists.put(u.getUsername(), ((Student) u).getBorrowedBookIds());
+                        hot = history.snapshot();
+                        a = archive;
+                        epoch = historyEpoch;
+                    }
+                } finally { for (ReentrantLock l : bookLocks) l.unlock(); }
+            } finally { w.close(); }
+            LoanTable.Rebuild rebuilt = new LoanTable.Rebuild();
+            try {
+                for (HistoryArchive.Segment s : a.segments()) {
+                    if (closing) throw new IllegalStateException("The library is closing");
+                    rebuilt.fold(a.snapshot(s)); // one decoded at a time
+                }
+            } catch (IOException e) {
+                if (!moved(epoch)) throw e; // else a segment was rewritten or deleted under us
+                continue;
+            }
+            rebuilt.fold(hot);
+            if (moved(epoch)) continue;
+            LoanTable.Report r = LoanTable.compare(table, rebuilt, lists, out);
+            r.millis = (System.nanoTime() - t0) / 1_000_000;
+            m.stop();
+            return r;
+        }
+    }
+
+    /** Whether history records moved between the hot store and segments since {@code epoch}; merges other desks' first. */
+    private boolean moved(int epoch) {
+        DirectoryLock.Held w = write();
+        try { synchronized (this) { return historyEpoch != epoch; } } finally { w.close(); }
+    }
+
+    /** Startup check (-Dlibrary.loans.verify, default true); only drift is reported. */
+    private void checkLoans() {
+        try {
+            LoanTable.Report r = verifyLoans();
+            if (r.consistent()) return;
+            System.err.println(r);
+            for (String d : r.drift.subList(0, Math.min(20, r.drift.size()))) System.err.println("  " + d);
+        } catch (IOException | RuntimeException e) {
+            if (!closing) System.err.println("Loan check failed: " + e);
+        }
+    }
+
+    public void close() {
+        closing = true;
+        if (Thread.currentThread() != shutdownHook) {
+            try { Runtime.getRuntime().removeShutdownHook(shutdownHook); } catch (IllegalStateException ignored) {}
+        }
+        try { awaitLoaded(); } catch (RuntimeException e) { e.printStackTrace(); }
+        try { dirLock.stopWatching(); } catch (IOException e) { e.printStackTrace(); }
+        commitQuietly();
+        if (writer != null) writer.shutdown();
+        try {
+            if (books != null) books.close();
+            if (historyLog != null) historyLog.close();
+            dirLock.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    /** Read-only view over archived and hot history; rows are materialized on access. */
+    public List<Transaction> getAllTransactions() {
+        RowSource<Transaction> rows = historyView();
+        return new AbstractList<Transaction>() {
+            public Transaction get(int i) { return rows.get(i); }
+            public int size() { return rows.size(); }
+        };
+    }
+
+    // Row views for the lazily paged tables; none of them copies records. History views put
+    // the archived segments (oldest first) before the hot store; a segment is decoded only
+    // when the view reaches it, and the hot part stays live.
+    public RowSource<Transaction> historyView() {
+        HistoryStore h = history();
+        List<RowSource<Transaction>> parts = new ArrayList<>();
+        for (HistoryArchive.Segment s : archive.segments()) parts.add(RowSources.of(() -> s.rows, i -> archive.load(s).get(i)));
+        parts.add(RowSources.of(h::size, h::get));
+        return RowSources.concat(parts);
+    }
+    /** One user's history in time order; live, so a table over it sees later loans. */
+    public RowSource<Transaction> historyView(String username) { return spanning(Long.MIN_VALUE, Long.MAX_VALUE, username, null, h -> h.ofUser(username)); }
+    /** Everyone who borrowed or returned {@code bookId}, in time order. */
+    public RowSource<Transaction> bookHistoryView(String bookId) { return spanning(Long.MIN_VALUE, Long.MAX_VALUE, null, bookId, h -> h.ofBook(bookId)); }
+    /** History with {@code from <= time < to} (epoch millis), optionally narrowed to a user or a book. */
+    public RowSource<Transaction> historyView(long from, long to) { return spanning(from, to, null, null, h -> h.between(from, to)); }
+    public RowSource<Transaction> historyView(String username, long from, long to) { return spanning(from, to, username, null, h -> h.ofUser(username, from, to)); }
+    public RowSource<Transaction> bookHistoryView(String bookId, long from, long to) { return spanning(from, to, null, bookId, h -> h.ofBook(bookId, from, to)); }
+
+    /** {@code query} over each segment that may hold matching rows, then over the hot store. */
+    private RowSource<Transaction> spanning(long from, long to, String user, String bookKey, Function<HistoryStore, RowSource<Transaction>> query) {
+        HistoryStore h = history();
+        List<RowSource<Transaction>> parts = new ArrayList<>();
+        for (HistoryArchive.Segment s : archive.segments(from, to, user, bookKey))
+            parts.add(RowSources.lazy(() -> query.apply(user == null && bookKey == null ? archive.load(s) : archive.select(s, user, bookKey))));
+        parts.add(query.apply(h));
+        return RowSources.concat(parts);
+    }
+    public RowSource<Book> bookView() { MappedBookStore b = books(); return RowSources.of(b::size, b::getByRow); }
+    public RowSource<Book> bookView(List<Book> subset) { return RowSources.of(subset); }
+    /** Catalog books nobody has borrowed yet, in catalog order. */
+    public RowSource<Book> neverBorrowedView() {
+        CirculationStats c = circulation();
+        MappedBookStore b = books();
+        int[] rows = b.rowsWhere(id -> c.timesBorrowed(id) == 0);
+        return RowSources.indexed(RowSources.of(b::size, b::getByRow), rows, rows.length);
+    }
+    public int bookRow(String id) { return books().rowOf(id); }
+    public synchronized RowSource<User> userView() { return RowSources.of(new ArrayList<>(users.values())); }
+
+    // Books
+    public Collection<Book> getAllBooks() { return books().values(); }
+    public Book getBook(String id) {
+        Metrics.Sample m = M_GET_BOOK.start();
+        try { return books().get(id); } finally { m.stop(); }
+    }
+    public void addOrUpdateBook(Book b) { putBook(b, false); }
+    /** Adds {@code b} unless a book with its id exists (also one another desk just added); returns whether it did. */
+    public boolean addBookIfAbsent(Book b) { return putBook(b, true); }
+    private boolean putBook(Book b, boolean onlyNew) {
+        Metrics.Sample m = M_PUT_BOOK.start();
+        if (dirLock.shared()) awaitLoaded();
+        BookSearchIndex index = index();
+        DirectoryLock.Held w = write();
+        ReentrantLock lock = lockFor(b.getId());
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (onlyNew && books().contains(b.getId())) return false;
+                String[] old = books().storedText(b.getId());
+                books().put(b);
+                dirLock.wrote();
+                index.update(b, old == null ? null : old[0], old == null ? null : old[1]);
+                dirtyBooks.add(b.getId()); changed();
+                publishBook(b, old == null);
+                return true;
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e);
+        } finally { lock.unlock(); w.close(); m.stop(); }
+    }
+    /**
+     * Saves an edit made to a book as read at {@code seenVersion} (Book.getVersion()). Fails
+     * with an IllegalArgumentException if it was changed or removed since, here or at another
+     * desk; loans do not count as changes, copies are adjusted on the current counts.
+     */
+    public void updateBook(String id, int seenVersion, String title, String author, int copies) {
+        Metrics.Sample m = M_PUT_BOOK.start();
+        if (dirLock.shared()) awaitLoaded();
+        BookSearchIndex index = index();
+        DirectoryLock.Held w = write();
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            synchronized (this) {
+                int version = books().version(id);
+                if (version < 0) throw new IllegalArgumentException("Book " + id + " was removed meanwhile.");
+                if (version != seenVersion) throw new IllegalArgumentException("Book " + id + " was changed meanwhile, possibly at another desk; open it again to see the change.");
+                Book b = books().get(id);
+                String[] old = books().storedText(id);
+                b.setTitle(title); b.setAuthor(author); b.setTotalCopies(copies);
+                books().put(b);
+                dirLock.wrote();
+                index.update(b, old[0], old[1]);
+                dirtyBooks.add(id); changed();
+                publishBook(b, false);
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e);
+        } finally { lock.unlock(); w.close(); m.stop(); }
+    }
+    public void removeBook(String id) {
+        Metrics.Sample m = M_REMOVE_BOOK.start();
+        if (dirLock.shared()) awaitLoaded();
+        history();
+        BookSearchIndex index = index();
+        DirectoryLock.Held w = write();
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            synchronized (this) {
+                List<String> holders = loans.holders(id);
+                if (!holders.isEmpty()) {
+                    String names = holders.size() <= 5 ? String.join(", ", holders) : String.join(", ", holders.subList(0, 5)) + " and " + (holders.size() - 5) + " more";
+                    throw new IllegalArgumentException("Book " + id + " is on loan to " + names + "; it can be deleted once it is returned.");
+                }
+                String[] old = books().storedText(id);
+                int row = old == null || !events.hasSubscribers() ? -1 : books().rowOf(id);
+                books().remove(id);
+                if (old != null) { dirLock.wrote(); index.remove(id, old[0], old[1]); history.retireBook(id, old[0]); events.publish(ChangeEvent.bookRemoved(id, row, books().size())); }
+                dirtyBooks.add(id); changed();
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e);
+        } finally { lock.unlock(); w.close(); m.stop(); }
+    }
+    /** Bulk import: adds new books and updates title, author and copies of existing ones (keeping loans), then commits once. */
+    public void importBooks(List<Book> batch) throws IOException {
+        Metrics.Sample m = M_IMPORT.start();
+        if (dirLock.shared()) awaitLoaded();
+        MappedBookStore store = books();
+        BookSearchIndex index = index();
+        DirectoryLock.Held w = write(); // released before the commit, which takes the commit lock first
+        try {
+            for (Book b : batch) {
+                ReentrantLock lock = lockFor(b.getId());
+                lock.lock();
+                try {
+                    Book current = store.get(b.getId());
+                    if (current != null) { current.setTitle(b.getTitle()); current.setAuthor(b.getAuthor()); current.setTotalCopies(b.getTotalCopies()); b = current; }
+                    synchronized (this) {
+                        String[] old = store.storedText(b.getId());
+                        store.put(b);
+                        dirLock.wrote();
+                        index.update(b, old == null ? null : old[0], old == null ? null : old[1]);
+                        dirtyBooks.add(b.getId());
+                        publishBook(b, old == null);
+                    }
+                } finally { lock.unlock(); }
+            }
+        } finally { w.close(); }
+        commit();
+        m.stop();
+    }
+    private void publishBook(Book b, boolean added) {
+        if (events.hasSubscribers()) events.publish(ChangeEvent.book(added ? ChangeEvent.Kind.BOOK_ADDED : ChangeEvent.Kind.BOOK_UPDATED, b, books().rowOf(b.getId()), books().size()));
+    }
+    /** Best {@code limit} books matching every word of {@code query} (prefixes of title, author or id). */
+    public List<Book> searchBooks(String query, int limit) {
+        Metrics.Sample m = M_SEARCH.start();
+        List<Book> out = new ArrayList<>();
+        for (String id : index().search(query, limit)) { Book b = books().get(id); if (b != null) out.add(b); }
+        m.stop();
+        return out;
+    }
+
+    // Users
+    public synchronized Collection<User> getAllUsers() { return new ArrayList<>(users.values()); }
+    public User getUser(String username) {
+        Metrics.Sample m = M_GET_USER.start();
+        try { synchronized (this) { return users.get(username); } } finally { m.stop(); }
+    }
+    // Account changes bump the user's version; shared, users.bin is rewritten before the write lock is released.
+    public void addUser(User u) { putUser(u, false); }
+    public boolean addUserIfAbsent(User u) { return putUser(u, true); }
+    private boolean putUser(User u, boolean onlyNew) {
+        DirectoryLock.Held w = write();
+        try {
+            synchronized (this) {
+                User old = users.get(u.getUsername());
+                if (onlyNew && old != null) return false;
+                u.setVersion(Math.max(u.getVersion(), old == null ? 0 : old.getVersion()) + 1);
+                users.put(u.getUsername(), u);
+                if (u instanceof Student || old instanceof Student) loans.replace(u.getUsername(), u instanceof Student ? ((Student) u).getBorrowedBookIds() : Collections.<String>emptyList());
+                dirtyUsers.add(u.getUsername()); changed();
+                events.publish(ChangeEvent.user(old == null ? ChangeEvent.Kind.USER_ADDED : ChangeEvent.Kind.USER_UPDATED, u, old == null ? users.size() - 1 : -1, users.size()));
+            }
+            shareUsers();
+            return true;
+        } finally { w.close(); }
+    }
+    public void updateUser(User u) {
+        DirectoryLock.Held w = write();
+        try {
+            synchronized (this) {
+                u.setVersion(u.getVersion() + 1);
+                dirtyUsers.add(u.getUsername()); changed();
+                events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_UPDATED, u, -1, users.size()));
+            }
+            shareUsers();
+        } finally { w.close(); }
+    }
+    /** Bulk import: adds new users; existing ones get the new name and password and keep their loans. Commits once. */
+    public void importUsers(List<User> batch) throws IOException {
+        DirectoryLock.Held w = write();
+        try {
+            synchronized (this) {
+                for (User u : batch) {
+                    User current = users.get(u.getUsername());
+                    if (current == null) { u.setVersion(1); users.put(u.getUsername(), u); if (u instanceof Student) loans.replace(u.getUsername(), ((Student) u).getBorrowedBookIds()); events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_ADDED, u, users.size() - 1, users.size())); }
+                    else { current.setName(u.getName()); current.setPassword(u.getPassword()); current.setVersion(current.getVersion() + 1); events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_UPDATED, current, -1, users.size())); }
+                    dirtyUsers.add(u.getUsername());
+                }
+            }
+            shareUsers();
+        } finally { w.close(); }
+        commit();
+    }
+    /**
+     * A student's books are returned first, with logged returns, so no copy stays out under an
+     * account that is gone. A loan that cannot be returned (its book left the catalog, copies or
+     * loan table out of step) keeps the account, and the exception names those loans.
+     */
+    public void removeUser(String username) {
+        DirectoryLock.Held w = write();
+        try {
+            User u = getUser(username);
+            List<String> kept = new ArrayList<>();
+            if (u instanceof Student)
+                for (String id : ((Student) u).getBorrowedBookIds()) { LoanResult r = giveBack((Student) u, id); if (r != LoanResult.OK) kept.add(id + " (" + r + ")"); }
+            synchronized (this) {
+                if (kept.isEmpty()) for (String id : loans.loansOf(username)) kept.add(id + " (loan table only)");
+                if (!kept.isEmpty())
+                    throw new IllegalArgumentException("User " + username + " still holds " + String.join(", ", kept) + "; the account was kept. Diagnostics → Check loans shows the details.");
+                int row = 0;
+                for (String name : users.keySet()) { if (name.equals(username)) break; row++; } // userView() follows map order
+                User gone = users.remove(username);
+                if (gone != null) events.publish(ChangeEvent.user(ChangeEvent.Kind.USER_REMOVED, gone, row, users.size()));
+                dirtyUsers.add(username); changed();
+            }
+            shareUsers();
+        } finally { w.close(); }
+    }
+    /** Shared mode: rewrites users.bin now, so the other desks see the change when they next merge. */
+    private void shareUsers() {
+        if (!dirLock.shared()) return;
+        try { writeUsers(); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    /** Changes to books, users and history, in order; see ChangeBus. */
+    public ChangeBus events() { return events; }
+
+    /* --- 20 Default Books --- */
+    private void seedBooks() {
+        seed(new Book("B001", "Clean Code", "Robert C. Martin", 4));
+        seed(new Book("B002", "Effective Java", "Joshua Bloch", 3));
+        seed(new Book("B003", "Design Patterns", "Erich Gamma", 3));
+        seed(new Book("B004", "Introduction to Algorithms", "Thomas H. Cormen", 5));
+        seed(new Book("B005", "The Pragmatic Programmer", "Andrew Hunt", 4));
+        seed(new Book("B006", "Artificial Intelligence: A Modern Approach", "Stuart Russell", 3));
+        seed(new Book("B007", "Operating System Concepts", "Abraham Silberschatz", 4));
+        seed(new Book("B008", "Computer Networks", "Andrew S. Tanenbaum", 4));
+        seed(new Book("B009", "Database System Concepts", "Henry F. Korth", 4));
+        seed(new Book("B010", "Python Crash Course", "Eric Matthes", 5));
+        seed(new Book("B011", "Head First Java", "Kathy Sierra", 5));
+        seed(new Book("B012", "C Programming Language", "Brian W. Kernighan", 4));
+        seed(new Book("B013", "JavaScript: The Good Parts", "Douglas Crockford", 3));
+        seed(new Book("B014", "You Don’t Know JS", "Kyle Simpson", 3));
+        seed(new Book("B015", "Deep Learning", "Ian Goodfellow", 2));
+        seed(new Book("B016", "Machine Learning Yearning", "Andrew Ng", 3));
+        seed(new Book("B017", "Introduction to Machine Learning", "Ethem Alpaydin", 3));
+        seed(new Book("B018", "Data Structures & Algorithms Made Easy", "Narasimha Karumanchi", 5));
+        seed(new Book("B019", "Modern Operating Systems", "Andrew S. Tanenbaum", 3));
+        seed(new Book("B020", "System Design Interview", "Alex Xu", 4));
+    }
+
+    private void seed(Book b) {
+        try { books.put(b); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    private void seedUsers() {
+        addUser(new Admin("admin", "admin", "Library Admin"));
+        addUser(new Student("student1", "pass", "Student One"));
+    }
+}
+
+/* ------------------------
+   LIBRARY SERVICE (UI-independent operations)
+   - Everything the desktop panels and the HTTP API do goes through here, so the rules
+     (who may do what, validation messages) live in one place.
+   - Validation failures are IllegalArgumentExceptions whose message is shown to the user.
+   ------------------------ */
+class LibraryService {
+    private final LibraryDatabase db;
+
+    public LibraryService(LibraryDatabase db) { this.db = db; }
+
+    public LibraryDatabase getDatabase() { return db; }
+
+    // Accounts
+    /** Returns the user if the credentials match, otherwise null. */
+    public User login(String username, String password) {
+        if (username == null || password == null) return null;
+        User u = db.getUser(username.trim());
+        return u != null && u.getPassword().equals(password) ? u : null;
+    }
+
+    public User register(String name, String username, String password, boolean admin) {
+        if (name == null || username == null || password == null || name.trim().isEmpty() || username.trim().isEmpty() || password.isEmpty())
+            throw new IllegalArgumentException("Fill all fields!");
+        User u = admin ? new Admin(username.trim(), password, name.trim()) : new Student(username.trim(), password, name.trim());
+        if (!db.addUserIfAbsent(u)) throw new IllegalArgumentException("Username exists!");
+        return u;
+    }
+
+    public void removeUser(String username) {
+        if ("admin".equals(username)) throw new IllegalArgumentException("Cannot delete admin!");
+        db.removeUser(username);
+    }
+
+    /** A copy of the accounts in userView() order, for a table that applies USER_* changes to it. */
+    public List<User> userList() { return new ArrayList<>(db.getAllUsers()); }
+
+    /** See ChangeBus; {@code deliverOn} runs the batches (UiTasks.NEXT_FRAME for windows). */
+    public ChangeBus.Subscription subscribe(ChangeBus.Listener listener, Executor deliverOn) { return db.events().subscribe(listener, deliverOn); }
+
+    // Catalog
+    public RowSource<Book> catalog() { return db.bookView(); }
+
+    /** Ranked search results, or the whole catalog for a blank query. */
+    public RowSource<Book> catalog(String query, int limit) {
+        if (query == null || query.trim().isEmpty()) return db.bookView();
+        return db.bookView(db.searchBooks(query.trim(), limit));
+    }
+
+    public Book getBook(String id) { return db.getBook(id); }
+
+    public Book addBook(String id, String title, String author, int copies) {
+        if (id == null || id.trim().isEmpty()) throw new IllegalArgumentException("Book ID is required");
+        if (copies < 1) throw new IllegalArgumentException("Copies must be at least 1");
+        Book b = new Book(id, title, author, copies);
+        if (!db.addBookIfAbsent(b)) throw new IllegalArgumentException("Book exists!");
+        return b;
+    }
+
+    /** Saves an edit of {@code b} as it was read at {@code seenVersion}; fails if someone changed it since. */
+    public void updateBook(Book b, int seenVersion, String title, String author, int copies) {
+        if (copies < 1) throw new IllegalArgumentException("Copies must be at least 1");
+        db.updateBook(b.getId(), seenVersion, title, author, copies);
+    }
+
+    public void removeBook(String id) { db.removeBook(id); }
+
+    // Loans
+    public LibraryDatabase.LoanResult borrow(Student s, String bookId) { return db.borrow(s, bookId); }
+
+    public LibraryDatabase.LoanResult giveBack(Student s, String bookId) { return db.giveBack(s, bookId); }
+
+    /** Who has {@code bookId} out, once per copy. */
+    public List<String> holders(String bookId) { return db.holders(bookId); }
+
+    // History
+    /** Admins see everything, students only their own records. */
+    public RowSource<Transaction> history(User viewer) {
+        return viewer instanceof Admin ? db.historyView() : db.historyView(viewer.getUsername());
+    }
+
+    /** History visible to {@code viewer} for one book (or all when null) with {@code from <= time < to}. */
+    public RowSource<Transaction> history(User viewer, String bookId, long from, long to) {
+        boolean all = from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+        if (viewer instanceof Admin) {
+            if (bookId != null) return db.bookHistoryView(bookId, from, to);
+            return all ? db.historyView() : db.historyView(from, to);
+        }
+        RowSource<Transaction> own = db.historyView(viewer.getUsername(), from, to);
+        return bookId == null ? own : RowSources.filtered(own, t -> bookId.equals(t.getBookId()));
+    }
+
+    // Bulk import/export
+    public BulkTransfer.Report importBooks(File file, BulkTransfer.Progress progress) throws IOException { return BulkTransfer.importBooks(db, file, progress); }
+    public BulkTransfer.Report importUsers(File file, BulkTransfer.Progress progress) throws IOException { return BulkTransfer.importUsers(db, file, progress); }
+    public long export(BulkTransfer.Kind kind, File file, BulkTransfer.Progress progress) throws IOException { return BulkTransfer.export(db, kind, file, progress); }
+
+    // Analytics (admins)
+    public CirculationStats circulation() { return db.circulation(); }
+    public RowSource<Book> neverBorrowed() { return db.neverBorrowedView(); }
+    public String titleOf(CirculationStats.Ranked r) { return db.historyTitle(r.key); }
+
+    // Diagnostics
+    public Map<String, Long> startupTimings() { return db.getStartupTimings(); }
+
+    /** Checks the loan table against history, loan lists and copy counts (admins). */
+    public LoanTable.Report verifyLoans() throws IOException { return db.verifyLoans(); }
+
+    public void flush() throws IOException { db.flush(); }
+}
+
+/* ------------------------
+   BULK IMPORT / EXPORT
+   - CSV (header row names the columns) or JSONL (one flat object per line), chosen by the
+     file extension. Input is parsed record by record from a buffered stream; only the
+     current batch of BATCH_SIZE validated records is held, and each batch is applied and
+     committed once.
+   - Invalid records are skipped and reported with their line number; the first MAX_ERRORS
+     messages are kept, the rest only counted.
+   - books:   id, title, author, copies (alias totalCopies); export adds available
+     users:   username, password, name, role (admin|student); existing users get the new
+              name and password (kept when the column is empty), their loans are kept;
+              export leaves passwords out
+     history: export only; time (epoch millis), date, action, username, bookId, bookTitle
+   ------------------------ */
+final class BulkTransfer {
+    static final int BATCH_SIZE = Integer.getInteger("library.import.batchSize", 1000);
+    private static final int MAX_ERRORS = 1000;
+
+    enum Kind { BOOKS, USERS, HISTORY }
+
+    /** Called after every batch (and once at the end) with records read so far. */
+    interface Progress { void update(long records, long bytesRead, long totalBytes); }
+
+    static final class Report {
+        long read, applied, failed;
+        final List<String> errors = new ArrayList<>();
+
+        void error(long line, String message) {
+            failed++;
+            if (errors.size() < MAX_ERRORS) errors.add("line " + line + ": " + message);
+        }
+
+        @Override
+        public String toString() { return read + " read, " + applied + " imported, " + failed + " rejected"; }
+    }
+
+    private BulkTransfer() {}
+
+    private static boolean jsonl(File f) {
+        String n = f.getName().toLowerCase(Locale.ROOT);
+        return n.endsWith(".jsonl") || n.endsWith(".json") || n.endsWith(".ndjson");
+    }
+
+    // Import
+
+    static Report importBooks(LibraryDatabase db, File file, Progress progress) throws IOException {
+        return importRecords(file, progress, r -> {
+            String id = field(r, "id").trim();
+            if (id.isEmpty()) throw new IllegalArgumentException("Book ID is required");
+            if (id.getBytes(StandardCharsets.UTF_8).length > MappedBookStore.MAX_ID_BYTES)
+                throw new IllegalArgumentException("Book ID longer than " + MappedBookStore.MAX_ID_BYTES + " bytes");
+            String copies = r.containsKey("copies") ? field(r, "copies") : field(r, "totalcopies");
+            int n;
+            try { n = Integer.parseInt(copies.trim()); } catch (NumberFormatException e) { throw new IllegalArgumentException("copies must be a number"); }
+            if (n < 1) throw new IllegalArgumentException("Copies must be at least 1");
+            return new Book(id, field(r, "title"), field(r, "author"), n);
+        }, db::importBooks);
+    }
+
+    static Report importUsers(LibraryDatabase db, File file, Progress progress) throws IOException {
+        return importRecords(file, progress, r -> {
+            String username = field(r, "username").trim(), password = field(r, "password"), name = field(r, "name").trim();
+            if (username.isEmpty()) throw new IllegalArgumentException("username is required");
+            User existing = db.getUser(username);
+            if (password.isEmpty()) {
+                if (existing == null) throw new IllegalArgumentException("password is required for a new user");
+                password = existing.getPassword(); // an export has no passwords; re-importing it keeps them
+            }
+            String role = field(r, "role").trim().toLowerCase(Locale.ROOT);
+            if (!role.isEmpty() && !role.equals("admin") && !role.equals("student")) throw new IllegalArgumentException("role must be admin or student");
+            User u = role.equals("admin") ? new Admin(username, password, name.isEmpty() ? username : name)
+                                          : new Student(username, password, name.isEmpty() ? username : name);
+            if (existing != null && (existing instanceof Admin) != (u instanceof Admin)) throw new IllegalArgumentException("Cannot change the role of " + username);
+            return u;
+        }, db::importUsers);
+    }
+
+    /** Validates one record; throws IllegalArgumentException with the reason to reject it. */
+    private interface RecordParser<T> { T parse(Map<String, String> record); }
+    private interface BatchSink<T> { void apply(List<T> batch) throws IOException; }
+
+    private static <T> Report importRecords(File file, Progress progress, RecordParser<T> parser, BatchSink<T> sink) throws IOException {
+        Report report = new Report();
+        long total = file.length();
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        try (CountingInputStream counted = new CountingInputStream(new FileInputStream(file));
+             RecordReader in = jsonl(file) ? new JsonlReader(counted) : new CsvReader(counted)) {
+            for (Map<String, String> r; ; ) {
+                try {
+                    if ((r = in.next()) == null) break;
+                } catch (IllegalArgumentException e) {
+                    report.read++;
+                    report.error(in.line(), e.getMessage());
+                    continue;
+                }
+                report.read++;
+                try { batch.add(parser.parse(r)); }
+                catch (IllegalArgumentException e) { report.error(in.line(), e.getMessage()); }
+                if (batch.size() >= BATCH_SIZE) {
+                    sink.apply(batch);
+                    report.applied += batch.size();
+                    batch.clear();
+                    if (progress != null) progress.update(report.read, counted.count, total);
+                }
+            }
+            if (!batch.isEmpty()) { sink.apply(batch); report.applied += batch.size(); }
+            if (progress != null) progress.update(report.read, counted.count, total);
+        }
+        return report;
+    }
+
+    private static String field(Map<String, String> r, String name) {
+        String v = r.get(name);
+        return v == null ? "" : v;
+    }
+
+    // Export
+
+    /** Streams every record of {@code kind} to {@code file}; returns the number written. */
+    static long export(LibraryDatabase db, Kind kind, File file, Progress progress) throws IOException {
+        boolean json = jsonl(file);
+        String[] columns;
+        RowSource<?> rows;
+        Function<Object, Object[]> values;
+        switch (kind) {
+            case BOOKS:
+                columns = new String[] { "id", "title", "author", "copies", "available" };
+                rows = db.bookView();
+                values = o -> { Book b = (Book) o; return new Object[] { b.getId(), b.getTitle(), b.getAuthor(), b.getTotalCopies(), b.getAvailableCopies() }; };
+                break;
+            case USERS:
+                columns = new String[] { "username", "name", "role" }; // never the passwords
+                rows = db.userView();
+                values = o -> { User u = (User) o; return new Object[] { u.getUsername(), u.getName(), u instanceof Admin ? "admin" : "student" }; };
+                break;
+            default:
+                columns = new String[] { "time", "date", "action", "username", "bookId", "bookTitle" };
+                rows = db.historyView();
+                values = o -> { Transaction t = (Transaction) o; return new Object[] { t.getTime(), t.getDate(), t.getAction(), t.getUsername(), t.getBookId(), t.getBookTitle() }; };
+        }
+        long written = 0;
+        int n = rows.size();
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+            if (!json) writeCsv(out, columns);
+            for (int i = 0; i < n; i++) {
+                Object row = rows.get(i);
+                if (row == null) continue;
+                Object[] v = values.apply(row);
+                if (json) writeJson(out, columns, v); else writeCsv(out, v);
+                if (++written % BATCH_SIZE == 0 && progress != null) progress.update(written, i + 1, n);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (progress != null) progress.update(written, n, n);
+        return written;
+    }
+
+    private static void writeCsv(Writer out, Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) out.write(',');
+            String s = values[i] == null ? "" : values[i].toString();
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) out.write(s);
+            else out.write('"' + s.replace("\"", "\"\"") + '"');
+        }
+        out.write("\r\n");
+    }
+
+    private static void writeJson(Writer out, String[] columns, Object[] values) throws IOException {
+        out.write('{');
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) out.write(',');
+            out.write(LibraryHttpServer.str(columns[i]));
+            out.write(':');
+            out.write(values[i] instanceof Number ? values[i].toString() : LibraryHttpServer.str(values[i] == null ? null : values[i].toString()));
+        }
+        out.write("}\n");
+    }
+
+    // Readers
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        CountingInputStream(InputStream in) { super(in); }
+        @Override public int read() throws IOException { int b = super.read(); if (b >= 0) count++; return b; }
+        @Override public int read(byte[] b, int off, int len) throws IOException { int n = super.read(b, off, len); if (n > 0) count += n; return n; }
+    }
+
+    /** Field names are lower-cased; a malformed record throws IllegalArgumentException and is skipped. */
+    private abstract static class RecordReader implements Closeable {
+        final Reader in;
+        long line = 1, recordLine;
+        private int peeked = -2;
+
+        RecordReader(InputStream in) { this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16); }
+
+        abstract Map<String, String> next() throws IOException;
+
+        long line() { return recordLine; }
+
+        int read() throws IOException {
+            int c = peeked != -2 ? peeked : in.read();
+            peeked = -2;
+            if (c == '\n') line++;
+            return c;
+        }
+
+        int peek() throws IOException {
+            if (peeked == -2) peeked = in.read();
+            return peeked;
+        }
+
+        @Override public void close() throws IOException { in.close(); }
+    }
+
+    /** RFC 4180: quoted fields may contain commas, doubled quotes and line breaks. */
+    private static final class CsvReader extends RecordReader {
+        private String[] header;
+
+        CsvReader(InputStream in) { super(in); }
+
+        @Override
+        Map<String, String> next() throws IOException {
+            if (header == null) {
+                List<String> h = record();
+                if (h == null) return null;
+                header = new String[h.size()];
+                for (int i = 0; i < header.length; i++) header[i] = h.get(i).trim().toLowerCase(Locale.ROOT).replace("\uFEFF", "");
+            }
+            List<String> fields;
+            do { fields = record(); } while (fields != null && fields.size() == 1 && fields.get(0).isEmpty()); // blank lines
+            if (fields == null) return null;
+            if (fields.size() > header.length) throw new IllegalArgumentException(fields.size() + " fields, header has " + header.length);
+            Map<String, String> r = new HashMap<>();
+            for (int i = 0; i < fields.size(); i++) r.put(header[i], fields.get(i));
+            return r;
+        }
+
+        private List<String> record() throws IOException {
+            if (peek() < 0) return null;
+            recordLine = line;
+            List<String> fields = new ArrayList<>();
+            StringBuilder f = new StringBuilder();
+            boolean quoted = false, wasQuoted = false;
+            while (true) {
+                int c = read();
+                if (quoted) {
+                    if (c < 0) throw new IllegalArgumentException("unterminated quoted field");
+                    if (c == '"') { if (peek() == '"') { read(); f.append('"'); } else quoted = false; }
+                    else f.append((char) c);
+                } else if (c == '"' && f.length() == 0 && !wasQuoted) {
+                    quoted = wasQuoted = true;
+                } else if (c == ',') {
+                    fields.add(f.toString()); f.setLength(0); wasQuoted = false;
+                } else if (c == '\r' || c == '\n' || c < 0) {
+                    if (c == '\r' && peek() == '\n') read();
+                    fields.add(f.toString());
+                    return fields;
+                } else f.append((char) c);
+            }
+        }
+    }
+
+    /** One flat JSON object per line; nested values are rejected. */
+    private static final class JsonlReader extends RecordReader {
+        JsonlReader(InputStream in) { super(in); }
+
+        @Override
+        Map<String, String> next() throws IOException {
+            int c;
+            while ((c = peek()) >= 0 && Character.isWhitespace(c)) read();
+            if (c < 0) return null;
+            recordLine = line;
+            try { return object(); }
+            catch (IllegalArgumentException e) {
+                while ((c = peek()) >= 0 && c != '\n') read(); // resynchronize on the next line
+                throw e;
+            }
+        }
+
+        private Map<String, String> object() throws IOException {
+            Map<String, String> r = new HashMap<>();
+            expect('{');
+            if (skipSpace() == '}') { read(); return r; }
+            while (true) {
+                skipSpace();
+                String key = string().toLowerCase(Locale.ROOT);
+                skipSpace(); expect(':'); skipSpace();
+                r.put(key, value());
+                int c = skipSpace();
+                if (c != '}' && c != ',') throw new IllegalArgumentException("expected , or }");
+                read();
+                if (c == '}') return r;
+            }
+        }
+
+        private String value() throws IOException {
+            int c = peek();
+            if (c == '"') return string();
+            if (c == '{' || c == '[') throw new IllegalArgumentException("nested values are not supported");
+            StringBuilder sb = new StringBuilder();
+            while ((c = peek()) >= 0 && c != ',' && c != '}' && !Character.isWhitespace(c)) sb.append((char) read());
+            String v = sb.toString();
+            if (v.equals("null")) return null;
+            if (v.isEmpty()) throw new IllegalArgumentException("missing value");
+            return v;
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = peek();
+                if (c < 0 || c == '\n') throw new IllegalArgumentException("unterminated string");
+                read();
+                if (c == '"') return sb.toString();
+                if (c != '\\') { sb.append((char) c); continue; }
+                c = read();
+                switch (c) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) hex[i] = (char) read();
+                        try { sb.append((char) Integer.parseInt(new String(hex), 16)); }
+                        catch (NumberFormatException e) { throw new IllegalArgumentException("bad \\u escape"); }
+                        break;
+                    default: sb.append((char) c);
+                }
+            }
+        }
+
+        private int skipSpace() throws IOException {
+            int c;
+            while ((c = peek()) == ' ' || c == '\t' || c == '\r') read();
+            return c;
+        }
+
+        private void expect(char ch) throws IOException {
+            if (peek() != ch) throw new IllegalArgumentException("expected " + ch);
+            read();
+        }
+    }
+}
+
+/* ------------------------
+   HTTP/JSON API
+   - com.sun.net.httpserver with one virtual thread per request when the JDK has them (21+),
+     otherwise a fixed pool sized for blocking I/O.
+   - At most MAX_IN_FLIGHT requests work at once; a request that cannot start within
+     QUEUE_TIMEOUT_MS gets 503 instead of waiting, which keeps latency bounded under load.
+   - Credentials travel as HTTP Basic auth over plain HTTP and are compared with the stored
+     plaintext password; the catalog is public. Binds 0.0.0.0 unless library.http.bind says
+     otherwise, so it is for trusted networks only.
+
+   GET    /api/books?q=&offset=&limit=   catalog page or ranked search
+   GET    /api/books/{id}
+   GET    /api/me                        the authenticated user and their loans
+   POST   /api/loans/{bookId}            borrow (students)
+   DELETE /api/loans/{bookId}            return (students)
+   GET    /api/metrics                   operation latencies, counters, UI stalls (admins)
+   GET    /api/history?book=&from=&to=&offset=&limit=
+                                         own history (all history for admins), optionally for
+                                         one book and from <= time < to (epoch millis)
+   ------------------------ */
+class LibraryHttpServer implements Closeable {
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("library.http.maxInFlight", 1024);
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("library.http.queueTimeoutMs", 250L);
+    private static final int DEFAULT_PAGE = 50, MAX_PAGE = 500;
+
+    private final LibraryService svc;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    public LibraryHttpServer(LibraryService svc, InetSocketAddress address) throws IOException {
+        this.svc = svc;
+        // headers and body go out as separate writes; without TCP_NODELAY each response stalls on delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(address, 1024);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(16, Runtime.getRuntime().availableProcessors() * 8);
+            return Executors.newFixedThreadPool(threads, r -> { Thread t = new Thread(r, "library-http"); t.setDaemon(true); return t; });
+        }
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            boolean admitted;
+            try { admitted = inFlight.tryAcquire(QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); admitted = false; }
+            if (!admitted) { send(ex, 503, error("Server busy, retry later")); return; }
+            try { route(ex); }
+            catch (IllegalArgumentException e) { send(ex, 400, error(e.getMessage())); }
+            catch (Exception e) { e.printStackTrace(); send(ex, 500, error("Internal error")); }
+            finally { inFlight.release(); }
+        } finally { ex.close(); }
+    }
+
+    private void route(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod(), path = ex.getRequestURI().getPath();
+        Map<String, String> q = query(ex.getRequestURI());
+
+        if (path.equals("/api/books") && method.equals("GET")) {
+            RowSource<Book> rows = svc.catalog(q.get("q"), MAX_PAGE);
+            send(ex, 200, page(rows, q, LibraryHttpServer::book));
+            return;
+        }
+        if (path.startsWith("/api/books/") && method.equals("GET")) {
+            Book b = svc.getBook(path.substring("/api/books/".length()));
+            if (b == null) send(ex, 404, error("Book not found")); else send(ex, 200, book(b));
+            return;
+        }
+
+        User user = authenticate(ex);
+        if (user == null) {
+            ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"library\"");
+            send(ex, 401, error("Login required"));
+            return;
+        }
+        if (path.equals("/api/me") && method.equals("GET")) {
+            send(ex, 200, user(user));
+        } else if (path.startsWith("/api/loans/") && (method.equals("POST") || method.equals("DELETE"))) {
+            if (!(user instanceof Student)) { send(ex, 403, error("Only students borrow books")); return; }
+            String bookId = path.substring("/api/loans/".length());
+            LibraryDatabase.LoanResult r = method.equals("POST") ? svc.borrow((Student) user, bookId) : svc.giveBack((Student) user, bookId);
+            int status = r == LibraryDatabase.LoanResult.OK ? 200 : r == LibraryDatabase.LoanResult.NO_SUCH_BOOK ? 404 : 409;
+            send(ex, status, "{\"result\":" + str(r.name()) + "}");
+        } else if (path.equals("/api/metrics") && method.equals("GET")) {
+            if (!(user instanceof Admin)) { send(ex, 403, error("Admins only")); return; }
+            send(ex, 200, Metrics.toJson());
+        } else if (path.equals("/api/history") && method.equals("GET")) {
+            long from = longParam(q, "from", Long.MIN_VALUE), to = longParam(q, "to", Long.MAX_VALUE);
+            send(ex, 200, page(svc.history(user, q.get("book"), from, to), q, LibraryHttpServer::transaction));
+        } else {
+            send(ex, 404, error("No such endpoint"));
+        }
+    }
+
+    private User authenticate(HttpExchange ex) {
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        if (h == null || !h.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+        String pair;
+        try { pair = new String(Base64.getDecoder().decode(h.substring(6).trim()), StandardCharsets.UTF_8); }
+        catch (IllegalArgumentException e) { return null; }
+        int colon = pair.indexOf(':');
+        return colon < 0 ? null : svc.login(pair.substring(0, colon), pair.substring(colon + 1));
+    }
+
+    private static <T> String page(RowSource<T> rows, Map<String, String> q, Function<T, String> json) {
+        int size = rows.size();
+        int offset = intParam(q, "offset", 0, 0, Integer.MAX_VALUE);
+        int limit = intParam(q, "limit", DEFAULT_PAGE, 1, MAX_PAGE);
+        StringBuilder sb = new StringBuilder("{\"total\":").append(size).append(",\"offset\":").append(offset).append(",\"items\":[");
+        for (int i = offset, end = (int) Math.min(size, (long) offset + limit); i < end; i++) {
+            T t = rows.get(i);
+            if (t == null) continue;
+            if (sb.charAt(sb.length() - 1) != '[') sb.append(',');
+            sb.append(json.apply(t));
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static int intParam(Map<String, String> q, String name, int def, int min, int max) {
+        String v = q.get(name);
+        if (v == null) return def;
+        try {
+            int n = Integer.parseInt(v);
+            if (n < min || n > max) throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+            return n;
+        } catch (NumberFormatException e) { throw new IllegalArgumentException(name + " must be a number"); }
+    }
+
+    private static long longParam(Map<String, String> q, String name, long def) {
+        String v = q.get(name);
+        if (v == null) return def;
+        try { return Long.parseLong(v); }
+        catch (NumberFormatException e) { throw new IllegalArgumentException(name + " must be a number"); }
+    }
+
+    private static Map<String, String> query(URI uri) throws UnsupportedEncodingException {
+        Map<String, String> q = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null) return q;
+        for (String kv : raw.split("&")) {
+            int eq = kv.indexOf('=');
+            if (eq > 0) q.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"), URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+        }
+        return q;
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream out = ex.getResponseBody()) { out.write(body); }
+    }
+
+    // JSON
+    private static String book(Book b) {
+        return "{\"id\":" + str(b.getId()) + ",\"title\":" + str(b.getTitle()) + ",\"author\":" + str(b.getAuthor())
+            + ",\"availableCopies\":" + b.getAvailableCopies() + ",\"totalCopies\":" + b.getTotalCopies() + "}";
+    }
+
+    private static String transaction(Transaction t) {
+        return "{\"username\":" + str(t.getUsername()) + ",\"bookId\":" + str(t.getBookId()) + ",\"bookTitle\":" + str(t.getBookTitle())
+            + ",\"action\":" + str(t.getAction()) + ",\"date\":" + str(t.getDate()) + ",\"time\":" + t.getTime() + "}";
+    }
+
+    private static String user(User u) {
+        StringBuilder sb = new StringBuilder("{\"username\":").append(str(u.getUsername())).append(",\"name\":").append(str(u.getName()))
+            .append(",\"role\":").append(str(u instanceof Admin ? "Admin" : "Student"));
+        if (u instanceof Student) {
+            sb.append(",\"borrowedBookIds\":[");
+            List<String> ids = ((Student) u).getBorrowedBookIds();
+            for (int i = 0; i < ids.size(); i++) sb.append(i > 0 ? "," : "").append(str(ids.get(i)));
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String error(String message) { return "{\"error\":" + str(message) + "}"; }
+
+    static String str(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c)); else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
+
+/* ------------------------
+   BACKGROUND IMAGES (shared cache)
+   - Each source (URL, file: URL or plain path) is decoded once per process on a loader
+     thread, never on the EDT, and downsampled to MAX_SIDE so a huge photo does not stay
+     resident at full size.
+   - Remote sources are kept on disk under library.imageCacheDir (default
+     <dataDir>/image-cache), so later starts work offline; local files are read in place.
+   - Renditions (scaled to a panel size, dark overlay baked in) are cached per size in a
+     small LRU, so a repaint is a plain blit and windows of the same size share one.
+   ------------------------ */
+final class BackgroundImages {
+    private static final File CACHE_DIR = new File(System.getProperty("library.imageCacheDir",
+        new File(System.getProperty("library.dataDir", "."), "image-cache").getPath()));
+    private static final int MAX_SIDE = 2560, MAX_RENDITIONS = 8;
+    private static final int CONNECT_TIMEOUT_MS = 5000, READ_TIMEOUT_MS = 15000;
+    private static final Color OVERLAY = new Color(0, 0, 0, 60);
+
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "library-images"); t.setDaemon(true); t.setPriority(Thread.MIN_PRIORITY); return t;
+    });
+    private static final Map<String, CompletableFuture<BufferedImage>> SOURCES = new ConcurrentHashMap<>();
+    private static final Map<String, BufferedImage> RENDITIONS = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> e) { return size() > MAX_RENDITIONS; }
+    };
+
+    private BackgroundImages() {}
+
+    /** The decoded source; completes exceptionally if it cannot be loaded (retried by the next caller). */
+    static CompletableFuture<BufferedImage> source(String location) {
+        CompletableFuture<BufferedImage> f = SOURCES.computeIfAbsent(location, l -> CompletableFuture.supplyAsync(() -> load(l), LOADER));
+        f.whenComplete((img, e) -> { if (e != null) SOURCES.remove(location, f); });
+        return f;
+    }
+
+    static BufferedImage cachedRendition(String location, int w, int h) {
+        synchronized (RENDITIONS) { return RENDITIONS.get(location + '@' + w + 'x' + h); }
+    }
+
+    /** {@code src} stretched to w x h with the overlay applied, built on the loader thread. */
+    static CompletableFuture<BufferedImage> rendition(String location, BufferedImage src, int w, int h, GraphicsConfiguration gc) {
+        BufferedImage cached = cachedRendition(location, w, h);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        return CompletableFuture.supplyAsync(() -> {
+            BufferedImage r = gc != null ? gc.createCompatibleImage(w, h) : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = r.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(src, 0, 0, w, h, null);
+                g.setColor(OVERLAY);
+                g.fillRect(0, 0, w, h);
+            } finally { g.dispose(); }
+            synchronized (RENDITIONS) { RENDITIONS.put(location + '@' + w + 'x' + h, r); }
+            return r;
+        }, LOADER);
+    }
+
+    private static BufferedImage load(String location) {
+        try {
+            File f = localFile(location);
+            if (f == null) f = cached(location);
+            BufferedImage img = ImageIO.read(f);
+            if (img == null) {
+                if (f.getParentFile() != null && f.getParentFile().equals(CACHE_DIR)) f.delete(); // not an image; fetch again next time
+                throw new IOException("Unsupported image: " + location);
+            }
+            return normalize(img);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static File localFile(String location) {
+        if (location.startsWith("file:")) return new File(URI.create(location));
+        return location.contains("://") ? null : new File(location);
+    }
+
+    private static File cached(String url) throws IOException {
+        File f = new File(CACHE_DIR, digest(url) + ".img");
+        if (f.isFile()) return f;
+        if (!CACHE_DIR.isDirectory() && !CACHE_DIR.mkdirs()) throw new IOException("Cannot create " + CACHE_DIR);
+        File tmp = new File(CACHE_DIR, f.getName() + ".tmp");
+        URLConnection c = new URL(url).openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        c.setReadTimeout(READ_TIMEOUT_MS);
+        try (InputStream in = c.getInputStream()) {
+            Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (java.nio.file.AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return f;
+    }
+
+    /** Downsamples to MAX_SIDE and converts to an int RGB raster, which scales and blits fastest. */
+    private static BufferedImage normalize(BufferedImage img) {
+        double k = Math.min(1.0, (double) MAX_SIDE / Math.max(img.getWidth(), img.getHeight()));
+        int w = Math.max(1, (int) Math.round(img.getWidth() * k)), h = Math.max(1, (int) Math.round(img.getHeight() * k));
+        if (k == 1.0 && img.getType() == BufferedImage.TYPE_INT_RGB) return img;
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, w, h, null);
+        } finally { g.dispose(); }
+        return out;
+    }
+
+    private static String digest(String s) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8))) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+}
+
+/* ------------------------
+   BACKGROUND PANEL
+   - Paints the plain background until the shared image is ready, then blits a rendition
+     made for its exact size. While a resize is in progress the last rendition is stretched
+     and a new one is requested once the size has settled.
+   ------------------------ */
+class BackgroundPanel extends JPanel {
+    private static final int RESIZE_SETTLE_MS = 80;
+    private final String source;
+    private BufferedImage image, rendition;
+    private final javax.swing.Timer resized;
+
+    public BackgroundPanel(String imageUrl) {
+        source = imageUrl;
+        setLayout(new GridBagLayout());
+        setBackground(Color.LIGHT_GRAY);
+        resized = new javax.swing.Timer(RESIZE_SETTLE_MS, e -> requestRendition());
+        resized.setRepeats(false);
+        BackgroundImages.source(imageUrl).thenAccept(img -> SwingUtilities.invokeLater(() -> { image = img; requestRendition(); }));
+    }
+
+    private void requestRendition() {
+        int w = getWidth(), h = getHeight();
+        if (image == null || w <= 0 || h <= 0) return;
+        BackgroundImages.rendition(source, image, w, h, getGraphicsConfiguration())
+            .thenAccept(r -> SwingUtilities.invokeLater(() -> { rendition = r; repaint(); }));
+    }
+
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int w = getWidth(), h = getHeight();
+        if (image == null || w <= 0 || h <= 0) return;
+        if (rendition == null || rendition.getWidth() != w || rendition.getHeight() != h) {
+            BufferedImage cached = BackgroundImages.cachedRendition(source, w, h);
+            if (cached != null) rendition = cached; else resized.restart();
+        }
+        if (rendition != null) g.drawImage(rendition, 0, 0, w, h, null);
+    }
+}
+
+/* ------------------------
+   UI TASKS
+   - Database work started from the windows runs on one bounded pool (THREADS threads, up to
+     QUEUE waiting) instead of on the event dispatch thread; results and failures come back
+     on the EDT through SwingWorker.done(). When the queue is full the user is told so.
+   - run() disables the given buttons until its task has finished.
+   - Coalescer: a refresh or search that is requested again while it is still running runs
+     once more afterwards with the latest input, however many requests came in between.
+   - follow(): a window's ChangeBus subscription, delivered in per-frame batches (NEXT_FRAME)
+     and closed with the window.
+   ------------------------ */
+final class UiTasks {
+    private static final int THREADS = Integer.getInteger("library.ui.threads", 2);
+    private static final int QUEUE = Integer.getInteger("library.ui.queue", 32);
+    private static final int FRAME_MS = 16;
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE),
+        r -> { Thread t = new Thread(r, "library-ui-task"); t.setDaemon(true); return t; });
+    static { POOL.allowCoreThreadTimeOut(true); }
+
+    /** Runs a task on the EDT one frame later, so whatever arrives meanwhile goes with it. */
+    static final Executor NEXT_FRAME = task -> {
+        javax.swing.Timer t = new javax.swing.Timer(FRAME_MS, e -> task.run());
+        t.setRepeats(false);
+        t.start();
+    };
+
+    interface Work<T> { T call() throws Exception; }
+    interface Done<T> { void accept(T result); }
+    interface Query<I, T> { T call(I input) throws Exception; }
+
+    private UiTasks() {}
+
+    /** Runs {@code work} in the background, then {@code done} on the EDT; a failure is shown over {@code owner} instead. */
+    static <T> void run(Component owner, Work<T> work, Done<T> done, AbstractButton... busy) {
+        for (AbstractButton b : busy) b.setEnabled(false);
+        Runnable enable = () -> { for (AbstractButton b : busy) b.setEnabled(true); };
+        if (!submit(worker(owner, work, done, enable), owner)) enable.run();
+    }
+
+    /** Runs a SwingWorker on the bounded pool rather than SwingWorker's own; false (the user is told) if the queue is full. */
+    static boolean submit(SwingWorker<?, ?> worker, Component owner) {
+        try {
+            POOL.execute(worker);
+            return true;
+        } catch (RejectedExecutionException e) {
+            JOptionPane.showMessageDialog(owner, "The library is busy, please try again.");
+            return false;
+        }
+    }
+
+    private static <T> SwingWorker<T, Void> worker(Component owner, Work<T> work, Done<T> done, Runnable after) {
+        return new SwingWorker<T, Void>() {
+            protected T doInBackground() throws Exception { return work.call(); }
+            protected void done() {
+                after.run();
+                T result;
+                try { result = get(); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+                catch (ExecutionException e) { fail(owner, e.getCause()); return; }
+                done.accept(result);
+            }
+        };
+    }
+
+    /** Validation messages are shown as they are; anything else is also logged. */
+    static void fail(Component owner, Throwable e) {
+        if (!(e instanceof IllegalArgumentException)) e.printStackTrace();
+        JOptionPane.showMessageDialog(owner, e instanceof IllegalArgumentException ? e.getMessage() : "Failed: " + e.getMessage());
+    }
+
+    /** Delivers database changes to {@code listener} on the EDT, a frame's worth at a time, until {@code window} is disposed. */
+    static void follow(Window window, LibraryService svc, ChangeBus.Listener listener) {
+        ChangeBus.Subscription s = svc.subscribe(listener, NEXT_FRAME);
+        window.addWindowListener(new WindowAdapter() { public void windowClosed(WindowEvent e) { s.close(); } });
+    }
+
+    /** Used on the EDT only. */
+    static final class Coalescer<I, T> {
+        private final Component owner;
+        private final Query<I, T> query;
+        private final Done<T> done;
+        private I latest;
+        private boolean inFlight, again;
+
+        Coalescer(Component owner, Query<I, T> query, Done<T> done) { this.owner = owner; this.query = query; this.done = done; }
+
+        void request(I input) {
+            latest = input;
+            if (inFlight) { again = true; return; }
+            inFlight = true;
+            I in = input;
+            Runnable after = () -> {
+                inFlight = false;
+                if (again) { again = false; SwingUtilities.invokeLater(() -> request(latest)); } // after done() has applied this result
+            };
+            if (!submit(worker(owner, () -> query.call(in), done, after), owner)) inFlight = false;
+        }
+    }
+}
+
+/* ------------------------
+   LOGIN FRAME
+   ------------------------ */
+class LoginFrame extends JFrame {
+    private final LibraryService svc;
+    private static final String BG_URL = System.getProperty("library.background", "https://images.unsplash.com/photo-1524995997946-a1c2e315a42f");
+
+    public LoginFrame(LibraryService svc) {
+        this.svc = svc;
+        setTitle("Digital Library — Login");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(780, 520);
+        setLocationRelativeTo(null);
+
+        BackgroundPanel bg = new BackgroundPanel(BG_URL);
+        setContentPane(bg);
+
+        JPanel card = new JPanel();
+        card.setOpaque(true);
+        card.setBackground(new Color(255,255,255,220));
+        card.setBorder(new CompoundBorder(new LineBorder(new Color(200,200,200),1,true), new EmptyBorder(25,36,25,36)));
+        card.setLayout(new BoxLayout(card, BoxLayout.Y_AXIS));
+        card.setMaximumSize(new Dimension(520,420));
+
+        JLabel title = new JLabel("📚 Digital Library", SwingConstants.CENTER);
+        title.setFont(new Font("SansSerif", Font.BOLD, 28));
+        title.setForeground(new Color(24,78,120));
+        title.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        JTextField userField = new JTextField();
+        JPasswordField passField = new JPasswordField();
+        JButton loginBtn = new JButton("Login");
+        JButton regBtn = new JButton("Register");
+
+        stylePrimaryButton(loginBtn);
+        styleSecondaryButton(regBtn);
+
+        JLabel info = new JLabel("Admin: admin/admin • Demo: student1/pass", SwingConstants.CENTER);
+        info.setForeground(new Color(80,80,80));
+        info.setFont(new Font("SansSerif", Font.PLAIN, 12));
+
+        card.add(title);
+        card.add(Box.createRigidArea(new Dimension(0,18)));
+        card.add(new JLabel("Username:"));
+        card.add(userField);
+        card.add(new JLabel("Password:"));
+        card.add(passField);
+        card.add(Box.createRigidArea(new Dimension(0,15)));
+        card.add(loginBtn);
+        card.add(Box.createRigidArea(new Dimension(0,8)));
+        card.add(regBtn);
+        card.add(Box.createRigidArea(new Dimension(0,10)));
+        card.add(info);
+
+        bg.add(card);
+
+        loginBtn.addActionListener(e -> {
+            String username = userField.getText().trim(), password = new String(passField.getPassword());
+            UiTasks.run(this, () -> svc.login(username, password), user -> {
+                if (user != null) {
+                    dispose();
+                    if (user instanceof Admin) new AdminPanel(svc, (Admin) user, BG_URL);
+                    else new StudentPanel(svc, (Student) user, BG_URL);
+                } else JOptionPane.showMessageDialog(this, "Invalid credentials!");
+            }, loginBtn, regBtn);
+        });
+
+        regBtn.addActionListener(e -> new RegisterDialog(this, svc, BG_URL));
+
+        setVisible(true);
+    }
+
+    private void stylePrimaryButton(JButton b) {
+        b.setBackground(new Color(22,78,120));
+        b.setForeground(Color.WHITE);
+        b.setFont(new Font("SansSerif", Font.BOLD, 15));
+        b.setFocusPainted(false);
+        b.setMaximumSize(new Dimension(Integer.MAX_VALUE, 40));
+        b.setBorder(new EmptyBorder(8,16,8,16));
+    }
+
+    private void styleSecondaryButton(JButton b) {
+        b.setBackground(Color.WHITE);
+        b.setForeground(new Color(22,78,120));
+        b.setFont(new Font("SansSerif", Font.BOLD, 14));
+        b.setFocusPainted(false);
+        b.setMaximumSize(new Dimension(Integer.MAX_VALUE, 40));
+        b.setBorder(new CompoundBorder(new LineBorder(new Color(22,78,120),1,true), new EmptyBorder(6,14,6,14)));
+    }
+}
+
+/* ------------------------
+   REGISTER DIALOG
+   ------------------------ */
+class RegisterDialog extends JDialog {
+    public RegisterDialog(JFrame owner, LibraryService svc, String bgUrl) {
+        super(owner, "Register User", true);
+        setSize(580, 460);
+        setLocationRelativeTo(owner);
+        BackgroundPanel bg = new BackgroundPanel(bgUrl);
+        setContentPane(bg);
+
+        JPanel form = new JPanel();
+        form.setOpaque(true);
+        form.setBackground(new Color(255,255,255,230));
+        form.setBorder(new CompoundBorder(new LineBorder(new Color(200,200,200),1,true), new EmptyBorder(22,30,22,30)));
+        form.setLayout(new BoxLayout(form, BoxLayout.Y_AXIS));
+
+        JLabel head = new JLabel("📝 Register New User", SwingConstants.CENTER);
+        head.setFont(new Font("SansSerif", Font.BOLD, 22));
+        head.setForeground(new Color(22,78,120));
+        head.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        JTextField nameF = new JTextField();
+        JTextField userF = new JTextField();
+        JPasswordField passF = new JPasswordField();
+        JComboBox<String> role = new JComboBox<>(new String[]{"Student","Admin"});
+        JButton regBtn = new JButton("Register");
+        regBtn.setBackground(new Color(22,78,120)); regBtn.setForeground(Color.WHITE);
+
+        form.add(head);
+        form.add(Box.createRigidArea(new Dimension(0,20)));
+        form.add(new JLabel("Full Name:")); form.add(nameF);
+        form.add(new JLabel("Username:")); form.add(userF);
+        form.add(new JLabel("Password:")); form.add(passF);
+        form.add(new JLabel("Role:")); form.add(role);
+        form.add(Box.createRigidArea(new Dimension(0,10)));
+        form.add(regBtn);
+        bg.add(form);
+
+        regBtn.addActionListener(e -> {
+            String name=nameF.getText(),user=userF.getText(),pass=new String(passF.getPassword());boolean admin=role.getSelectedItem().equals("Admin");
+            UiTasks.run(this,()->svc.register(name,user,pass,admin),u->{JOptionPane.showMessageDialog(this,"Registered successfully!");dispose();},regBtn);
+        });
+
+        setVisible(true);
+    }
+}
+
+/* ------------------------
+   ADMIN PANEL
+   ------------------------ */
+class AdminPanel extends JFrame {
+    private final LibraryService svc;
+    private final Admin admin;
+    private final String bgUrl;
+    private LazyTableModel<Book> booksModel;
+    private LazyTableModel<User> usersModel;
+    private UiTasks.Coalescer<Void,List<User>> refresher;
+    private volatile List<User> userRows; // what usersModel shows; replaced, not changed, since sorting reads it in the background
+
+    public AdminPanel(LibraryService svc, Admin admin, String bgUrl) {
+        this.svc=svc; this.admin=admin; this.bgUrl=bgUrl;
+        setTitle("Admin Dashboard — "+admin.getName());
+        setSize(1000,620);
+        setLocationRelativeTo(null);
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        BackgroundPanel bg = new BackgroundPanel(bgUrl);
+        setContentPane(bg);
+
+        JPanel overlay=new JPanel(new BorderLayout());
+        overlay.setOpaque(false);
+        overlay.setBorder(new EmptyBorder(16,16,16,16));
+        JPanel top=new JPanel(new BorderLayout()); top.setOpaque(false);
+
+        JLabel head=new JLabel("🛠️ Admin Dashboard",SwingConstants.LEFT);
+        head.setFont(new Font("SansSerif",Font.BOLD,22)); head.setForeground(Color.WHITE);
+
+        JPanel btnPanel=new JPanel(new FlowLayout(FlowLayout.RIGHT,10,4));
+        btnPanel.setOpaque(false);
+        JButton add=btn("➕ Add Book"),edit=btn("✏️ Edit Book"),del=btn("🗑 Delete"),refresh=btn("⟳ Refresh"),save=btn("💾 Save"),users=btn("👥 View Users"),history=btn("📜 Issued History"),diag=btn("📈 Diagnostics"),stats=btn("📊 Circulation"),imp=btn("📥 Import"),exp=btn("📤 Export");
+        btnPanel.add(add);btnPanel.add(edit);btnPanel.add(del);btnPanel.add(users);btnPanel.add(refresh);btnPanel.add(save);btnPanel.add(history);btnPanel.add(imp);btnPanel.add(exp);btnPanel.add(stats);btnPanel.add(diag);
+        top.add(head,BorderLayout.WEST);top.add(btnPanel,BorderLayout.EAST);
+        overlay.add(top,BorderLayout.NORTH);
+
+        JSplitPane split=new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);split.setResizeWeight(0.6);
+        booksModel=new LazyTableModel<>(svc.catalog(),new String[]{"ID","Title","Author","Avail","Total"},Arrays.<Function<Book,?>>asList(Book::getId,Book::getTitle,Book::getAuthor,Book::getAvailableCopies,Book::getTotalCopies));
+        JTable booksTable=new JTable(booksModel); booksModel.installHeaderSorting(booksTable);
+        JPanel left=createCard("Books"); left.add(new JScrollPane(booksTable)); split.setLeftComponent(left);
+
+        userRows=svc.userList();
+        usersModel=new LazyTableModel<>(RowSources.of(()->userRows.size(),i->{List<User> l=userRows;return i<l.size()?l.get(i):null;}),new String[]{"Username","Name","Role"},Arrays.<Function<User,?>>asList(User::getUsername,User::getName,u->(u instanceof Admin)?"Admin":"Student"));
+        JTable usersTable=new JTable(usersModel); usersModel.installHeaderSorting(usersTable);
+        JPanel right=createCard("Users"); right.add(new JScrollPane(usersTable)); split.setRightComponent(right);
+        overlay.add(split,BorderLayout.CENTER);
+
+        JButton delUser=btn("🗑 Delete User");
+        JPanel uPanel=new JPanel(new FlowLayout(FlowLayout.RIGHT)); uPanel.setOpaque(false); uPanel.add(delUser);
+        right.add(uPanel,BorderLayout.SOUTH);
+
+        bg.add(overlay);
+
+        // database calls run in UiTasks; the buttons they belong to stay disabled meanwhile
+        // the tables follow ChangeBus events (ours, other windows', the HTTP API's), so the callbacks below only report
+        refresher=new UiTasks.Coalescer<>(this,v->svc.userList(),u->{userRows=u;booksModel.refreshRows();usersModel.reload();});
+        UiTasks.follow(this,svc,this::changed);
+        add.addActionListener(e->editBook(null,add));
+        edit.addActionListener(e->{int r=booksTable.getSelectedRow();if(r<0)return;String id=(String)booksModel.getValueAt(r,0);UiTasks.run(this,()->svc.getBook(id),b->{if(b!=null)editBook(b,edit);},edit);});
+        del.addActionListener(e->{int r=booksTable.getSelectedRow();if(r<0)return;String id=(String)booksModel.getValueAt(r,0);if(JOptionPane.showConfirmDialog(this,"Delete "+id+"?","Confirm",2)==0)UiTasks.run(this,()->{svc.removeBook(id);return null;},v->{},del);});
+        delUser.addActionListener(e->{int r=usersTable.getSelectedRow();if(r<0)return;String u=(String)usersModel.getValueAt(r,0);User sel=usersModel.row(r);int out=sel instanceof Student?((Student)sel).getBorrowedBookIds().size():0;if(JOptionPane.showConfirmDialog(this,"Delete "+u+"?"+(out>0?"\n"+out+" borrowed book(s) will be returned first.":""),"Confirm",2)==0)UiTasks.run(this,()->{svc.removeUser(u);return null;},v->{},delUser);});
+        refresh.addActionListener(e->refreshTables());
+        save.addActionListener(e->UiTasks.run(this,()->{svc.flush();return null;},v->JOptionPane.showMessageDialog(this,"Saved!"),save));
+        history.addActionListener(e->new HistoryFrame(svc,admin));
+        diag.addActionListener(e->new DiagnosticsFrame(svc));
+        stats.addActionListener(e->new CirculationFrame(svc));
+        imp.addActionListener(e->importFile(imp));
+        exp.addActionListener(e->exportFile(exp));
+
+        JButton logout=btn("🚪 Logout"); logout.setBackground(new Color(220,53,69)); JPanel lp=new JPanel(new FlowLayout(FlowLayout.RIGHT)); lp.setOpaque(false); lp.add(logout); overlay.add(lp,BorderLayout.SOUTH);
+        logout.addActionListener(e->{if(JOptionPane.showConfirmDialog(this,"Logout?","Confirm",2)==0){dispose();new LoginFrame(svc);}});
+        setVisible(true);
+    }
+
+    private JButton btn(String t){JButton b=new JButton(t);b.setBackground(new Color(22,78,120));b.setForeground(Color.WHITE);b.setFont(new Font("SansSerif",Font.BOLD,13));b.setFocusPainted(false);return b;}
+    private JPanel createCard(String t){JPanel c=new JPanel(new BorderLayout());c.setOpaque(true);c.setBackground(new Color(255,255,255,235));c.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(8,8,8,8)));JLabel l=new JLabel(" "+t);l.setFont(new Font("SansSerif",Font.BOLD,14));c.add(l,BorderLayout.NORTH);return c;}
+    /** Repeated clicks while a refresh is running fold into one more refresh. */
+    private void refreshTables(){refresher.request(null);}
+    /** One frame's changes as row deltas; a user change that does not line up with userRows (e.g. during a refresh) reloads instead. */
+    private void changed(List<ChangeEvent> batch){
+        int books=-1,users=-1;
+        for(ChangeEvent e:batch){if(e.isBook())books=e.size;else if(e.isUser())users=e.size;switch(e.kind){
+            case BOOK_ADDED:booksModel.inserted(e.row);break;
+            case BOOK_UPDATED:booksModel.updated(e.row);break;
+            case BOOK_REMOVED:booksModel.deleted(e.row);break;
+            case USER_ADDED:if(e.row==userRows.size()){List<User> l=new ArrayList<>(userRows);l.add(e.user());userRows=l;usersModel.inserted(e.row);}else refreshTables();break;
+            case USER_UPDATED:usersModel.updated(-1);break;
+            case USER_REMOVED:if(e.row>=0&&e.row<userRows.size()&&userRows.get(e.row).getUsername().equals(e.key)){List<User> l=new ArrayList<>(userRows);l.remove(e.row);userRows=l;usersModel.deleted(e.row);}else refreshTables();break;
+            case RESET:refreshTables();break;
+            default:break;
+        }}
+        booksModel.endChanges(books);usersModel.endChanges(users);
+    }
+    private static final javax.swing.filechooser.FileNameExtensionFilter BULK_FILES=new javax.swing.filechooser.FileNameExtensionFilter("CSV or JSON Lines","csv","jsonl","json","ndjson");
+    /** Streams a CSV/JSONL file of books or users in the background with a progress monitor. */
+    private void importFile(JButton button){
+        String[] kinds={"Books","Users"};int k=JOptionPane.showOptionDialog(this,"What does the file contain?","Import",0,JOptionPane.QUESTION_MESSAGE,null,kinds,kinds[0]);if(k<0)return;
+        JFileChooser fc=new JFileChooser();fc.setFileFilter(BULK_FILES);if(fc.showOpenDialog(this)!=JFileChooser.APPROVE_OPTION)return;File f=fc.getSelectedFile();
+        ProgressMonitor pm=new ProgressMonitor(this,"Importing "+f.getName(),"",0,100);
+        button.setEnabled(false);
+        if(!UiTasks.submit(new SwingWorker<BulkTransfer.Report,Void>(){
+            protected BulkTransfer.Report doInBackground()throws IOException{BulkTransfer.Progress p=(n,done,total)->SwingUtilities.invokeLater(()->{pm.setNote(String.format("%,d records",n));pm.setProgress(total==0?100:(int)(done*100/total));});return k==0?svc.importBooks(f,p):svc.importUsers(f,p);}
+            protected void done(){pm.close();button.setEnabled(true);refreshTables();try{BulkTransfer.Report r=get();StringBuilder sb=new StringBuilder(r.toString());for(int i=0;i<Math.min(20,r.errors.size());i++)sb.append('\n').append(r.errors.get(i));if(r.failed>20)sb.append("\n…");JOptionPane.showMessageDialog(AdminPanel.this,sb.toString(),"Import finished",r.failed==0?JOptionPane.INFORMATION_MESSAGE:JOptionPane.WARNING_MESSAGE);}catch(Exception ex){JOptionPane.showMessageDialog(AdminPanel.this,"Import failed: "+(ex.getCause()!=null?ex.getCause().getMessage():ex.getMessage()));}}
+        },this)){pm.close();button.setEnabled(true);}
+    }
+    private void exportFile(JButton button){
+        String[] kinds={"Books","Users","History"};int k=JOptionPane.showOptionDialog(this,"What should be exported?","Export",0,JOptionPane.QUESTION_MESSAGE,null,kinds,kinds[0]);if(k<0)return;
+        JFileChooser fc=new JFileChooser();fc.setFileFilter(BULK_FILES);fc.setSelectedFile(new File(kinds[k].toLowerCase(Locale.ROOT)+".csv"));if(fc.showSaveDialog(this)!=JFileChooser.APPROVE_OPTION)return;File f=fc.getSelectedFile();
+        ProgressMonitor pm=new ProgressMonitor(this,"Exporting to "+f.getName(),"",0,100);
+        button.setEnabled(false);
+        if(!UiTasks.submit(new SwingWorker<Long,Void>(){
+            protected Long doInBackground()throws IOException{return svc.export(BulkTransfer.Kind.values()[k],f,(n,done,total)->SwingUtilities.invokeLater(()->pm.setProgress(total==0?100:(int)(done*100/total))));}
+            protected void done(){pm.close();button.setEnabled(true);try{JOptionPane.showMessageDialog(AdminPanel.this,"Exported "+get()+" records to "+f.getName());}catch(Exception ex){JOptionPane.showMessageDialog(AdminPanel.this,"Export failed: "+(ex.getCause()!=null?ex.getCause().getMessage():ex.getMessage()));}}
+        },this)){pm.close();button.setEnabled(true);}
+    }
+    /** Shows the book form; the book is saved in the background and the table picks it up from the change event. */
+    private void editBook(Book ex,JButton button){JPanel p=new JPanel(new GridLayout(0,2,6,6));JTextField id=new JTextField(ex==null?"":ex.getId()),t=new JTextField(ex==null?"":ex.getTitle()),a=new JTextField(ex==null?"":ex.getAuthor());JSpinner c=new JSpinner(new SpinnerNumberModel(ex==null?1:ex.getTotalCopies(),1,1000,1));if(ex!=null)id.setEnabled(false);int seen=ex==null?0:ex.getVersion();p.add(new JLabel("ID"));p.add(id);p.add(new JLabel("Title"));p.add(t);p.add(new JLabel("Author"));p.add(a);p.add(new JLabel("Copies"));p.add(c);if(JOptionPane.showConfirmDialog(this,p,ex==null?"Add Book":"Edit Book",2)!=0)return;String bid=id.getText(),title=t.getText(),author=a.getText();int copies=(Integer)c.getValue();UiTasks.run(this,()->{if(ex==null)svc.addBook(bid,title,author,copies);else svc.updateBook(ex,seen,title,author,copies);return null;},v->{},button);}
+}
+
+/* ------------------------
+   STUDENT PANEL (modified)
+   - Removed the visible "My Borrowed Books" list from main UI (as requested)
+   - Added Return and Logout buttons to the top control bar (so they appear beside Search/Borrow/etc.)
+   - Return opens a dialog listing the student's borrowed books to pick and return
+   ------------------------ */
+class StudentPanel extends JFrame {
+    private static final int SEARCH_DEBOUNCE_MS = 150, SEARCH_LIMIT = 500;
+    private final LibraryService svc; private final Student s;
+    private LazyTableModel<Book> allModel;
+    private UiTasks.Coalescer<String,RowSource<Book>> searcher;
+    private String query; // null while the whole (live) catalog is shown, else the search whose results are
+    public StudentPanel(LibraryService svc, Student s, String bgUrl){
+        this.svc=svc;this.s=s;
+        setTitle("Student Portal — "+s.getName());
+        setSize(900,600);setLocationRelativeTo(null);setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        BackgroundPanel bg=new BackgroundPanel(bgUrl);setContentPane(bg);
+        JPanel overlay=new JPanel(new BorderLayout());overlay.setOpaque(false);overlay.setBorder(new EmptyBorder(12,12,12,12));
+        JLabel h=new JLabel("👋 Welcome, "+s.getName());h.setFont(new Font("SansSerif",Font.BOLD,22));h.setForeground(Color.WHITE);overlay.add(h,BorderLayout.NORTH);
+
+        JSplitPane split=new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);split.setResizeWeight(1.0); // take full width with left component
+
+        allModel=new LazyTableModel<>(svc.catalog(),new String[]{"ID","Title","Author","Avail","Total"},Arrays.<Function<Book,?>>asList(Book::getId,Book::getTitle,Book::getAuthor,Book::getAvailableCopies,Book::getTotalCopies));JTable all=new JTable(allModel);
+        JPanel left=createCard("All Books"); JPanel sp=new JPanel(new FlowLayout(FlowLayout.LEFT,6,6));sp.setOpaque(false);
+        JTextField q=new JTextField(20);
+        JButton search=acc("Search"), borrow=pri("📘 Borrow"), refresh=acc("⟳ Refresh"), history=acc("📜 Borrowed History");
+        JButton ret=pri("📗 Return"), logout=pri("🚪 Logout");
+        // Move Return and Logout to the top control bar (different place than before)
+        sp.add(new JLabel("Search:"));sp.add(q);sp.add(search);sp.add(borrow);sp.add(refresh);sp.add(history);sp.add(ret);sp.add(logout);
+        left.add(sp,BorderLayout.NORTH);left.add(new JScrollPane(all)); split.setLeftComponent(left);
+
+        // Right side intentionally left empty / collapsed to "delete my borrowed books" from visible panel
+        JPanel empty=new JPanel(); empty.setOpaque(false); split.setRightComponent(empty);
+
+        overlay.add(split);bg.add(overlay);
+
+        // loans, returns and searches run in UiTasks, off the event dispatch thread
+        searcher=new UiTasks.Coalescer<>(this,text->text==null?svc.catalog():svc.catalog(text,SEARCH_LIMIT),allModel::setSource);
+        UiTasks.follow(this,svc,this::changed);
+        borrow.addActionListener(e->{int r=all.getSelectedRow();if(r<0){JOptionPane.showMessageDialog(this,"Select a book to borrow");return;}String id=(String)allModel.getValueAt(r,0);UiTasks.run(this,()->svc.borrow(s,id),res->{switch(res){case OK:JOptionPane.showMessageDialog(this,"Borrowed!");break;case NO_SUCH_BOOK:JOptionPane.showMessageDialog(this,"Book not found");break;default:JOptionPane.showMessageDialog(this,"No copies available");}},borrow);});
+
+        // Return button now opens a dialog listing borrowed books for selection
+        ret.addActionListener(e->UiTasks.run(this,()->{
+            // build display array
+            List<String> ids = s.getBorrowedBookIds();
+            Map<String,String> idMap = new LinkedHashMap<>();
+            for(String id:ids){ Book b = svc.getBook(id); idMap.put(id + " - " + (b!=null?b.getTitle():"(unknown)"), id); }
+            return idMap;
+        },idMap->{
+            if(idMap.isEmpty()){ JOptionPane.showMessageDialog(this, "You have no borrowed books."); return; }
+            String[] options = idMap.keySet().toArray(new String[0]);
+            String sel = (String) JOptionPane.showInputDialog(this, "Select a book to return:", "Return Book", JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+            if(sel==null) return;
+            String id = idMap.get(sel);
+            UiTasks.run(this,()->svc.giveBack(s, id),res->{ if(res==LibraryDatabase.LoanResult.OK){ JOptionPane.showMessageDialog(this, "Returned!"); } else { JOptionPane.showMessageDialog(this, "Unable to return (book record missing or max copies reached)."); } },ret);
+        },ret));
+
+        search.addActionListener(e->filter(q.getText().trim()));
+        // search as you type, debounced so a burst of keystrokes runs one query
+        javax.swing.Timer debounce=new javax.swing.Timer(SEARCH_DEBOUNCE_MS,e->filter(q.getText().trim()));debounce.setRepeats(false);
+        q.getDocument().addDocumentListener(new javax.swing.event.DocumentListener(){
+            public void insertUpdate(javax.swing.event.DocumentEvent e){debounce.restart();}
+            public void removeUpdate(javax.swing.event.DocumentEvent e){debounce.restart();}
+            public void changedUpdate(javax.swing.event.DocumentEvent e){debounce.restart();}
+        });
+        refresh.addActionListener(e->refreshAll());
+        history.addActionListener(e->new HistoryFrame(svc,s));
+
+        logout.addActionListener(e->{ if(JOptionPane.showConfirmDialog(this,"Logout?","Confirm",2)==0){ dispose(); new LoginFrame(svc); } });
+
+        setVisible(true);
+    }
+    private JPanel createCard(String t){JPanel c=new JPanel(new BorderLayout());c.setOpaque(true);c.setBackground(new Color(255,255,255,235));c.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(8,8,8,8)));JLabel l=new JLabel(" "+t);l.setFont(new Font("SansSerif",Font.BOLD,14));c.add(l,BorderLayout.NORTH);return c;}
+    private JButton pri(String t){JButton b=new JButton(t);b.setBackground(new Color(22,78,120));b.setForeground(Color.WHITE);b.setFont(new Font("SansSerif",Font.BOLD,13));b.setFocusPainted(false);return b;}
+    private JButton acc(String t){JButton b=new JButton(t);b.setBackground(new Color(245,245,245));b.setForeground(new Color(22,78,120));b.setFocusPainted(false);b.setBorder(new CompoundBorder(new LineBorder(new Color(220,220,220),1,true),new EmptyBorder(4,8,4,8)));return b;}
+    private void refreshAll(){ query=null; searcher.request(null); }
+    private void filter(String q){ query=q.isEmpty()?null:q; searcher.request(query); }
+    /** Book changes as row deltas on the catalog; search results hold the same Book objects, so they are only repainted. */
+    private void changed(List<ChangeEvent> batch){
+        int size=-1;
+        for(ChangeEvent e:batch){
+            if(e.kind==ChangeEvent.Kind.RESET){ searcher.request(query); return; }
+            if(!e.isBook()) continue;
+            if(query==null) size=e.size;
+            if(query!=null){ if(e.kind==ChangeEvent.Kind.BOOK_UPDATED) allModel.updated(-1); continue; } // new or deleted books show on the next search
+            switch(e.kind){ case BOOK_ADDED: allModel.inserted(e.row); break; case BOOK_REMOVED: allModel.deleted(e.row); break; default: allModel.updated(e.row); }
+        }
+        allModel.endChanges(size);
+    }
+}
+
+/* ------------------------
+   HISTORY FRAME
+   ------------------------ */
+class HistoryFrame extends JFrame {
+    public HistoryFrame(LibraryService svc, User viewer) {
+        boolean admin = viewer instanceof Admin;
+        setTitle(admin?"📜 Issued History":"📜 Borrowed History");
+        setSize(700,400);
+        setLocationRelativeTo(null);
+        LazyTableModel<Transaction> m=new LazyTableModel<>(RowSources.of(Collections.<Transaction>emptyList()),new String[]{"Username","Book Title","Action","Date"},Arrays.<Function<Transaction,?>>asList(Transaction::getUsername,Transaction::getBookTitle,Transaction::getAction,Transaction::getDate));
+        JTable t=new JTable(m);t.setRowHeight(24);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE); // ends the subscription below
+        add(new JScrollPane(t));setVisible(true);
+        UiTasks.run(this,()->svc.history(viewer),m::setSource); // spans archive segments, so not on the EDT
+        // the view's hot part is live: new records only need announcing; RESET (compaction) means the view is stale
+        UiTasks.follow(this,svc,batch->{boolean grew=false;for(ChangeEvent e:batch){if(e.kind==ChangeEvent.Kind.RESET){UiTasks.run(this,()->svc.history(viewer),m::setSource);return;}if(e.kind==ChangeEvent.Kind.TRANSACTION_APPENDED&&(admin||e.transaction().getUsername().equals(viewer.getUsername())))grew=true;}if(grew)m.appended();});
+    }
+}
+
+/* ------------------------
+   DIAGNOSTICS (admin)
+   - Operation latencies and counters from Metrics, startup phases and recent EDT stalls;
+     Export writes the same JSON that /api/metrics serves.
+   - Check loans runs LibraryDatabase.verifyLoans in the background and lists any drift.
+   ------------------------ */
+class DiagnosticsFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private final LibraryService svc;
+    private final DefaultTableModel timers=new DefaultTableModel(new String[]{"Operation","Count","Mean ms","p50 ms","p95 ms","p99 ms","Max ms"},0);
+    private final DefaultTableModel counters=new DefaultTableModel(new String[]{"Name","Value"},0);
+    private final DefaultTableModel stalls=new DefaultTableModel(new String[]{"At","Stall ms","Samples"},0);
+    private final JTextArea stack=new JTextArea();
+    private List<EdtWatchdog.Stall> stallRows=new ArrayList<>();
+
+    public DiagnosticsFrame(LibraryService svc) {
+        this.svc=svc;
+        setTitle("📈 Diagnostics");
+        setSize(820,520);
+        setLocationRelativeTo(null);
+        JTabbedPane tabs=new JTabbedPane();
+        tabs.addTab("Operations",new JScrollPane(new JTable(timers)));
+        tabs.addTab("Counters & startup",new JScrollPane(new JTable(counters)));
+        JTable stallTable=new JTable(stalls);stack.setEditable(false);stack.setFont(new Font(Font.MONOSPACED,Font.PLAIN,12));
+        stallTable.getSelectionModel().addListSelectionListener(e->{int r=stallTable.getSelectedRow();stack.setText(r<0||r>=stallRows.size()?"":stallRows.get(r).stack);stack.setCaretPosition(0);});
+        JSplitPane sp=new JSplitPane(JSplitPane.VERTICAL_SPLIT,new JScrollPane(stallTable),new JScrollPane(stack));sp.setResizeWeight(0.4);
+        tabs.addTab("UI stalls (>"+EdtWatchdog.STALL_MS+" ms)",sp);
+        JButton refresh=new JButton("⟳ Refresh"),export=new JButton("💾 Export…"),loans=new JButton("✔ Check loans");
+        JPanel south=new JPanel(new FlowLayout(FlowLayout.RIGHT));south.add(loans);south.add(refresh);south.add(export);
+        add(tabs,BorderLayout.CENTER);add(south,BorderLayout.SOUTH);
+        refresh.addActionListener(e->reload());
+        loans.addActionListener(e->UiTasks.run(this,svc::verifyLoans,this::showLoanCheck,loans));
+        export.addActionListener(e->{JFileChooser fc=new JFileChooser();fc.setSelectedFile(new File("library-metrics.json"));if(fc.showSaveDialog(this)!=JFileChooser.APPROVE_OPTION)return;try{Metrics.export(fc.getSelectedFile());}catch(IOException ex){JOptionPane.showMessageDialog(this,"Export failed: "+ex.getMessage());}});
+        reload();
+        setVisible(true);
+    }
+
+    private static String ms(double nanos){return String.format("%.3f",nanos/1e6);}
+
+    private void showLoanCheck(LoanTable.Report r){
+        reload();
+        if(r.consistent()){JOptionPane.showMessageDialog(this,r.toString(),"Loan check",JOptionPane.INFORMATION_MESSAGE);return;}
+        JTextArea t=new JTextArea(r+"\n\n"+String.join("\n",r.drift)+(r.drifted>r.drift.size()?"\n…":""),20,80);t.setEditable(false);t.setCaretPosition(0);
+        JOptionPane.showMessageDialog(this,new JScrollPane(t),"Loan check",JOptionPane.WARNING_MESSAGE);
+    }
+
+    private void reload(){
+        timers.setRowCount(0);
+        for(Metrics.Histogram h:Metrics.histograms()) if(h.count()>0) timers.addRow(new Object[]{h.name,h.count(),ms(h.mean()),ms(h.percentile(0.5)),ms(h.percentile(0.95)),ms(h.percentile(0.99)),ms(h.max())});
+        counters.setRowCount(0);
+        for(Map.Entry<String,Long> e:Metrics.counters().entrySet()) counters.addRow(new Object[]{e.getKey(),e.getValue()});
+        for(Map.Entry<String,Long> e:svc.startupTimings().entrySet()) counters.addRow(new Object[]{"startup."+e.getKey()+" (ms)",e.getValue()});
+        stallRows=EdtWatchdog.stalls();stalls.setRowCount(0);
+        for(EdtWatchdog.Stall st:stallRows) stalls.addRow(new Object[]{Transaction.DATE_FORMAT.format(Instant.ofEpochMilli(st.at)),st.millis,st.samples});
+        stack.setText("");
+    }
+}
+
+/* ------------------------
+   CIRCULATION DASHBOARD (admin)
+   - Totals, the most borrowed titles for a period, loans per day over the last DAYS days
+     and the books nobody has borrowed, all read from CirculationStats. Queries run in a
+     SwingWorker and touch only the aggregates, never the history itself.
+   ------------------------ */
+class CirculationFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private static final int TOP = 25, DAYS = 30;
+    private static final String[] PERIODS={"This month","Last 3 months","This year","All time"};
+    private final LibraryService svc;
+    private final JLabel summary=new JLabel(" ");
+    private final JComboBox<String> period=new JComboBox<>(PERIODS);
+    private final DefaultTableModel top=new DefaultTableModel(new String[]{"#","ID","Title","Loans"},0);
+    private final DailyChart chart=new DailyChart();
+    private final LazyTableModel<Book> never=new LazyTableModel<>(RowSources.of(new ArrayList<Book>()),new String[]{"ID","Title","Author","Total"},Arrays.<Function<Book,?>>asList(Book::getId,Book::getTitle,Book::getAuthor,Book::getTotalCopies));
+
+    public CirculationFrame(LibraryService svc) {
+        this.svc=svc;
+        setTitle("📊 Circulation");
+        setSize(820,520);
+        setLocationRelativeTo(null);
+        JPanel north=new JPanel(new BorderLayout());north.setBorder(new EmptyBorder(8,8,8,8));
+        summary.setFont(new Font("SansSerif",Font.BOLD,13));
+        JPanel pp=new JPanel(new FlowLayout(FlowLayout.RIGHT,6,0));pp.add(new JLabel("Most borrowed:"));pp.add(period);
+        north.add(summary,BorderLayout.WEST);north.add(pp,BorderLayout.EAST);
+        JTabbedPane tabs=new JTabbedPane();
+        JTable topTable=new JTable(top);topTable.setRowHeight(22);
+        tabs.addTab("Most borrowed",new JScrollPane(topTable));
+        tabs.addTab("Loans per day (last "+DAYS+" days)",chart);
+        JTable neverTable=new JTable(never);never.installHeaderSorting(neverTable);
+        tabs.addTab("Never borrowed",new JScrollPane(neverTable));
+        JButton refresh=new JButton("⟳ Refresh");
+        JPanel south=new JPanel(new FlowLayout(FlowLayout.RIGHT));south.add(refresh);
+        add(north,BorderLayout.NORTH);add(tabs,BorderLayout.CENTER);add(south,BorderLayout.SOUTH);
+        refresh.addActionListener(e->reload());
+        period.addActionListener(e->reload());
+        reload();
+        setVisible(true);
+    }
+
+    private static final class Snapshot {
+        CirculationStats.Summary summary;
+        final List<Object[]> top=new ArrayList<>();
+        List<CirculationStats.Day> days;
+        RowSource<Book> never;
+    }
+
+    private void reload(){
+        int p=period.getSelectedIndex();
+        UiTasks.submit(new SwingWorker<Snapshot,Void>(){
+            protected Snapshot doInBackground(){
+                CirculationStats c=svc.circulation();
+                Snapshot s=new Snapshot();
+                s.summary=c.summary();
+                YearMonth now=YearMonth.now(c.zone());
+                List<CirculationStats.Ranked> ranked=p==3?c.mostBorrowed(TOP):c.mostBorrowed(p==0?now:p==1?now.minusMonths(2):YearMonth.of(now.getYear(),1),now,TOP);
+                for(CirculationStats.Ranked r:ranked) s.top.add(new Object[]{s.top.size()+1,r.bookId()==null?"":r.bookId(),svc.titleOf(r),r.loans});
+                LocalDate today=LocalDate.now(c.zone());
+                s.days=c.perDay(today.minusDays(DAYS-1),today);
+                s.never=svc.neverBorrowed();
+                return s;
+            }
+            protected void done(){
+                Snapshot s;
+                try{s=get();}catch(Exception ex){JOptionPane.showMessageDialog(CirculationFrame.this,"Could not load statistics: "+(ex.getCause()!=null?ex.getCause().getMessage():ex.getMessage()));return;}
+                summary.setText(String.format("%,d loans · %,d returns · %,d on loan · %,d titles borrowed · %,d never borrowed",s.summary.borrowed,s.summary.returned,s.summary.onLoan(),s.summary.titlesBorrowed,s.never.size()));
+                top.setRowCount(0);for(Object[] r:s.top)top.addRow(r);
+                chart.setDays(s.days);
+                never.setSource(s.never);
+            }
+        },this);
+    }
+
+    /** Borrows (blue) and returns (green) per day as paired bars. */
+    private static final class DailyChart extends JComponent {
+        private static final long serialVersionUID = 1L;
+        private static final DateTimeFormatter LABEL=DateTimeFormatter.ofPattern("dd MMM");
+        private List<CirculationStats.Day> days=new ArrayList<>();
+        DailyChart(){setPreferredSize(new Dimension(600,240));}
+        void setDays(List<CirculationStats.Day> d){days=d;repaint();}
+        @Override protected void paintComponent(Graphics g0){
+            Graphics2D g=(Graphics2D)g0;g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);g.fillRect(0,0,getWidth(),getHeight());
+            if(days.isEmpty())return;
+            long max=1;for(CirculationStats.Day d:days)max=Math.max(max,Math.max(d.borrowed,d.returned));
+            FontMetrics fm=g.getFontMetrics();
+            int left=fm.stringWidth(String.valueOf(max))+12,bottom=getHeight()-fm.getHeight()-8,top=16,right=getWidth()-8;
+            double slot=(right-left)/(double)days.size();int bar=Math.max(1,(int)(slot/2)-1);
+            g.setColor(Color.GRAY);g.drawLine(left,bottom,right,bottom);g.drawString(String.valueOf(max),4,top+fm.getAscent()/2);g.drawString("0",left-fm.stringWidth("0")-6,bottom);
+            for(int i=0;i<days.size();i++){
+                CirculationStats.Day d=days.get(i);int x=left+(int)(i*slot);
+                int hb=(int)((bottom-top)*d.borrowed/max),hr=(int)((bottom-top)*d.returned/max);
+                g.setColor(new Color(22,78,120));g.fillRect(x,bottom-hb,bar,hb);
+                g.setColor(new Color(40,167,69));g.fillRect(x+bar,bottom-hr,bar,hr);
+                if(i%Math.max(1,days.size()/6)==0){g.setColor(Color.DARK_GRAY);g.drawString(LABEL.format(d.date),x,bottom+fm.getAscent()+4);}
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Hammers {@link LibraryDatabase#borrow}/{@link LibraryDatabase#giveBack} from many threads on a few
+ * scarce books and checks that no copy was oversold and that books, students and history agree.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=BorrowStressCheck [-PcheckArgs="threads opsPerThread"]</pre>
+ */
+public final class BorrowStressCheck {
+    private static final int BOOKS = 8;
+    private static final int COPIES = 3;
+    private static final int STUDENTS = 40;
+
+    private BorrowStressCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        Path dir = Files.createTempDirectory("borrow-stress");
+        try {
+            run(dir.toFile(), threads, ops);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void run(File dir, int threads, int ops) throws Exception {
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            for (int i = 0; i < BOOKS; i++) db.addOrUpdateBook(new Book("S" + i, "Scarce " + i, "Author " + i, COPIES));
+            for (int i = 0; i < STUDENTS; i++) db.addUser(new Student("stress" + i, "pass", "Student " + i));
+
+            AtomicInteger borrowed = new AtomicInteger(), returned = new AtomicInteger(), refused = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random rnd = new Random(t);
+                Thread w = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            Student s = (Student) db.getUser("stress" + rnd.nextInt(STUDENTS));
+                            String id = "S" + rnd.nextInt(BOOKS);
+                            if (rnd.nextBoolean()) {
+                                if (db.borrow(s, id) == LibraryDatabase.LoanResult.OK) borrowed.incrementAndGet(); else refused.incrementAndGet();
+                            } else if (db.giveBack(s, id) == LibraryDatabase.LoanResult.OK) returned.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) { failures.add(e); }
+                    }
+                }, "stress-" + t);
+                workers.add(w);
+                w.start();
+            }
+            long t0 = System.nanoTime();
+            start.countDown();
+            for (Thread w : workers) w.join();
+            long millis = (System.nanoTime() - t0) / 1_000_000;
+            if (!failures.isEmpty()) throw new IllegalStateException("worker failed", failures.get(0));
+
+            int out = 0;
+            for (int i = 0; i < BOOKS; i++) {
+                Book b = db.getBook("S" + i);
+                int held = db.holders(b.getId()).size();
+                if (b.getAvailableCopies() < 0 || b.getAvailableCopies() > b.getTotalCopies())
+                    throw new IllegalStateException(b.getId() + " has " + b.getAvailableCopies() + " of " + b.getTotalCopies() + " copies available");
+                if (b.getTotalCopies() - b.getAvailableCopies() != held)
+                    throw new IllegalStateException(b.getId() + " has " + (b.getTotalCopies() - b.getAvailableCopies()) + " copies out but " + held + " holders");
+                out += held;
+            }
+            int listed = 0;
+            for (int i = 0; i < STUDENTS; i++) listed += ((Student) db.getUser("stress" + i)).getBorrowedBookIds().size();
+            if (listed != out) throw new IllegalStateException("students list " + listed + " loans but " + out + " copies are out");
+            if (borrowed.get() - returned.get() != out)
+                throw new IllegalStateException(borrowed + " borrows - " + returned + " returns != " + out + " copies out");
+            int logged = db.getAllTransactions().size();
+            if (logged != borrowed.get() + returned.get())
+                throw new IllegalStateException("history has " + logged + " records for " + (borrowed.get() + returned.get()) + " loans");
+            LoanTable.Report report = db.verifyLoans();
+            if (!report.consistent()) throw new IllegalStateException(report.toString());
+
+            System.out.printf("OK: %d threads x %d ops in %d ms; %d borrowed, %d returned, %d refused, %d out%n",
+                threads, ops, millis, borrowed.get(), returned.get(), refused.get(), out);
+        } finally {
+            db.close();
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
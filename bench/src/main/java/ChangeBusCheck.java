@@ -0,0 +1,145 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import javax.swing.event.TableModelEvent;
+
+/**
+ * Makes catalog changes through {@link LibraryDatabase}, applies the published {@link ChangeEvent}
+ * batches to a {@link LazyTableModel} the way AdminPanel does, and checks that the table was told
+ * about exactly those rows (inserts, updates, deletes, no full reload) and ends up matching the
+ * catalog. A subscriber that falls behind must get one RESET instead.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=ChangeBusCheck</pre>
+ */
+public final class ChangeBusCheck {
+    private static final int MAX_PENDING = 64;
+
+    private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<>();
+    /** Deliveries wait here until {@link #deliver()}, like NEXT_FRAME waits for the next frame. */
+    private final Executor later = deliveries::add;
+    private final LibraryDatabase db;
+    private final LazyTableModel<Book> model;
+    /** Book ids in table order, maintained from the events alone. */
+    private final List<String> rows = new ArrayList<>();
+    private final List<TableModelEvent> fired = new ArrayList<>();
+    private final List<ChangeEvent.Kind> kinds = new ArrayList<>();
+
+    private ChangeBusCheck(LibraryDatabase db) {
+        this.db = db;
+        this.model = new LazyTableModel<>(db.bookView(), new String[] { "ID", "Title", "Available" },
+            Arrays.<Function<Book, ?>>asList(Book::getId, Book::getTitle, Book::getAvailableCopies));
+        for (int i = 0; i < model.getRowCount(); i++) rows.add(model.row(i).getId());
+        model.addTableModelListener(fired::add);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("library.events.maxPending", String.valueOf(MAX_PENDING)); // before ChangeBus is loaded
+        Path dir = Files.createTempDirectory("change-bus");
+        try {
+            LibraryDatabase db = new LibraryDatabase(dir.toFile());
+            try {
+                db.awaitLoaded();
+                for (int i = 0; i < 5; i++) db.addOrUpdateBook(new Book("C" + i, "Change " + i, "Author", 2));
+                db.addUser(new Student("carol", "pw", "Carol"));
+                new ChangeBusCheck(db).run();
+            } finally {
+                db.close();
+            }
+        } finally {
+            BorrowStressCheck.delete(dir);
+        }
+        System.out.println("OK: change events applied as row deltas");
+    }
+
+    private void run() {
+        try (ChangeBus.Subscription s = db.events().subscribe(this::changed, later)) {
+            db.addOrUpdateBook(new Book("C5", "Change 5", "Author", 1));
+            db.addOrUpdateBook(new Book("C6", "Change 6", "Author", 1));
+            step("two books added", 2, 0, 0, ChangeEvent.Kind.BOOK_ADDED, ChangeEvent.Kind.BOOK_ADDED);
+
+            int row = db.bookRow("C2");
+            if (db.borrow((Student) db.getUser("carol"), "C2") != LibraryDatabase.LoanResult.OK) throw new IllegalStateException("borrow C2 failed");
+            step("C2 borrowed", 0, 1, 0, ChangeEvent.Kind.TRANSACTION_APPENDED, ChangeEvent.Kind.BOOK_UPDATED, ChangeEvent.Kind.USER_UPDATED);
+            if (fired.get(0).getFirstRow() != row || fired.get(0).getLastRow() != row)
+                throw new IllegalStateException("C2 borrowed: repainted rows " + fired.get(0).getFirstRow() + ".." + fired.get(0).getLastRow() + ", expected " + row);
+            if (!Integer.valueOf(1).equals(model.getValueAt(row, 2))) throw new IllegalStateException("C2 borrowed: table shows " + model.getValueAt(row, 2) + " available");
+
+            db.removeBook("C3");
+            db.addOrUpdateBook(new Book("C7", "Change 7", "Author", 1));
+            db.removeBook("C0");
+            step("C3 removed, C7 added, C0 removed", 1, 0, 2, ChangeEvent.Kind.BOOK_REMOVED, ChangeEvent.Kind.BOOK_ADDED, ChangeEvent.Kind.BOOK_REMOVED);
+
+            for (int i = 0; i <= MAX_PENDING; i++) db.addOrUpdateBook(new Book("R" + i, "Reset " + i, "Author", 1));
+            kinds.clear();
+            deliver();
+            if (!kinds.equals(Arrays.asList(ChangeEvent.Kind.RESET))) throw new IllegalStateException("overflow: expected one RESET, got " + kinds);
+        }
+    }
+
+    /** What AdminPanel.changed does for the books table, plus the bookkeeping the checks need. */
+    private void changed(List<ChangeEvent> batch) {
+        int size = -1;
+        for (ChangeEvent e : batch) {
+            kinds.add(e.kind);
+            if (e.kind == ChangeEvent.Kind.RESET) return;
+            if (!e.isBook()) continue;
+            size = e.size;
+            switch (e.kind) {
+                case BOOK_ADDED:
+                    rows.add(e.row, e.key);
+                    model.inserted(e.row);
+                    break;
+                case BOOK_UPDATED:
+                    expectRow(e);
+                    model.updated(e.row);
+                    break;
+                default:
+                    expectRow(e);
+                    rows.remove(e.row);
+                    model.deleted(e.row);
+            }
+        }
+        model.endChanges(size);
+    }
+
+    private void expectRow(ChangeEvent e) {
+        if (e.row < 0 || e.row >= rows.size() || !rows.get(e.row).equals(e.key))
+            throw new IllegalStateException(e.kind + " " + e.key + " at row " + e.row + ", but the table has " + rows);
+    }
+
+    private void deliver() {
+        for (Runnable r; (r = deliveries.poll()) != null; ) r.run();
+    }
+
+    /** Delivers the pending batch and checks the events, the table notifications and the final rows. */
+    private void step(String what, int inserts, int updates, int deletes, ChangeEvent.Kind... expected) {
+        kinds.clear();
+        fired.clear();
+        deliver();
+        if (!kinds.equals(Arrays.asList(expected))) throw new IllegalStateException(what + ": events " + kinds + ", expected " + Arrays.toString(expected));
+        int ins = 0, upd = 0, del = 0;
+        for (TableModelEvent t : fired) {
+            if (t.getLastRow() == Integer.MAX_VALUE || t.getFirstRow() != t.getLastRow())
+                throw new IllegalStateException(what + ": the table was reloaded or repainted (rows " + t.getFirstRow() + ".." + t.getLastRow() + ")");
+            if (t.getType() == TableModelEvent.INSERT) ins++;
+            else if (t.getType() == TableModelEvent.DELETE) del++;
+            else upd++;
+        }
+        if (ins != inserts || upd != updates || del != deletes)
+            throw new IllegalStateException(what + ": " + ins + " inserts, " + upd + " updates, " + del + " deletes; expected " + inserts + ", " + updates + ", " + deletes);
+        RowSource<Book> catalog = db.bookView();
+        if (model.getRowCount() != catalog.size() || rows.size() != catalog.size())
+            throw new IllegalStateException(what + ": table has " + model.getRowCount() + " rows, deltas " + rows.size() + ", catalog " + catalog.size());
+        for (int i = 0; i < catalog.size(); i++) {
+            String id = catalog.get(i).getId();
+            if (!id.equals(rows.get(i)) || !id.equals(model.row(i).getId()))
+                throw new IllegalStateException(what + ": row " + i + " is " + model.row(i).getId() + " in the table, " + rows.get(i) + " by the deltas, " + id + " in the catalog");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.Permission;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Kills a JVM in the middle of {@link LibraryDatabase#compactHistory} at each step of the swap
+ * (staging, journal written, segments or history.log renamed, journal not yet deleted, expired
+ * segments half deleted) and reopens the directory: the history must have all its rows (less
+ * those retention had committed to dropping), every loan list and copy count must be as before,
+ * including a loan made while the compaction was staging its files, and the loan check must pass.
+ *
+ * The child stops itself with Runtime.halt from a SecurityManager that watches the file
+ * operations, so on Java 18 and later it is started with -Djava.security.manager=allow.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=CompactionCrashCheck</pre>
+ */
+public final class CompactionCrashCheck {
+    private static final int BOOKS = 8, COPIES = 2, STUDENTS = 8, LOANS = 5;
+    /** Months 13..20 ago, before the default hot window, each with PAIRS borrow/return pairs. */
+    private static final int FIRST_MONTH = 13, LAST_MONTH = 20, PAIRS = 2;
+    private static final int OLD_ROWS = (LAST_MONTH - FIRST_MONTH + 1) * PAIRS * 2;
+    private static final int RETENTION = 16; // keeps months up to 15 ago: 13..15 stay, 16..20 go
+    private static final int CRASHED = 86;
+    private static final String LATE_BORROWER = "s" + LOANS, LATE_BOOK = "K" + LOANS;
+
+    /** Where the child halts: the nth {@code op} on a file whose path ends with {@code suffix}. */
+    private static final class Scenario {
+        final String name, op, suffix;
+        final int nth, retention;
+        final boolean compactedBase, late;
+        final int rows, segments;
+
+        Scenario(String name, boolean compactedBase, int retention, String op, String suffix, int nth, boolean late, int rows, int segments) {
+            this.name = name; this.compactedBase = compactedBase; this.retention = retention; this.op = op; this.suffix = suffix; this.nth = nth;
+            this.late = late; this.rows = rows; this.segments = segments;
+        }
+    }
+
+    private static final int MONTHS = LAST_MONTH - FIRST_MONTH + 1, KEPT = RETENTION - FIRST_MONTH;
+    private static final List<Scenario> SCENARIOS = Arrays.asList(
+        new Scenario("staged, not journaled", false, 0, "write", "history.log.new", 1, true, OLD_ROWS + LOANS + 1, 0),
+        new Scenario("journaled, nothing renamed", false, 0, "write", ".seg", 1, true, OLD_ROWS + LOANS + 1, MONTHS),
+        new Scenario("segments renamed, not history.log", false, 0, "write", File.separator + "history.log", 1, true, OLD_ROWS + LOANS + 1, MONTHS),
+        new Scenario("all renamed, journal left", false, 0, "delete", "compaction.journal", 1, true, OLD_ROWS + LOANS + 1, MONTHS),
+        new Scenario("retention, journaled", false, RETENTION, "write", ".seg", 1, true, KEPT * PAIRS * 2 + LOANS + 1, KEPT),
+        new Scenario("retention, expiring segments", true, RETENTION, "delete", ".seg", 2, false, OLD_ROWS - PAIRS * 2 + LOANS, MONTHS - 1));
+
+    private CompactionCrashCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("crash")) { crash(new File(args[1]), args[2], args[3], Integer.parseInt(args[4])); return; }
+        Path root = Files.createTempDirectory("compaction-crash");
+        try {
+            File base = new File(root.toFile(), "base"), compacted = new File(root.toFile(), "compacted");
+            prepare(base);
+            copy(base, compacted);
+            LibraryDatabase db = new LibraryDatabase(compacted);
+            try { db.awaitLoaded(); db.compactHistory(); } finally { db.close(); }
+            int n = 0;
+            for (Scenario s : SCENARIOS) {
+                File dir = new File(root.toFile(), "run-" + n++);
+                copy(s.compactedBase ? compacted : base, dir);
+                run(s, dir);
+                System.out.println("  " + s.name + ": " + s.rows + " rows, " + s.segments + " segments, loans intact");
+            }
+        } finally {
+            BorrowStressCheck.delete(root);
+        }
+        System.out.println("OK: " + SCENARIOS.size() + " compactions killed midway recovered");
+    }
+
+    /** Old borrow/return pairs (net zero), then LOANS current loans that stay out. */
+    private static void prepare(File dir) throws IOException {
+        Files.createDirectories(dir.toPath());
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            for (int i = 0; i < BOOKS; i++) db.addOrUpdateBook(new Book("K" + i, "Title " + i, "Author " + i, COPIES));
+            for (int i = 0; i < STUDENTS; i++) db.addUser(new Student("s" + i, "pass", "Student " + i));
+            YearMonth now = YearMonth.now();
+            for (int m = LAST_MONTH; m >= FIRST_MONTH; m--) {
+                long t = now.minusMonths(m).atDay(10).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                for (int p = 0; p < PAIRS; p++) {
+                    String user = "s" + (STUDENTS - 1 - p), book = "K" + (BOOKS - 1 - p);
+                    db.addTransaction(new Transaction(t + p, LoanAction.BORROWED, user, book, "Title " + (BOOKS - 1 - p)));
+                    db.addTransaction(new Transaction(t + p + 60_000, LoanAction.RETURNED, user, book, "Title " + (BOOKS - 1 - p)));
+                }
+            }
+            for (int i = 0; i < LOANS; i++)
+                if (db.borrow((Student) db.getUser("s" + i), "K" + i) != LibraryDatabase.LoanResult.OK) throw new IllegalStateException("borrow K" + i + " failed");
+            db.flush();
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void run(Scenario s, File dir) throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        File out = new File(dir.getParentFile(), dir.getName() + ".out");
+        Process p = new ProcessBuilder(java, "-Djava.security.manager=allow", "-Dlibrary.history.retentionMonths=" + s.retention,
+                "-cp", System.getProperty("java.class.path"), CompactionCrashCheck.class.getName(), "crash", dir.getPath(), s.op, s.suffix, String.valueOf(s.nth))
+            .redirectErrorStream(true).redirectOutput(out).start();
+        if (!p.waitFor(2, TimeUnit.MINUTES)) { p.destroyForcibly(); throw new IllegalStateException(s.name + ": the child did not finish"); }
+        String log = new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8);
+        if (p.exitValue() != CRASHED) throw new IllegalStateException(s.name + ": expected a crash, the child exited with " + p.exitValue() + ":\n" + log);
+
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            verify(s, db, dir, "reopened");
+            db.compactHistory(); // what the crashed one set out to do, without retention
+            verify(s, db, dir, "compacted again");
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void verify(Scenario s, LibraryDatabase db, File dir, String when) throws IOException {
+        String what = s.name + ", " + when;
+        int rows = db.getAllTransactions().size();
+        if (rows != s.rows) throw new IllegalStateException(what + ": history has " + rows + " rows, expected " + s.rows);
+        File archive = new File(dir, "history-archive");
+        String[] segments = archive.list((d, n) -> n.endsWith(".seg"));
+        int count = segments == null ? 0 : segments.length;
+        if (when.equals("reopened") && count != s.segments) throw new IllegalStateException(what + ": " + count + " segments, expected " + s.segments);
+        String[] left = archive.list((d, n) -> n.endsWith(".new") || n.equals("compaction.journal"));
+        if (left != null && left.length > 0) throw new IllegalStateException(what + ": left behind " + Arrays.toString(left));
+        for (int i = 0; i < STUDENTS; i++) {
+            String name = "s" + i;
+            List<String> expected = i < LOANS ? Collections.singletonList("K" + i)
+                : name.equals(LATE_BORROWER) && s.late ? Collections.singletonList(LATE_BOOK) : Collections.<String>emptyList();
+            List<String> held = ((Student) db.getUser(name)).getBorrowedBookIds();
+            if (!held.equals(expected)) throw new IllegalStateException(what + ": " + name + " holds " + held + ", expected " + expected);
+        }
+        int available = db.getBook(LATE_BOOK).getAvailableCopies(), expected = s.late ? COPIES - 1 : COPIES;
+        if (available != expected) throw new IllegalStateException(what + ": " + LATE_BOOK + " has " + available + " copies available, expected " + expected);
+        LoanTable.Report report = db.verifyLoans();
+        if (!report.consistent()) throw new IllegalStateException(what + ": " + report);
+    }
+
+    /**
+     * The child: opens the directory, then compacts with a SecurityManager that lends a book from
+     * another thread when history.log.new is first written (a loan logged during staging) and
+     * halts the JVM at the chosen file operation of the compacting thread.
+     */
+    private static void crash(File dir, String op, String suffix, int nth) throws Exception {
+        LibraryDatabase db = new LibraryDatabase(dir);
+        db.awaitLoaded();
+        Thread compactor = Thread.currentThread();
+        System.setSecurityManager(new SecurityManager() {
+            private boolean lent;
+            private int hits;
+
+            @Override public void checkPermission(Permission perm) { }
+            @Override public void checkPermission(Permission perm, Object context) { }
+            @Override public void checkWrite(String file) { step("write", file); }
+            @Override public void checkDelete(String file) { step("delete", file); }
+
+            private void step(String kind, String file) {
+                if (Thread.currentThread() != compactor) return;
+                if (!lent && kind.equals("write") && file.endsWith("history.log.new")) { lent = true; lend(db); }
+                if (kind.equals(op) && file.endsWith(suffix) && ++hits == nth) {
+                    System.out.println("halting at " + kind + " " + file);
+                    System.out.flush();
+                    Runtime.getRuntime().halt(CRASHED);
+                }
+            }
+        });
+        db.compactHistory();
+        System.out.println("the compaction finished without reaching " + op + " *" + suffix + " #" + nth);
+        System.exit(1);
+    }
+
+    private static void lend(LibraryDatabase db) {
+        Thread t = new Thread(() -> {
+            if (db.borrow((Student) db.getUser(LATE_BORROWER), LATE_BOOK) != LibraryDatabase.LoanResult.OK) {
+                System.out.println("late borrow refused");
+                Runtime.getRuntime().halt(2);
+            }
+        }, "late-loan");
+        t.start();
+        try { t.join(TimeUnit.SECONDS.toMillis(30)); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        if (t.isAlive()) { System.out.println("late borrow blocked by the compaction"); Runtime.getRuntime().halt(3); }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        Path source = from.toPath(), target = to.toPath();
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Path t = target.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p)) Files.createDirectories(t);
+                else if (!p.getFileName().toString().equals("library.lock")) Files.copy(p, t, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import library.bench.Datasets;
+
+/**
+ * Writes a synthetic library through the public LibraryDatabase API; see {@link Datasets}. The
+ * history only returns books that are out, and the students' loan lists and the books' copies
+ * out are what it leaves, so the loan check passes on a generated dataset.
+ */
+public final class DatasetGenerator {
+    private static final long START = 1_600_000_000_000L; // Sep 2020
+    private static final long STEP_MS = 37_000L;
+
+    private static final String[] WORDS = {
+        "java", "systems", "design", "algorithms", "data", "network", "learning", "deep", "modern",
+        "introduction", "practical", "programming", "theory", "patterns", "distributed", "clean",
+        "code", "database", "operating", "security", "compilers", "graphics", "machine", "cloud",
+        "functional", "concurrency", "effective", "principles", "analysis", "engineering"
+    };
+    private static final String[] FIRST = { "Ada", "Alan", "Barbara", "Donald", "Edsger", "Grace", "John", "Ken", "Leslie", "Niklaus" };
+    private static final String[] LAST = { "Lovelace", "Turing", "Liskov", "Knuth", "Dijkstra", "Hopper", "McCarthy", "Thompson", "Lamport", "Wirth" };
+
+    private DatasetGenerator() {}
+
+    public static void generate(File dir, int records, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            for (int i = 0; i < records; i++) {
+                String title = cap(WORDS[rnd.nextInt(WORDS.length)]) + " " + cap(WORDS[rnd.nextInt(WORDS.length)]) + " " + cap(WORDS[rnd.nextInt(WORDS.length)]);
+                String author = FIRST[rnd.nextInt(FIRST.length)] + " " + LAST[rnd.nextInt(LAST.length)];
+                db.addOrUpdateBook(new Book(Datasets.bookId(i), title, author, 1 + rnd.nextInt(5)));
+            }
+            int students = Datasets.students(records);
+            for (int i = 0; i < students; i++) db.addUser(new Student(Datasets.username(i), "pass", "Student " + i));
+            int[] available = new int[records];
+            for (int i = 0; i < records; i++) available[i] = db.getBook(Datasets.bookId(i)).getTotalCopies();
+            List<List<Integer>> loans = new ArrayList<>(students);
+            for (int i = 0; i < students; i++) loans.add(new ArrayList<>());
+            for (int i = 0; i < records; ) {
+                int user = rnd.nextInt(students), book = rnd.nextInt(records);
+                List<Integer> held = loans.get(user);
+                LoanAction action;
+                if (!held.isEmpty() && (rnd.nextInt(3) == 0 || available[book] == 0)) {
+                    book = held.remove(rnd.nextInt(held.size()));
+                    available[book]++;
+                    action = LoanAction.RETURNED;
+                } else if (available[book] > 0) {
+                    held.add(book);
+                    available[book]--;
+                    action = LoanAction.BORROWED;
+                } else continue; // nothing to return and no copy left: draw again
+                Book b = db.getBook(Datasets.bookId(book));
+                db.addTransaction(new Transaction(START + i * STEP_MS, action, Datasets.username(user), b.getId(), b.getTitle()));
+                i++;
+            }
+            // lists and copies after the history, so users.bin is written with the log's end as its checkpoint
+            for (int i = 0; i < students; i++) {
+                if (loans.get(i).isEmpty()) continue;
+                Student s = (Student) db.getUser(Datasets.username(i));
+                for (int book : loans.get(i)) s.borrowBook(Datasets.bookId(book));
+                db.updateUser(s);
+            }
+            for (int i = 0; i < records; i++) {
+                Book b = db.getBook(Datasets.bookId(i));
+                if (available[i] == b.getTotalCopies()) continue;
+                while (b.getAvailableCopies() > available[i]) b.borrow();
+                db.addOrUpdateBook(b);
+            }
+            db.flush();
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String cap(String w) { return Character.toUpperCase(w.charAt(0)) + w.substring(1); }
+}
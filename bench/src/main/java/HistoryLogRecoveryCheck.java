@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Damages the last record of history.log the ways a crash mid-write can (cut short inside the
+ * record, a flipped payload byte, a garbage length) and reopens the directory: the record must
+ * be dropped and the file cut back to the one before it, every earlier record read back as
+ * written, the loan lists and the loan check as before, and a loan made after the reopen must
+ * survive the next one (appended after the cut, not after the garbage).
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=HistoryLogRecoveryCheck</pre>
+ */
+public final class HistoryLogRecoveryCheck {
+    private static final int BOOKS = 6, COPIES = 3, STUDENTS = 6, LOANS = 20;
+    private static final String[] DAMAGE = { "cut inside the record", "payload byte flipped", "garbage length" };
+
+    private HistoryLogRecoveryCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        // the record torn below is logged alone, with no loan behind it, so only the checks here
+        // (after it is dropped) can pass; the startup check would report it while it exists
+        System.setProperty("library.loans.verify", "false");
+        Path root = Files.createTempDirectory("history-recovery");
+        try {
+            for (int d = 0; d < DAMAGE.length; d++) {
+                File dir = new File(root.toFile(), "run-" + d);
+                Files.createDirectories(dir.toPath());
+                run(dir, d);
+                System.out.println("  " + DAMAGE[d] + ": record dropped, log cut back, later loans kept");
+            }
+        } finally {
+            BorrowStressCheck.delete(root);
+        }
+        System.out.println("OK: " + DAMAGE.length + " damaged history.log tails recovered");
+    }
+
+    private static void run(File dir, int damage) throws IOException {
+        File log = new File(dir, "history.log");
+        List<String> written = new ArrayList<>();
+        List<List<String>> lists = new ArrayList<>();
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            for (int i = 0; i < BOOKS; i++) db.addOrUpdateBook(new Book("K" + i, "Title " + i, "Author " + i, COPIES));
+            for (int i = 0; i < STUDENTS; i++) db.addUser(new Student("s" + i, "pass", "Student " + i));
+            for (int i = 0; i < LOANS; i++) {
+                Student s = (Student) db.getUser("s" + i % STUDENTS);
+                String id = "K" + i % BOOKS;
+                if (s.hasBorrowed(id) ? db.giveBack(s, id) != LibraryDatabase.LoanResult.OK : db.borrow(s, id) != LibraryDatabase.LoanResult.OK)
+                    throw new IllegalStateException("loan " + i + " refused");
+            }
+            db.flush();
+            for (Transaction t : db.getAllTransactions()) written.add(key(t));
+            for (int i = 0; i < STUDENTS; i++) lists.add(new ArrayList<>(((Student) db.getUser("s" + i)).getBorrowedBookIds()));
+        } finally {
+            db.close();
+        }
+        long intact = log.length();
+
+        // a record logged after the users.bin checkpoint, alone in the tail: the one the crash tears
+        db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            db.addTransaction(new Transaction(System.currentTimeMillis(), LoanAction.BORROWED, "s0", "K" + (BOOKS - 1), "Title " + (BOOKS - 1)));
+        } finally {
+            db.close();
+        }
+        long end = log.length();
+        if (end <= intact) throw new IllegalStateException("the last record was not logged");
+        try (RandomAccessFile f = new RandomAccessFile(log, "rw")) {
+            switch (damage) {
+                case 0: f.setLength(intact + (end - intact) / 2); break;
+                case 1: f.seek(intact + 4 + 3); int b = f.read(); f.seek(intact + 4 + 3); f.write(b ^ 0x5a); break;
+                default: f.seek(intact); f.writeInt(Integer.MAX_VALUE); break;
+            }
+        }
+
+        db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            expect(DAMAGE[damage], db, written, lists);
+            if (log.length() != intact) throw new IllegalStateException(DAMAGE[damage] + ": history.log is " + log.length() + " bytes, expected cut back to " + intact);
+            if (db.borrow((Student) db.getUser("s1"), "K" + (BOOKS - 1)) != LibraryDatabase.LoanResult.OK) throw new IllegalStateException("borrow after the reopen refused");
+            written.add(key(last(db)));
+            lists.get(1).add("K" + (BOOKS - 1));
+            db.flush();
+        } finally {
+            db.close();
+        }
+
+        db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            expect(DAMAGE[damage] + ", reopened again", db, written, lists);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void expect(String what, LibraryDatabase db, List<String> written, List<List<String>> lists) throws IOException {
+        List<String> read = new ArrayList<>();
+        for (Transaction t : db.getAllTransactions()) read.add(key(t));
+        if (!read.equals(written)) throw new IllegalStateException(what + ": history reads back " + read.size() + " records, expected the " + written.size() + " written before");
+        for (int i = 0; i < STUDENTS; i++) {
+            List<String> held = new ArrayList<>(((Student) db.getUser("s" + i)).getBorrowedBookIds()), expected = new ArrayList<>(lists.get(i));
+            Collections.sort(held); Collections.sort(expected);
+            if (!held.equals(expected)) throw new IllegalStateException(what + ": s" + i + " holds " + held + ", expected " + expected);
+        }
+        LoanTable.Report report = db.verifyLoans();
+        if (!report.consistent()) throw new IllegalStateException(what + ": " + report);
+    }
+
+    private static Transaction last(LibraryDatabase db) {
+        List<Transaction> all = db.getAllTransactions();
+        return all.get(all.size() - 1);
+    }
+
+    private static String key(Transaction t) {
+        return String.join("|", Arrays.asList(String.valueOf(t.getTime()), t.getActionType().name(), t.getUsername(), t.getBookId(), t.getBookTitle()));
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * Starts {@link LibraryHttpServer} on an ephemeral localhost port and drives login, borrow and
+ * return through the JSON API, checking status codes and bodies along the way.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=HttpServerCheck</pre>
+ */
+public final class HttpServerCheck {
+    private HttpServerCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("http-check");
+        try {
+            LibraryDatabase db = new LibraryDatabase(dir.toFile());
+            try {
+                db.awaitLoaded();
+                db.addOrUpdateBook(new Book("H1", "Http Basics", "Ada Lovelace", 1));
+                db.addUser(new Student("alice", "alice-pw", "Alice"));
+                db.addUser(new Student("bob", "bob-pw", "Bob"));
+                db.addUser(new Admin("root", "root-pw", "Root"));
+                try (LibraryHttpServer server = new LibraryHttpServer(new LibraryService(db), new InetSocketAddress("127.0.0.1", 0))) {
+                    server.start();
+                    run("http://127.0.0.1:" + server.getPort());
+                }
+            } finally {
+                db.close();
+            }
+        } finally {
+            BorrowStressCheck.delete(dir);
+        }
+        System.out.println("OK: login, borrow and return over HTTP");
+    }
+
+    private static void run(String base) throws IOException {
+        expect(call(base, "GET", "/api/books/H1", null), 200, "\"availableCopies\":1");
+        expect(call(base, "GET", "/api/books/nope", null), 404, "Book not found");
+
+        expect(call(base, "GET", "/api/me", null), 401, "Login required");
+        expect(call(base, "GET", "/api/me", "alice:wrong"), 401, "Login required");
+        expect(call(base, "GET", "/api/me", "alice:alice-pw"), 200, "\"username\":\"alice\"");
+
+        expect(call(base, "POST", "/api/loans/H1", "alice:alice-pw"), 200, "\"OK\"");
+        expect(call(base, "GET", "/api/me", "alice:alice-pw"), 200, "\"borrowedBookIds\":[\"H1\"]");
+        expect(call(base, "GET", "/api/books/H1", null), 200, "\"availableCopies\":0");
+        expect(call(base, "POST", "/api/loans/H1", "bob:bob-pw"), 409, "\"UNAVAILABLE\"");
+        expect(call(base, "DELETE", "/api/loans/H1", "bob:bob-pw"), 409, "\"NOT_BORROWED\"");
+        expect(call(base, "POST", "/api/loans/H1", "root:root-pw"), 403, "Only students");
+        expect(call(base, "POST", "/api/loans/nope", "alice:alice-pw"), 404, "\"NO_SUCH_BOOK\"");
+
+        expect(call(base, "DELETE", "/api/loans/H1", "alice:alice-pw"), 200, "\"OK\"");
+        expect(call(base, "GET", "/api/me", "alice:alice-pw"), 200, "\"borrowedBookIds\":[]");
+        expect(call(base, "GET", "/api/books/H1", null), 200, "\"availableCopies\":1");
+        expect(call(base, "GET", "/api/history", "alice:alice-pw"), 200, "\"total\":2");
+        expect(call(base, "GET", "/api/history", "bob:bob-pw"), 200, "\"total\":0");
+        expect(call(base, "GET", "/api/metrics", "alice:alice-pw"), 403, "Admins only");
+        expect(call(base, "GET", "/api/metrics", "root:root-pw"), 200, "{");
+    }
+
+    private static void expect(String[] response, int status, String fragment) {
+        if (Integer.parseInt(response[0]) != status || !response[1].contains(fragment))
+            throw new IllegalStateException(response[2] + ": expected " + status + " with " + fragment + ", got " + response[0] + " " + response[1]);
+    }
+
+    /** Returns {status, body, request line}. */
+    private static String[] call(String base, String method, String path, String credentials) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(base + path).openConnection();
+        try {
+            c.setRequestMethod(method);
+            if (credentials != null)
+                c.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+            int status = c.getResponseCode();
+            InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                try (InputStream i = in) {
+                    byte[] buf = new byte[4096];
+                    for (int n; (n = i.read(buf)) > 0; ) body.write(buf, 0, n);
+                }
+            }
+            return new String[] { String.valueOf(status), new String(body.toByteArray(), StandardCharsets.UTF_8), method + " " + path };
+        } finally {
+            c.disconnect();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes legacy books.data, users.data and history.data the way the serialization-based
+ * versions did, runs {@code Library3 --migrate} on them and checks that books.db, users.bin and
+ * history.log hold the same books, accounts with their loans and history, and that the loan
+ * check passes; a loan made afterwards must survive a reopen (the .data files are not read
+ * again). Then damages users.bin (a flipped byte inside a block, then a cut-off end) and checks
+ * that it is moved aside to users.bin.corrupt and the accounts come from users.data; the loan
+ * check must then flag exactly the loan made since, whose copy is still out.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=LegacyMigrationCheck</pre>
+ */
+public final class LegacyMigrationCheck {
+    private LegacyMigrationCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("library.loans.verify", "false"); // checked below; the fallback's drift is expected
+        Path root = Files.createTempDirectory("legacy-migration");
+        try {
+            File dir = root.toFile();
+            Map<String, Book> books = new LinkedHashMap<>();
+            for (int i = 0; i < 5; i++) books.put("K" + i, new Book("K" + i, "Title " + i, "Author " + i, 2));
+            books.get("K1").borrow();
+            Map<String, User> users = new LinkedHashMap<>();
+            users.put("admin", new Admin("admin", "admin", "Administrator"));
+            Student ann = new Student("ann", "pw", "Ann"), bob = new Student("bob", "pw", "Bob");
+            ann.borrowBook("K1");
+            users.put("ann", ann); users.put("bob", bob);
+            List<Transaction> history = new ArrayList<>(Arrays.asList(
+                new Transaction("bob", "Title 3", "Borrowed", "01-02-2020 10:00:00"),
+                new Transaction("bob", "Title 3", "Returned", "03-02-2020 09:30:00"),
+                new Transaction("ann", "Title 1", "Borrowed", "05-02-2020 16:45:10")));
+            write(new File(dir, "books.data"), books);
+            write(new File(dir, "users.data"), users);
+            write(new File(dir, "history.data"), history);
+
+            Library3.main(new String[] { "--migrate", dir.getPath() });
+            for (String f : new String[] { "books.db", "users.bin", "history.log" })
+                if (!new File(dir, f).isFile()) throw new IllegalStateException("--migrate did not write " + f);
+            LibraryDatabase db = new LibraryDatabase(dir);
+            try {
+                db.awaitLoaded();
+                expect("migrated", db, books, users, history);
+                if (db.borrow((Student) db.getUser("bob"), "K2") != LibraryDatabase.LoanResult.OK) throw new IllegalStateException("borrow after --migrate refused");
+                db.flush();
+            } finally {
+                db.close();
+            }
+            db = new LibraryDatabase(dir);
+            try {
+                db.awaitLoaded();
+                if (!((Student) db.getUser("bob")).getBorrowedBookIds().equals(Arrays.asList("K2")) || db.getBook("K2").getAvailableCopies() != 1)
+                    throw new IllegalStateException("reopened after --migrate: the loan made since is gone (were the .data files read again?)");
+            } finally {
+                db.close();
+            }
+
+            damage(dir, "byte flipped inside a block", f -> { long at = f.length() / 2; f.seek(at); int b = f.read(); f.seek(at); f.write(b ^ 0xff); });
+            damage(dir, "end cut off", f -> f.setLength(f.length() - 6));
+        } finally {
+            BorrowStressCheck.delete(root);
+        }
+        System.out.println("OK: --migrate kept books, accounts, loans and history; a damaged users.bin fell back to users.data");
+    }
+
+    private interface Damage { void apply(RandomAccessFile f) throws IOException; }
+
+    /** Damages users.bin; the reopen must move it aside and load the accounts of users.data. */
+    private static void damage(File dir, String what, Damage how) throws IOException {
+        File store = new File(dir, "users.bin"), bad = new File(dir, "users.bin.corrupt");
+        Files.deleteIfExists(bad.toPath());
+        try (RandomAccessFile f = new RandomAccessFile(store, "rw")) { how.apply(f); }
+        byte[] damaged = Files.readAllBytes(store.toPath());
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            if (!bad.isFile() || !Arrays.equals(Files.readAllBytes(bad.toPath()), damaged)) throw new IllegalStateException(what + ": users.bin was not moved aside to users.bin.corrupt");
+            if (!accounts(db).equals("{admin=Admin, ann=Student[K1], bob=Student[]}")) throw new IllegalStateException(what + ": accounts " + accounts(db) + ", expected those of users.data");
+            LoanTable.Report report = db.verifyLoans(); // users.data predates bob's loan of K2
+            if (report.drift.size() != 1 || !report.drift.get(0).startsWith("K2 has 1 copies out")) throw new IllegalStateException(what + ": the loan check should flag K2 only: " + report.drift);
+        } finally {
+            db.close();
+        }
+        Files.delete(bad.toPath());
+        db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            if (bad.exists()) throw new IllegalStateException(what + ": the users.bin written after the fallback is unreadable too");
+        } finally {
+            db.close();
+        }
+        System.out.println("  users.bin " + what + ": moved aside, accounts from users.data");
+    }
+
+    private static void expect(String what, LibraryDatabase db, Map<String, Book> books, Map<String, User> users, List<Transaction> history) throws IOException {
+        for (Book b : books.values()) {
+            Book m = db.getBook(b.getId());
+            if (m == null || !m.getTitle().equals(b.getTitle()) || !m.getAuthor().equals(b.getAuthor())
+                    || m.getTotalCopies() != b.getTotalCopies() || m.getAvailableCopies() != b.getAvailableCopies())
+                throw new IllegalStateException(what + ": book " + b.getId() + " differs");
+        }
+        Map<String, String> expected = new TreeMap<>();
+        for (User u : users.values()) expected.put(u.getUsername(), describe(u));
+        if (!accounts(db).equals(expected.toString())) throw new IllegalStateException(what + ": accounts " + accounts(db) + ", expected " + expected);
+        List<Transaction> read = db.getAllTransactions();
+        if (read.size() != history.size()) throw new IllegalStateException(what + ": " + read.size() + " history records, expected " + history.size());
+        for (int i = 0; i < history.size(); i++) {
+            Transaction a = history.get(i), b = read.get(i);
+            if (a.getTime() != b.getTime() || a.getActionType() != b.getActionType() || !a.getUsername().equals(b.getUsername()) || !a.getBookTitle().equals(b.getBookTitle()))
+                throw new IllegalStateException(what + ": history record " + i + " differs");
+        }
+        LoanTable.Report report = db.verifyLoans();
+        if (!report.consistent()) throw new IllegalStateException(what + ": " + report);
+    }
+
+    private static String accounts(LibraryDatabase db) {
+        Map<String, String> all = new TreeMap<>();
+        for (User u : db.getAllUsers()) all.put(u.getUsername(), describe(u));
+        return all.toString();
+    }
+
+    private static String describe(User u) {
+        return u instanceof Student ? "Student" + ((Student) u).getBorrowedBookIds() : u.getClass().getSimpleName();
+    }
+
+    private static void write(File f, Object o) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(f))) { out.writeObject(o); }
+    }
+}
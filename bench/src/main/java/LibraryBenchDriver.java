@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import library.bench.LibraryDriver;
+
+/** Default-package side of {@link LibraryDriver}: plain calls into LibraryDatabase. */
+public class LibraryBenchDriver implements LibraryDriver {
+    private final LibraryDatabase db;
+
+    public LibraryBenchDriver(File dir) { db = new LibraryDatabase(dir); }
+
+    @Override
+    public int historySize() { return db.getAllTransactions().size(); }
+
+    @Override
+    public boolean hasUser(String username) { return db.getUser(username) != null; }
+
+    @Override
+    public void changeAndFlush(String username, String bookId) throws IOException {
+        Book b = db.getBook(bookId);
+        db.addOrUpdateBook(b);
+        db.updateUser(db.getUser(username));
+        db.addTransaction(new Transaction(System.currentTimeMillis(), LoanAction.BORROWED, username, b.getId(), b.getTitle()));
+        db.flush();
+    }
+
+    @Override
+    public void addTransaction(String username, String bookId) {
+        Book b = db.getBook(bookId);
+        db.addTransaction(new Transaction(System.currentTimeMillis(), LoanAction.BORROWED, username, b.getId(), b.getTitle()));
+    }
+
+    @Override
+    public int search(String query, int limit) { return db.searchBooks(query, limit).size(); }
+
+    @Override
+    public int linearScan(String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        int hits = 0;
+        for (Book b : db.getAllBooks())
+            if (b.getTitle().toLowerCase().contains(q) || b.getAuthor().toLowerCase().contains(q) || b.getId().toLowerCase().contains(q)) hits++;
+        return hits;
+    }
+
+    @Override
+    public long userHistory(String username) {
+        RowSource<Transaction> rows = db.historyView(username);
+        long sum = 0;
+        for (int i = 0, n = rows.size(); i < n; i++) sum += rows.get(i).getBookTitle().length();
+        return sum;
+    }
+
+    @Override
+    public boolean borrowAndReturn(String username, String bookId) {
+        Student s = (Student) db.getUser(username);
+        if (db.borrow(s, bookId) != LibraryDatabase.LoanResult.OK) return false;
+        db.giveBack(s, bookId);
+        return true;
+    }
+
+    @Override
+    public void close() { db.close(); }
+}
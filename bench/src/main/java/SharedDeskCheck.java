@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several circulation desks, each its own JVM with -Dlibrary.shared=true, borrow, return, edit
+ * books and add accounts in one data directory at the same time. Afterwards every desk must see
+ * the same catalog, accounts and history, its loan check must pass, and the directory opened
+ * fresh must account for every loan the desks reported.
+ *
+ * <pre>./gradlew :bench:runCheck -Pcheck=SharedDeskCheck [-PcheckArgs="desks opsPerDesk"]</pre>
+ */
+public final class SharedDeskCheck {
+    private static final int BOOKS = 30, COPIES = 3, STUDENTS = 20;
+    private static final long TIMEOUT_MINUTES = 5;
+
+    private SharedDeskCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("desk")) { desk(new File(args[1]), args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4])); return; }
+        int desks = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Path dir = Files.createTempDirectory("shared-desks");
+        try {
+            run(dir.toFile(), desks, ops);
+        } finally {
+            BorrowStressCheck.delete(dir);
+        }
+    }
+
+    private static void run(File dir, int desks, int ops) throws Exception {
+        LibraryDatabase setup = new LibraryDatabase(dir);
+        try {
+            setup.awaitLoaded();
+            for (int i = 0; i < BOOKS; i++) setup.addOrUpdateBook(new Book("K" + i, "Title " + i, "Author " + i, COPIES));
+            for (int i = 0; i < STUDENTS; i++) setup.addUser(new Student("s" + i, "pass", "Student " + i));
+            setup.flush();
+        } finally {
+            setup.close();
+        }
+
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<Process> procs = new ArrayList<>();
+        List<File> outputs = new ArrayList<>();
+        for (int d = 0; d < desks; d++) {
+            File out = new File(dir, "desk-" + d + ".out");
+            outputs.add(out);
+            procs.add(new ProcessBuilder(java, "-Dlibrary.shared=true", "-cp", System.getProperty("java.class.path"),
+                    SharedDeskCheck.class.getName(), "desk", dir.getPath(), "d" + d, String.valueOf(ops), String.valueOf(desks))
+                .redirectErrorStream(true).redirectOutput(out).start());
+        }
+        for (int d = 0; d < desks; d++) {
+            Process p = procs.get(d);
+            if (!p.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) { for (Process q : procs) q.destroyForcibly(); throw new IllegalStateException("desk d" + d + " did not finish"); }
+            if (p.exitValue() != 0) throw new IllegalStateException("desk d" + d + " failed:\n" + read(outputs.get(d)));
+        }
+
+        String digest = null;
+        int out = 0;
+        for (int d = 0; d < desks; d++) {
+            String report = read(outputs.get(d));
+            System.out.print(report);
+            String mine = field(report, "digest=");
+            if (digest == null) digest = mine;
+            else if (!digest.equals(mine)) throw new IllegalStateException("desks disagree: d0 " + digest + ", d" + d + " " + mine);
+            out += Integer.parseInt(field(report, "borrowed=")) - Integer.parseInt(field(report, "returned="));
+        }
+
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            if (!digest.equals(digest(db))) throw new IllegalStateException("reopened directory differs: " + digest(db) + ", desks saw " + digest);
+            int copiesOut = 0;
+            for (Book b : db.getAllBooks()) copiesOut += b.getTotalCopies() - b.getAvailableCopies();
+            if (copiesOut != out) throw new IllegalStateException("desks reported " + out + " loans outstanding, books show " + copiesOut);
+            LoanTable.Report report = db.verifyLoans();
+            if (!report.consistent()) throw new IllegalStateException(report.toString());
+        } finally {
+            db.close();
+        }
+        System.out.println("OK: " + desks + " desks x " + ops + " ops agree; " + out + " loans outstanding");
+    }
+
+    /** One desk: random loans, returns, book edits and new accounts, then waits for the others and reports. */
+    private static void desk(File dir, String id, int ops, int desks) throws Exception {
+        LibraryDatabase db = new LibraryDatabase(dir);
+        try {
+            db.awaitLoaded();
+            Random rnd = new Random(id.hashCode());
+            int borrowed = 0, returned = 0, edits = 0, conflicts = 0;
+            for (int i = 0; i < ops; i++) {
+                Student s = (Student) db.getUser("s" + rnd.nextInt(STUDENTS));
+                int r = rnd.nextInt(100);
+                if (r < 2) {
+                    Book b = db.getBook("K" + rnd.nextInt(BOOKS));
+                    try { db.updateBook(b.getId(), b.getVersion(), "T" + id + "-" + i, b.getAuthor(), COPIES); edits++; }
+                    catch (IllegalArgumentException e) { conflicts++; } // another desk edited it since it was read
+                } else if (r < 3) {
+                    db.addUserIfAbsent(new Student(id + "-u" + i, "pass", "New " + i));
+                } else if (r < 55) {
+                    if (db.borrow(s, "K" + rnd.nextInt(BOOKS)) == LibraryDatabase.LoanResult.OK) borrowed++;
+                } else {
+                    List<String> held = s.getBorrowedBookIds();
+                    if (!held.isEmpty() && db.giveBack(s, held.get(rnd.nextInt(held.size()))) == LibraryDatabase.LoanResult.OK) returned++;
+                }
+            }
+            db.flush();
+            new File(dir, "done-" + id).createNewFile();
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TIMEOUT_MINUTES);
+            while (dir.list((d, n) -> n.startsWith("done-")).length < desks) {
+                if (System.currentTimeMillis() > deadline) throw new IllegalStateException(id + ": the other desks did not finish");
+                Thread.sleep(50);
+            }
+            LoanTable.Report report = db.verifyLoans(); // takes the write lock, so it merges the others' last changes first
+            if (!report.consistent()) throw new IllegalStateException(id + ": " + report);
+            System.out.println(id + " borrowed=" + borrowed + " returned=" + returned + " edits=" + edits + " conflicts=" + conflicts + " digest=" + digest(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    /** Catalog with copy counts, accounts with their loans and the history size, as one comparable string. */
+    private static String digest(LibraryDatabase db) {
+        StringBuilder sb = new StringBuilder();
+        for (Book b : db.getAllBooks()) sb.append(b.getId()).append(b.getTitle()).append(b.getTotalCopies()).append('/').append(b.getAvailableCopies()).append(';');
+        List<User> users = new ArrayList<>(db.getAllUsers());
+        users.sort(Comparator.comparing(User::getUsername));
+        for (User u : users) {
+            sb.append(u.getUsername());
+            if (u instanceof Student) { List<String> l = new ArrayList<>(((Student) u).getBorrowedBookIds()); Collections.sort(l); sb.append(l); }
+        }
+        int history = db.getAllTransactions().size();
+        return Integer.toHexString(sb.toString().hashCode()) + "/users=" + users.size() + "/history=" + history;
+    }
+
+    private static String field(String report, String name) {
+        int at = report.lastIndexOf(name);
+        if (at < 0) throw new IllegalStateException("no " + name + " in:\n" + report);
+        int end = at + name.length();
+        while (end < report.length() && !Character.isWhitespace(report.charAt(end))) end++;
+        return report.substring(at + name.length(), end);
+    }
+
+    private static String read(File f) throws IOException { return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8); }
+}
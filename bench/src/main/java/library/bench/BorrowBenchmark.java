@@ -0,0 +1,51 @@
+package library.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Concurrent checkout throughput: each thread is a student borrowing and returning random books. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Threads(4)
+public class BorrowBenchmark {
+    @Param({ "1000", "100000" })
+    int records;
+
+    File dir;
+    LibraryDriver db;
+
+    @State(Scope.Thread)
+    public static class Desk {
+        String user;
+
+        @Setup(Level.Trial)
+        public void setup(BorrowBenchmark b) {
+            user = Datasets.username(ThreadLocalRandom.current().nextInt(Datasets.students(b.records)));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Datasets.copy(Datasets.dataset(records));
+        db = LibraryDriver.open(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public boolean borrowAndReturn(Desk desk) {
+        return db.borrowAndReturn(desk.user, Datasets.bookId(ThreadLocalRandom.current().nextInt(records)));
+    }
+}
@@ -0,0 +1,69 @@
+package library.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Reproducible synthetic datasets. A dataset of size N holds N books, N/10 students and N history
+ * records derived from a fixed seed, so numbers taken on different commits describe the same data.
+ * Datasets are generated once under {@code -Dbench.dataDir} and reused.
+ */
+public final class Datasets {
+    public static final long SEED = 42L;
+    /** Part of the directory name; bump it when DatasetGenerator writes different data. */
+    static final int FORMAT = 2;
+    static final int[] SIZES = { 1_000, 100_000, 1_000_000 };
+
+    private Datasets() {}
+
+    public static String bookId(int i) { return String.format("B%07d", i); }
+    public static String username(int i) { return String.format("user%06d", i); }
+    public static int students(int records) { return Math.max(1, records / 10); }
+
+    static File root() { return new File(System.getProperty("bench.dataDir", "build/bench-data")); }
+
+    /** The shared, read-only dataset of the given size; generated on first use. */
+    public static synchronized File dataset(int records) throws IOException {
+        File dir = new File(root(), "library-" + records + "-" + SEED + "-v" + FORMAT);
+        if (new File(dir, "COMPLETE").exists()) return dir;
+        delete(dir);
+        if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        LibraryDriver.generate(dir, records);
+        Files.createFile(new File(dir, "COMPLETE").toPath());
+        return dir;
+    }
+
+    /** A private copy of a dataset for benchmarks that write, subdirectories (history-archive/) included. */
+    public static File copy(File dataset) throws IOException {
+        Path source = dataset.toPath(), target = Files.createTempDirectory(root().toPath(), "run-");
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Path to = target.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p)) Files.createDirectories(to);
+                else Files.copy(p, to, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return target.toFile();
+    }
+
+    public static void delete(File dir) throws IOException {
+        if (!dir.exists()) return;
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) System.setProperty("bench.dataDir", args[0]);
+        for (int size : SIZES) {
+            long t0 = System.nanoTime();
+            File dir = dataset(size);
+            System.out.printf("%,d records -> %s (%d ms)%n", size, dir, (System.nanoTime() - t0) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package library.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The operations the benchmarks measure. The application lives in the default package, which a
+ * named package cannot import, and JMH refuses benchmarks in the default package; so the
+ * benchmarks call the app through this interface, implemented by the default-package
+ * {@code LibraryBenchDriver} and looked up once per trial.
+ */
+public interface LibraryDriver extends AutoCloseable {
+
+    /** Opens a LibraryDatabase on {@code dir}. */
+    static LibraryDriver open(File dir) {
+        try {
+            return (LibraryDriver) Class.forName("LibraryBenchDriver").getConstructor(File.class).newInstance(dir);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("LibraryBenchDriver not on the classpath", e);
+        }
+    }
+
+    /** Fills an empty {@code dir} with a synthetic library of {@code records} books and history records. */
+    static void generate(File dir, int records) {
+        try {
+            Class.forName("DatasetGenerator").getMethod("generate", File.class, int.class, long.class).invoke(null, dir, records, Datasets.SEED);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Dataset generation failed for " + dir, e);
+        }
+    }
+
+    int historySize();
+
+    /** Whether {@code username} exists; answerable as soon as users are loaded, as the login window needs. */
+    boolean hasUser(String username);
+
+    /** A typical desk interaction (book, student and one history record changed) followed by a durable save. */
+    void changeAndFlush(String username, String bookId) throws IOException;
+
+    void addTransaction(String username, String bookId);
+
+    /** Indexed catalog search; returns the number of hits. */
+    int search(String query, int limit);
+
+    /** The lowercase/contains scan StudentPanel.filter used before the index; returns the number of hits. */
+    int linearScan(String query);
+
+    /** Reads every history row of one user, as the history window does; returns a checksum. */
+    long userHistory(String username);
+
+    /** Borrows the book and, if that succeeded, returns it again. */
+    boolean borrowAndReturn(String username, String bookId);
+
+    @Override
+    void close();
+}
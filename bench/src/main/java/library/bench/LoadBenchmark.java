@@ -0,0 +1,51 @@
+package library.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cold open of a data directory. {@code load} waits for books.db, users and the history replay;
+ * {@code loginReady} only until a login could be answered, which should not grow with history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    int records;
+
+    File dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception { dir = Datasets.dataset(records); }
+
+    @Benchmark
+    public int load() {
+        try (LibraryDriver db = LibraryDriver.open(dir)) {
+            return db.historySize();
+        }
+    }
+
+    /** Holds the database opened by {@code loginReady}; the background load finishes and closes outside the timing. */
+    @State(Scope.Thread)
+    public static class Opened {
+        LibraryDriver db;
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            if (db != null) db.close();
+            db = null;
+        }
+    }
+
+    @Benchmark
+    public boolean loginReady(Opened opened) {
+        opened.db = LibraryDriver.open(dir);
+        return opened.db.hasUser("admin");
+    }
+}
@@ -0,0 +1,43 @@
+package library.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** A durable save after one desk interaction, and addTransaction on its own, against data size. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SaveBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    int records;
+
+    File dir;
+    LibraryDriver db;
+    String user, book;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Datasets.copy(Datasets.dataset(records));
+        db = LibraryDriver.open(dir);
+        user = Datasets.username(0);
+        book = Datasets.bookId(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.close();
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public void saveAfterChange() throws IOException { db.changeAndFlush(user, book); }
+
+    @Benchmark
+    public void addTransaction() { db.addTransaction(user, book); }
+}
@@ -0,0 +1,34 @@
+package library.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Catalog search through the index versus the linear scan StudentPanel.filter used to do. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+    private static final String[] QUERIES = { "java", "deep learn", "knuth", "B000012", "distributed systems design", "pro" };
+
+    @Param({ "1000", "100000", "1000000" })
+    int records;
+
+    LibraryDriver db;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception { db = LibraryDriver.open(Datasets.dataset(records)); }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { db.close(); }
+
+    @Benchmark
+    public int indexed() { return db.search(QUERIES[next++ % QUERIES.length], 50); }
+
+    @Benchmark
+    public int linearScan() { return db.linearScan(QUERIES[next++ % QUERIES.length]); }
+}
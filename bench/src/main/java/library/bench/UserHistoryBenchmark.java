@@ -0,0 +1,32 @@
+package library.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Opening one student's borrowed history, as HistoryFrame does, against total history size. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UserHistoryBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    int records;
+
+    LibraryDriver db;
+    int students, next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = LibraryDriver.open(Datasets.dataset(records));
+        students = Datasets.students(records);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { db.close(); }
+
+    @Benchmark
+    public long userHistory() { return db.userHistory(Datasets.username(next++ % students)); }
+}